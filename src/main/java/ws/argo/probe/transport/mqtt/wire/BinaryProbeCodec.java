@@ -0,0 +1,313 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.probe.transport.mqtt.wire;
+
+import ws.argo.wireline.probe.ProbeParseException;
+import ws.argo.wireline.probe.ProbeWrapper;
+import ws.argo.wireline.probe.ProbeWrapper.RespondToURL;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compact binary encoding of the wireline probe.
+ *
+ * <p>The payload is the frame header, a version byte and then the probe fields in a
+ * fixed order: probe id, client id, DES version, respond-to payload type, the
+ * respond-to label/URL pairs, the service contract ids and the service instance ids.
+ * Counts and lengths are unsigned varints.  Every string starts with a tag byte - null,
+ * a {@code urn:uuid:} id packed into 16 bytes, or a length-prefixed UTF-8 string - so
+ * the UUID based ids that make up most of a probe cost 17 bytes instead of 45.
+ */
+public class BinaryProbeCodec implements ProbeCodec {
+
+    public static final String NAME = "binary";
+
+    private static final byte VERSION = 1;
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_UUID_URN = 1;
+    private static final int TAG_STRING = 2;
+
+    private static final String UUID_URN_PREFIX = "urn:uuid:";
+    private static final int UUID_URN_LENGTH = UUID_URN_PREFIX.length() + 36;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(ProbeWrapper probe) throws ProbeParseException {
+        Writer out = new Writer(256);
+
+        out.writeByte(WireFormat.MAGIC);
+        out.writeByte(WireFormat.TYPE_BINARY);
+        out.writeByte(VERSION);
+
+        out.writeString(probe.getProbeId());
+        out.writeString(probe.getClientId());
+        out.writeString(probe.getDESVersion());
+        out.writeString(probe.getRespondToPayloadType());
+
+        List<RespondToURL> respondToURLs = probe.getRespondToURLs();
+        out.writeVarint(respondToURLs.size());
+        for (RespondToURL respondToURL : respondToURLs) {
+            out.writeString(respondToURL.getLabel());
+            out.writeString(respondToURL.getUrl());
+        }
+
+        out.writeStrings(probe.getServiceContractIDs());
+        out.writeStrings(probe.getServiceInstanceIDs());
+
+        return out.toByteArray();
+    }
+
+    @Override
+    public ReceivedProbe decode(byte[] payload) throws ProbeParseException {
+        if (!WireFormat.isFrame(payload, WireFormat.TYPE_BINARY)) {
+            throw new ProbeParseException("Payload is not a binary probe");
+        }
+
+        Reader in = new Reader(payload, WireFormat.HEADER_LENGTH);
+        int version = in.readByte();
+        if (version != VERSION) {
+            throw new ProbeParseException("Unsupported binary probe version [" + version + "]");
+        }
+
+        ReceivedProbe probe = new ReceivedProbe(in.readString(), payload);
+        probe.setClientId(in.readString());
+        probe.setDESVersion(in.readString());
+        probe.setRespondToPayloadType(in.readString());
+
+        int respondToCount = in.readCount();
+        for (int i = 0; i < respondToCount; i++) {
+            probe.addRespondToURL(in.readString(), in.readString());
+        }
+
+        int contractCount = in.readCount();
+        for (int i = 0; i < contractCount; i++) {
+            probe.addServiceContractID(in.readString());
+        }
+
+        int instanceCount = in.readCount();
+        for (int i = 0; i < instanceCount; i++) {
+            probe.addServiceInstanceID(in.readString());
+        }
+
+        if (in.remaining() != 0) {
+            throw new ProbeParseException("Binary probe has [" + in.remaining() + "] trailing bytes");
+        }
+
+        return probe;
+    }
+
+    /**
+     * Return true if the value is a canonical (lower case) {@code urn:uuid:} id, which
+     * is exactly what comes back out of {@link #formatUuidUrn(long, long)}.
+     */
+    private static boolean isUuidUrn(String value) {
+        if (value.length() != UUID_URN_LENGTH || !value.startsWith(UUID_URN_PREFIX)) {
+            return false;
+        }
+        for (int i = UUID_URN_PREFIX.length(); i < UUID_URN_LENGTH; i++) {
+            char c = value.charAt(i);
+            if (isDashPosition(i)) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDashPosition(int i) {
+        int offset = i - UUID_URN_PREFIX.length();
+        return offset == 8 || offset == 13 || offset == 18 || offset == 23;
+    }
+
+    private static String formatUuidUrn(long most, long least) {
+        char[] chars = new char[UUID_URN_LENGTH];
+        UUID_URN_PREFIX.getChars(0, UUID_URN_PREFIX.length(), chars, 0);
+        int nibble = 0;
+        for (int i = UUID_URN_PREFIX.length(); i < UUID_URN_LENGTH; i++) {
+            if (isDashPosition(i)) {
+                chars[i] = '-';
+                continue;
+            }
+            long bits = nibble < 16 ? most >>> (60 - nibble * 4) : least >>> (60 - (nibble - 16) * 4);
+            chars[i] = HEX[(int) (bits & 0xF)];
+            nibble++;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * An unsynchronized growable output buffer.
+     */
+    private static class Writer {
+
+        private byte[] _buf;
+        private int _pos;
+
+        Writer(int capacity) {
+            _buf = new byte[capacity];
+        }
+
+        private void ensure(int extra) {
+            if (_pos + extra > _buf.length) {
+                _buf = Arrays.copyOf(_buf, Math.max(_buf.length * 2, _pos + extra));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            _buf[_pos++] = (byte) b;
+        }
+
+        void writeVarint(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                _buf[_pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            _buf[_pos++] = (byte) value;
+        }
+
+        void writeStrings(List<String> values) {
+            writeVarint(values.size());
+            for (String value : values) {
+                writeString(value);
+            }
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeByte(TAG_NULL);
+                return;
+            }
+
+            if (isUuidUrn(value)) {
+                ensure(17);
+                _buf[_pos++] = TAG_UUID_URN;
+                int nibble = 0;
+                int b = 0;
+                for (int i = UUID_URN_PREFIX.length(); i < UUID_URN_LENGTH; i++) {
+                    if (isDashPosition(i)) {
+                        continue;
+                    }
+                    b = (b << 4) | Character.digit(value.charAt(i), 16);
+                    if ((++nibble & 1) == 0) {
+                        _buf[_pos++] = (byte) b;
+                        b = 0;
+                    }
+                }
+                return;
+            }
+
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeByte(TAG_STRING);
+            writeVarint(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, _buf, _pos, bytes.length);
+            _pos += bytes.length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(_buf, _pos);
+        }
+    }
+
+    /**
+     * Bounds-checked cursor over the payload.
+     */
+    private static class Reader {
+
+        private final byte[] _buf;
+        private int _pos;
+
+        Reader(byte[] buf, int pos) {
+            _buf = buf;
+            _pos = pos;
+        }
+
+        int remaining() {
+            return _buf.length - _pos;
+        }
+
+        int readByte() throws ProbeParseException {
+            if (_pos >= _buf.length) {
+                throw new ProbeParseException("Binary probe is truncated");
+            }
+            return _buf[_pos++] & 0xFF;
+        }
+
+        int readVarint() throws ProbeParseException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new ProbeParseException("Binary probe has a malformed varint");
+        }
+
+        int readCount() throws ProbeParseException {
+            int count = readVarint();
+            // every entry takes at least one byte
+            if (count < 0 || count > remaining()) {
+                throw new ProbeParseException("Binary probe has a bad count [" + count + "]");
+            }
+            return count;
+        }
+
+        long readLong() throws ProbeParseException {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | readByte();
+            }
+            return value;
+        }
+
+        String readString() throws ProbeParseException {
+            int tag = readByte();
+            switch (tag) {
+                case TAG_NULL:
+                    return null;
+                case TAG_UUID_URN:
+                    return formatUuidUrn(readLong(), readLong());
+                case TAG_STRING:
+                    int length = readCount();
+                    String value = new String(_buf, _pos, length, StandardCharsets.UTF_8);
+                    _pos += length;
+                    return value;
+                default:
+                    throw new ProbeParseException("Binary probe has an unknown string tag [" + tag + "]");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.probe.transport.mqtt.wire;
+
+import ws.argo.wireline.probe.ProbeParseException;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of whole MQTT payloads.
+ *
+ * <p>A compressed payload is the frame header, the 4 byte length of the original
+ * payload and then a zlib stream.  If the stream was built with a preset dictionary
+ * the zlib header carries the dictionary's checksum, and the inflating side picks the
+ * matching dictionary out of the ones it knows about.  The built-in
+ * {@link ProbeDictionary} is always known.
+ *
+ * <p>Deflater and Inflater instances hold native memory and are expensive to create,
+ * so one of each is kept per thread.
+ */
+public class PayloadCompressor {
+
+    /**
+     * Bytes in front of the zlib stream.
+     */
+    public static final int HEADER_LENGTH = WireFormat.HEADER_LENGTH + 4;
+
+    private final byte[] _dictionary;
+    private final int _threshold;
+    private final Map<Long, byte[]> _dictionaries = new HashMap<>();
+
+    private final ThreadLocal<Deflater> _deflater = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_COMPRESSION);
+        }
+    };
+
+    private final ThreadLocal<Inflater> _inflater = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    /**
+     * Create a compressor.
+     *
+     * @param dictionary the preset dictionary to compress with, or null for none.  It
+     *                   is also added to the dictionaries known when inflating.
+     * @param threshold  payloads smaller than this are left alone
+     */
+    public PayloadCompressor(byte[] dictionary, int threshold) {
+        _dictionary = dictionary;
+        _threshold = threshold;
+
+        addDictionary(ProbeDictionary.bytes());
+        if (dictionary != null) {
+            addDictionary(dictionary);
+        }
+    }
+
+    private void addDictionary(byte[] dictionary) {
+        Adler32 adler = new Adler32();
+        adler.update(dictionary);
+        _dictionaries.put(adler.getValue(), dictionary);
+    }
+
+    /**
+     * Return true if the payload is a compressed frame.
+     *
+     * @param payload the raw message payload
+     * @return true if it needs inflating
+     */
+    public static boolean isCompressed(byte[] payload) {
+        return WireFormat.isFrame(payload, WireFormat.TYPE_DEFLATE);
+    }
+
+    /**
+     * Return the most bytes compressing a payload of the given length can produce.
+     * Deflate can expand incompressible data by 5 bytes per stored block, plus the
+     * zlib header and checksum.
+     *
+     * @param length the uncompressed length
+     * @return the worst case compressed frame length
+     */
+    public static long maxCompressedLength(int length) {
+        return HEADER_LENGTH + (long) length + 5L * (length / 16383 + 1) + 6;
+    }
+
+    /**
+     * Compress the payload if it is at least the threshold size and compressing it
+     * actually makes it smaller.
+     *
+     * @param payload the payload
+     * @return the compressed frame or the original payload
+     */
+    public byte[] compress(byte[] payload) {
+        if (payload.length < _threshold) {
+            return payload;
+        }
+
+        Deflater deflater = _deflater.get();
+        deflater.reset();
+        if (_dictionary != null) {
+            deflater.setDictionary(_dictionary);
+        }
+        deflater.setInput(payload);
+        deflater.finish();
+
+        byte[] out = new byte[(int) Math.min(maxCompressedLength(payload.length), Integer.MAX_VALUE - 8)];
+        ByteBuffer.wrap(out).put(WireFormat.MAGIC).put(WireFormat.TYPE_DEFLATE).putInt(payload.length);
+
+        int length = HEADER_LENGTH;
+        while (!deflater.finished() && length < out.length) {
+            length += deflater.deflate(out, length, out.length - length);
+        }
+
+        if (!deflater.finished() || length >= payload.length) {
+            return payload;
+        }
+        return Arrays.copyOf(out, length);
+    }
+
+    /**
+     * Inflate a compressed frame.
+     *
+     * @param payload   the compressed frame
+     * @param maxLength the largest original payload that will be accepted
+     * @return the original payload
+     * @throws ProbeParseException if the frame is corrupt, too big or needs an unknown dictionary
+     */
+    public byte[] decompress(byte[] payload, int maxLength) throws ProbeParseException {
+        if (!isCompressed(payload) || payload.length < HEADER_LENGTH) {
+            throw new ProbeParseException("Payload is not a compressed probe");
+        }
+
+        int length = ByteBuffer.wrap(payload, WireFormat.HEADER_LENGTH, 4).getInt();
+        if (length < 0 || length > maxLength) {
+            throw new ProbeParseException("Compressed probe is too large [" + length + "] bytes");
+        }
+
+        Inflater inflater = _inflater.get();
+        inflater.reset();
+        inflater.setInput(payload, HEADER_LENGTH, payload.length - HEADER_LENGTH);
+
+        byte[] out = new byte[length];
+        int inflated = 0;
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(out, inflated, out.length - inflated);
+                inflated += n;
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        byte[] dictionary = _dictionaries.get(inflater.getAdler() & 0xFFFFFFFFL);
+                        if (dictionary == null) {
+                            throw new ProbeParseException("Compressed probe needs an unknown dictionary [" + inflater.getAdler() + "]");
+                        }
+                        inflater.setDictionary(dictionary);
+                    } else if (inflater.needsInput() || inflated == out.length) {
+                        break;
+                    }
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ProbeParseException("Compressed probe is corrupt", e);
+        }
+
+        if (!inflater.finished() || inflated != length) {
+            throw new ProbeParseException("Compressed probe did not inflate to its declared length [" + length + "]");
+        }
+        return out;
+    }
+
+}
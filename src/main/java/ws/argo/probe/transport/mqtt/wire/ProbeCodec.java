@@ -0,0 +1,57 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.probe.transport.mqtt.wire;
+
+import ws.argo.wireline.probe.ProbeParseException;
+import ws.argo.wireline.probe.ProbeWrapper;
+
+/**
+ * Turns a wireline probe into MQTT message bytes and back again.
+ *
+ * <p>Implementations must be thread safe as one instance is shared by every message.
+ */
+public interface ProbeCodec {
+
+    /**
+     * Return the name used to select this codec in the configuration.
+     *
+     * @return the codec name
+     */
+    String name();
+
+    /**
+     * Encode the probe.
+     *
+     * @param probe the probe to encode
+     * @return the encoded bytes
+     * @throws ProbeParseException if the probe can't be encoded
+     */
+    byte[] encode(ProbeWrapper probe) throws ProbeParseException;
+
+    /**
+     * Decode a probe.
+     *
+     * @param payload the encoded bytes, which must not be changed afterwards
+     * @return the probe, holding the payload
+     * @throws ProbeParseException if the payload isn't a valid probe
+     */
+    ReceivedProbe decode(byte[] payload) throws ProbeParseException;
+
+}
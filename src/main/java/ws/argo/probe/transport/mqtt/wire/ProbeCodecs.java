@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.probe.transport.mqtt.wire;
+
+/**
+ * Looks up the {@link ProbeCodec} for a configured wire format or for a payload
+ * that has arrived off the wire.
+ */
+public final class ProbeCodecs {
+
+    public static final ProbeCodec XML = new XmlProbeCodec();
+    public static final ProbeCodec BINARY = new BinaryProbeCodec();
+    public static final ProbeCodec STAX = new StaxProbeCodec();
+
+    private ProbeCodecs() {
+    }
+
+    /**
+     * Return the codec with the given name.
+     *
+     * @param name the wire format name, e.g. "xml" or "binary", or "stax" for XML
+     *             decoded with the streaming parser
+     * @return the codec or null if there isn't one by that name
+     */
+    public static ProbeCodec forName(String name) {
+        if (XML.name().equalsIgnoreCase(name)) {
+            return XML;
+        }
+        if (BINARY.name().equalsIgnoreCase(name)) {
+            return BINARY;
+        }
+        if (STAX.name().equalsIgnoreCase(name)) {
+            return STAX;
+        }
+        return null;
+    }
+
+    /**
+     * Work out which codec wrote the payload from its first bytes.  Anything that
+     * isn't a binary frame is assumed to be XML.
+     *
+     * @param payload a single (not enveloped) probe payload
+     * @return the codec that can decode it
+     */
+    public static ProbeCodec forPayload(byte[] payload) {
+        return forPayload(payload, XML);
+    }
+
+    /**
+     * Work out which codec wrote the payload from its first bytes, using the given
+     * codec for anything that isn't a binary frame.
+     *
+     * @param payload  a single (not enveloped) probe payload
+     * @param xmlCodec the codec that decodes XML payloads
+     * @return the codec that can decode it
+     */
+    public static ProbeCodec forPayload(byte[] payload, ProbeCodec xmlCodec) {
+        if (WireFormat.isFrame(payload, WireFormat.TYPE_BINARY)) {
+            return BINARY;
+        }
+        return xmlCodec;
+    }
+
+    /**
+     * Return true if the payload is in the wire format the codec writes, so a sender
+     * using the codec can publish it without encoding the probe again.
+     *
+     * @param payload a single (not enveloped) probe payload
+     * @param codec   the sender's codec
+     * @return true if the codec would have written a payload of the same format
+     */
+    public static boolean isWrittenBy(byte[] payload, ProbeCodec codec) {
+        return WireFormat.isFrame(payload, WireFormat.TYPE_BINARY) == (codec == BINARY);
+    }
+
+}
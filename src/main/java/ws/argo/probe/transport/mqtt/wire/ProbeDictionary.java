@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.probe.transport.mqtt.wire;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * The built-in preset dictionary for deflate compressed probes.
+ *
+ * <p>It holds the fragments that turn up in nearly every probe - the XML declaration,
+ * namespace, attribute and element names and the usual respond-to URL shapes - so
+ * that even a small probe compresses well.  zlib finds matches near the end of the
+ * dictionary more cheaply, so the most common fragments come last.
+ *
+ * <p>Changing this text changes its checksum and older responders would no longer be
+ * able to inflate probes that use it.  Add a new dictionary instead.
+ */
+public final class ProbeDictionary {
+
+    /**
+     * Configuration value that selects the built-in dictionary.
+     */
+    public static final String BUILTIN = "builtin";
+
+    /**
+     * Configuration value that turns the preset dictionary off.
+     */
+    public static final String NONE = "none";
+
+    private static final String TEXT =
+            "</serviceInstanceID><serviceInstanceID></siids><siids>"
+            + "</serviceContractID><serviceContractID></scids><scids>"
+            + "/AsynchListener/api/responseHandler/probeResponse</respondTo>"
+            + "<respondTo label=\"external\">https://<respondTo label=\"internal\">http://"
+            + ":4009</respondTo></ra><ra>"
+            + " respondToPayloadType=\"urn:schemas-ws-argo-org:2.0:payload-type:xml\""
+            + " respondToPayloadType=\"urn:schemas-ws-argo-org:2.0:payload-type:json\""
+            + " DESVersion=\"urn:uuid:918b5a45-1d24-4a09-94bc-d4ac9f8e0ed3\""
+            + " client=\"\" id=\"urn:uuid:"
+            + "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+            + "<probe xmlns=\"urn:schemas-ws-argo-probe:2.0\"";
+
+    private static final byte[] BYTES = TEXT.getBytes(StandardCharsets.UTF_8);
+
+    private ProbeDictionary() {
+    }
+
+    /**
+     * Return a copy of the dictionary bytes.
+     *
+     * @return the dictionary
+     */
+    public static byte[] bytes() {
+        return BYTES.clone();
+    }
+
+    /**
+     * Load the dictionary named in the configuration.  This is either {@link #BUILTIN},
+     * {@link #NONE} or the path of a file holding the dictionary bytes.
+     *
+     * @param setting the configured value
+     * @return the dictionary bytes or null for none
+     * @throws IOException if the dictionary file can't be read
+     */
+    public static byte[] load(String setting) throws IOException {
+        if (setting == null || setting.trim().isEmpty() || NONE.equalsIgnoreCase(setting.trim())) {
+            return null;
+        }
+        if (BUILTIN.equalsIgnoreCase(setting.trim())) {
+            return bytes();
+        }
+        return Files.readAllBytes(Paths.get(setting.trim()));
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.probe.transport.mqtt.wire;
+
+import ws.argo.wireline.probe.ProbeParseException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An envelope packs several probe payloads into a single MQTT message.
+ *
+ * <p>The layout is the frame header, a 4 byte entry count and then, for each entry,
+ * a 4 byte length followed by that many bytes of probe payload.  All integers are
+ * big-endian.
+ */
+public final class ProbeEnvelope {
+
+    /**
+     * Bytes added to the envelope for every entry.
+     */
+    public static final int ENTRY_OVERHEAD = 4;
+
+    /**
+     * Bytes of the envelope that don't belong to any entry.
+     */
+    public static final int ENVELOPE_OVERHEAD = WireFormat.HEADER_LENGTH + 4;
+
+    private ProbeEnvelope() {
+    }
+
+    /**
+     * Return true if the payload is an envelope.
+     *
+     * @param payload the raw message payload
+     * @return true if the payload is an envelope
+     */
+    public static boolean isEnvelope(byte[] payload) {
+        return WireFormat.isFrame(payload, WireFormat.TYPE_ENVELOPE);
+    }
+
+    /**
+     * Pack the probe payloads into one envelope.
+     *
+     * @param entries the probe payloads
+     * @return the envelope bytes
+     */
+    public static byte[] pack(List<byte[]> entries) {
+        int size = ENVELOPE_OVERHEAD;
+        for (byte[] entry : entries) {
+            size += ENTRY_OVERHEAD + entry.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(WireFormat.MAGIC).put(WireFormat.TYPE_ENVELOPE);
+        buffer.putInt(entries.size());
+        for (byte[] entry : entries) {
+            buffer.putInt(entry.length).put(entry);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Unpack an envelope back into the probe payloads it carries.
+     *
+     * @param payload the envelope bytes
+     * @return the probe payloads
+     * @throws ProbeParseException if the payload is not a well formed envelope
+     */
+    public static List<byte[]> unpack(byte[] payload) throws ProbeParseException {
+        if (!isEnvelope(payload)) {
+            throw new ProbeParseException("Payload is not a probe envelope");
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(payload, WireFormat.HEADER_LENGTH, payload.length - WireFormat.HEADER_LENGTH);
+            int count = buffer.getInt();
+            // every entry needs at least its length, so a bigger count can't be genuine
+            if (count < 0 || count > buffer.remaining() / ENTRY_OVERHEAD) {
+                throw new ProbeParseException("Probe envelope has a bad entry count [" + count + "]");
+            }
+
+            List<byte[]> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    throw new ProbeParseException("Probe envelope entry [" + i + "] has a bad length [" + length + "]");
+                }
+                byte[] entry = new byte[length];
+                buffer.get(entry);
+                entries.add(entry);
+            }
+            return entries;
+        } catch (BufferUnderflowException e) {
+            throw new ProbeParseException("Probe envelope is truncated", e);
+        }
+    }
+
+}
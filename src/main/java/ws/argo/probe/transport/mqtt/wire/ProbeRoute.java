@@ -0,0 +1,242 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.probe.transport.mqtt.wire;
+
+import ws.argo.wireline.probe.ProbeParseException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The path a probe has taken through repeater gateways: how many times it has been
+ * repeated and the ids of the gateways that repeated it.
+ *
+ * <p>The probe XML has nowhere to carry this, so a repeated probe's payload is wrapped
+ * in a route frame.  The layout is the frame header, a 1 byte hop count, a 1 byte
+ * gateway count and, for each gateway, a 2 byte length followed by its UTF-8 id.  The
+ * probe payload itself follows, up to the end of the frame.  Integers are big-endian.
+ */
+public final class ProbeRoute {
+
+    /**
+     * The route of a probe that hasn't been repeated.
+     */
+    public static final ProbeRoute ORIGIN = new ProbeRoute(0, Collections.<String>emptyList());
+
+    /**
+     * The most hops, or gateways, a route can record.
+     */
+    public static final int MAX_HOPS = 255;
+
+    private final int _hops;
+    private final List<String> _gateways;
+
+    private ProbeRoute(int hops, List<String> gateways) {
+        _hops = hops;
+        _gateways = gateways;
+    }
+
+    /**
+     * Return the number of times the probe has been repeated.
+     *
+     * @return the hop count
+     */
+    public int hops() {
+        return _hops;
+    }
+
+    /**
+     * Return the ids of the gateways that repeated the probe, oldest first.
+     *
+     * @return the gateway ids
+     */
+    public List<String> gateways() {
+        return _gateways;
+    }
+
+    /**
+     * Return true if the gateway has already repeated the probe.
+     *
+     * @param gatewayId the gateway id
+     * @return true if the gateway is on the route
+     */
+    public boolean visited(String gatewayId) {
+        return _gateways.contains(gatewayId);
+    }
+
+    /**
+     * Return the route extended by one more hop through the gateway.
+     *
+     * @param gatewayId the id of the gateway repeating the probe
+     * @return the new route
+     */
+    public ProbeRoute forwardedBy(String gatewayId) {
+        if (_hops >= MAX_HOPS || _gateways.size() >= MAX_HOPS) {
+            throw new IllegalStateException("Probe route is already " + MAX_HOPS + " hops long");
+        }
+        List<String> gateways = new ArrayList<>(_gateways.size() + 1);
+        gateways.addAll(_gateways);
+        gateways.add(gatewayId);
+        return new ProbeRoute(_hops + 1, Collections.unmodifiableList(gateways));
+    }
+
+    /**
+     * Return a route covering both this one and the other, for a probe standing in for
+     * probes that came different ways.  It has the larger hop count and every gateway
+     * on either route, this route's first, up to {@link #MAX_HOPS} of them.
+     *
+     * @param other the other route
+     * @return the merged route
+     */
+    public ProbeRoute mergedWith(ProbeRoute other) {
+        if (other._gateways.isEmpty() || _gateways.containsAll(other._gateways)) {
+            return other._hops > _hops ? new ProbeRoute(other._hops, _gateways) : this;
+        }
+        List<String> gateways = new ArrayList<>(_gateways);
+        for (String gateway : other._gateways) {
+            if (gateways.size() < MAX_HOPS && !gateways.contains(gateway)) {
+                gateways.add(gateway);
+            }
+        }
+        return new ProbeRoute(Math.max(_hops, other._hops), Collections.unmodifiableList(gateways));
+    }
+
+    /**
+     * Wrap the probe payload in a frame carrying this route.
+     *
+     * @param payload a single probe payload
+     * @return the route frame
+     */
+    public byte[] wrap(byte[] payload) {
+        List<byte[]> ids = new ArrayList<>(_gateways.size());
+        int size = WireFormat.HEADER_LENGTH + 2;
+        for (String gateway : _gateways) {
+            byte[] id = gateway.getBytes(StandardCharsets.UTF_8);
+            if (id.length > 0xFFFF) {
+                throw new IllegalArgumentException("Gateway id is too long [" + id.length + "] bytes");
+            }
+            ids.add(id);
+            size += 2 + id.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size + payload.length);
+        buffer.put(WireFormat.MAGIC).put(WireFormat.TYPE_ROUTE);
+        buffer.put((byte) _hops).put((byte) ids.size());
+        for (byte[] id : ids) {
+            buffer.putShort((short) id.length).put(id);
+        }
+        buffer.put(payload);
+        return buffer.array();
+    }
+
+    /**
+     * Return true if the payload is a route frame.
+     *
+     * @param payload a single probe payload
+     * @return true if the payload carries a route
+     */
+    public static boolean isRouted(byte[] payload) {
+        return WireFormat.isFrame(payload, WireFormat.TYPE_ROUTE);
+    }
+
+    /**
+     * Read the route from a route frame.
+     *
+     * @param payload the route frame
+     * @return the route
+     * @throws ProbeParseException if the payload is not a well formed route frame
+     */
+    public static ProbeRoute read(byte[] payload) throws ProbeParseException {
+        ByteBuffer buffer = header(payload);
+        try {
+            int hops = buffer.get() & 0xFF;
+            int count = buffer.get() & 0xFF;
+            String[] gateways = new String[count];
+            for (int i = 0; i < count; i++) {
+                int length = buffer.getShort() & 0xFFFF;
+                if (length > buffer.remaining()) {
+                    throw new ProbeParseException("Probe route gateway [" + i + "] has a bad length [" + length + "]");
+                }
+                gateways[i] = new String(payload, buffer.position(), length, StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + length);
+            }
+            return new ProbeRoute(hops, Collections.unmodifiableList(Arrays.asList(gateways)));
+        } catch (BufferUnderflowException e) {
+            throw new ProbeParseException("Probe route is truncated", e);
+        }
+    }
+
+    /**
+     * Return the probe payload carried by a route frame.
+     *
+     * @param payload the route frame
+     * @return the probe payload
+     * @throws ProbeParseException if the payload is not a well formed route frame
+     */
+    public static byte[] unwrap(byte[] payload) throws ProbeParseException {
+        return Arrays.copyOfRange(payload, headerLength(payload), payload.length);
+    }
+
+    /**
+     * Return the length of the route frame's header, which is where its probe payload
+     * starts.
+     *
+     * @param payload the route frame
+     * @return the offset of the probe payload
+     * @throws ProbeParseException if the payload is not a well formed route frame
+     */
+    public static int headerLength(byte[] payload) throws ProbeParseException {
+        ByteBuffer buffer = header(payload);
+        try {
+            buffer.get();
+            int count = buffer.get() & 0xFF;
+            for (int i = 0; i < count; i++) {
+                int length = buffer.getShort() & 0xFFFF;
+                if (length > buffer.remaining()) {
+                    throw new ProbeParseException("Probe route gateway [" + i + "] has a bad length [" + length + "]");
+                }
+                buffer.position(buffer.position() + length);
+            }
+            return buffer.position();
+        } catch (BufferUnderflowException e) {
+            throw new ProbeParseException("Probe route is truncated", e);
+        }
+    }
+
+    private static ByteBuffer header(byte[] payload) throws ProbeParseException {
+        if (!isRouted(payload)) {
+            throw new ProbeParseException("Payload is not a probe route");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        buffer.position(WireFormat.HEADER_LENGTH);
+        return buffer;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + _hops + " hops via " + _gateways + "]";
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.probe.transport.mqtt.wire;
+
+import ws.argo.wireline.probe.ProbeWrapper;
+
+/**
+ * A probe decoded off the wire, which keeps the payload it was decoded from and, if it
+ * was repeated, the route it took.
+ *
+ * <p>The Responder hands probe handlers the {@code ProbeWrapper} its transport decoded,
+ * so a repeater can tell where the probe has been (see {@link #routeOf(ProbeWrapper)})
+ * and publish the probe's own bytes rather than encoding it all over again (see
+ * {@link #payloadOf(ProbeWrapper)}).  Both belong to this probe alone and go when it
+ * does, so the same probe id arriving on another transport is a probe of its own.
+ */
+public final class ReceivedProbe extends ProbeWrapper {
+
+    private final byte[] _payload;
+    private ProbeRoute _route = ProbeRoute.ORIGIN;
+
+    /**
+     * Create a probe for a payload being decoded.
+     *
+     * @param probeId the probe id
+     * @param payload the encoded probe, without any route, envelope or compression, which
+     *                must not be changed afterwards
+     */
+    public ReceivedProbe(String probeId, byte[] payload) {
+        super(probeId);
+        _payload = payload;
+    }
+
+    /**
+     * Set the route the probe arrived by.  This must be done before the probe is handed
+     * on.
+     *
+     * @param route the route read from the probe's route frame
+     */
+    public void setRoute(ProbeRoute route) {
+        _route = route;
+    }
+
+    /**
+     * Return the route a probe arrived by.
+     *
+     * @param probe the probe
+     * @return the route, or {@link ProbeRoute#ORIGIN} if the probe wasn't repeated or
+     *     wasn't decoded off the wire
+     */
+    public static ProbeRoute routeOf(ProbeWrapper probe) {
+        return probe instanceof ReceivedProbe ? ((ReceivedProbe) probe)._route : ProbeRoute.ORIGIN;
+    }
+
+    /**
+     * Return the payload the probe was decoded from.
+     *
+     * @param probe the probe
+     * @return the encoded probe, or null if the probe wasn't decoded off the wire
+     */
+    public static byte[] payloadOf(ProbeWrapper probe) {
+        return probe instanceof ReceivedProbe ? ((ReceivedProbe) probe)._payload : null;
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.probe.transport.mqtt.wire;
+
+import ws.argo.wireline.probe.ProbeParseException;
+import ws.argo.wireline.probe.ProbeWrapper;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+
+/**
+ * The probe XML again, but decoded with a streaming StAX pull parser instead of JAXB.
+ *
+ * <p>The {@link ProbeWrapper} is filled in as the elements go by, straight from the
+ * payload bytes, so no intermediate String or JAXB object tree is built.  This matters
+ * most for big probes with many respond-to URLs and contract ids.  Encoding is the same
+ * as {@link XmlProbeCodec} and the two decode the same payloads.
+ *
+ * <p>DTDs and external entities are not supported, so a payload can't make the
+ * parser fetch anything.
+ */
+public class StaxProbeCodec implements ProbeCodec {
+
+    public static final String NAME = "stax";
+
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(ProbeWrapper probe) throws ProbeParseException {
+        return ProbeCodecs.XML.encode(probe);
+    }
+
+    @Override
+    public ReceivedProbe decode(byte[] payload) throws ProbeParseException {
+        XMLStreamReader reader = null;
+        try {
+            // the parser works out the encoding from the declaration, UTF-8 without one
+            reader = FACTORY.createXMLStreamReader(new ByteArrayInputStream(payload));
+            reader.nextTag();
+            if (!"probe".equals(reader.getLocalName())) {
+                throw new ProbeParseException("Expected a probe element but found [" + reader.getLocalName() + "]");
+            }
+
+            ReceivedProbe probe = new ReceivedProbe(reader.getAttributeValue(null, "id"), payload);
+            probe.setClientId(reader.getAttributeValue(null, "client"));
+            probe.setDESVersion(reader.getAttributeValue(null, "DESVersion"));
+            probe.setRespondToPayloadType(reader.getAttributeValue(null, "respondToPayloadType"));
+
+            int depth = 1;
+            while (depth > 0) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                } else if (event == XMLStreamConstants.START_ELEMENT) {
+                    // getElementText consumes the end element, so those don't change the depth
+                    switch (reader.getLocalName()) {
+                        case "respondTo":
+                            String label = reader.getAttributeValue(null, "label");
+                            probe.addRespondToURL(label, reader.getElementText());
+                            break;
+                        case "serviceContractID":
+                            probe.addServiceContractID(reader.getElementText());
+                            break;
+                        case "serviceInstanceID":
+                            probe.addServiceInstanceID(reader.getElementText());
+                            break;
+                        default:
+                            depth++;
+                            break;
+                    }
+                } else if (event == XMLStreamConstants.END_DOCUMENT) {
+                    throw new ProbeParseException("Probe XML ended before the probe element was closed");
+                }
+            }
+            return probe;
+        } catch (XMLStreamException e) {
+            throw new ProbeParseException("Unable to parse probe XML", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // nothing more to read
+                }
+            }
+        }
+    }
+
+}
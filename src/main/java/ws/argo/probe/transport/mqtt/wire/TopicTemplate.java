@@ -0,0 +1,249 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.probe.transport.mqtt.wire;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Works out which MQTT topic a probe is published on, so that responders can subscribe
+ * to just the probes they might answer and let the broker do the filtering.
+ *
+ * <p>The configured topic may contain one placeholder, which must make up a whole
+ * level of the topic:
+ * <ul>
+ * <li>{@value #CONTRACT_ID} - replaced with the probe's service contract ID.</li>
+ * <li>{@value #PARTITION} - replaced with a partition number from 0 to
+ * {@code partitions - 1}, worked out from a hash of the service contract ID.</li>
+ * </ul>
+ * A probe that names no service contract is looking for every service, so it goes to
+ * the {@value #ALL} topic, which every responder subscribes to.  Each probe is published
+ * on exactly one topic, so a responder subscribed to several topics never gets the same
+ * probe twice.  A probe whose contracts all land on one topic goes there.  One whose
+ * contracts land on different topics goes to the {@value #ALL} topic instead, which
+ * costs the broker-side filtering for that probe but still reaches every responder that
+ * might answer it.
+ *
+ * <p>A topic with no placeholder behaves exactly as before - every probe goes to it.
+ */
+public final class TopicTemplate {
+
+    public static final String CONTRACT_ID = "{contractId}";
+    public static final String PARTITION = "{partition}";
+
+    /**
+     * The level used for probes that name no service contract.
+     */
+    public static final String ALL = "all";
+
+    /**
+     * Contract IDs are assumed to be no longer than this when sizing messages.
+     */
+    static final int MAX_CONTRACT_ID_LENGTH = 256;
+
+    private final String _prefix;
+    private final String _suffix;
+    private final String _placeholder;
+    private final int _partitions;
+    private final Set<String> _fixed;
+
+    private TopicTemplate(String prefix, String placeholder, String suffix, int partitions) {
+        _prefix = prefix;
+        _placeholder = placeholder;
+        _suffix = suffix;
+        _partitions = partitions;
+        _fixed = placeholder == null ? Collections.singleton(prefix) : null;
+    }
+
+    /**
+     * Parse a topic template.
+     *
+     * @param template   the configured topic
+     * @param partitions the number of partitions used by {@value #PARTITION}
+     * @return the template
+     * @throws IllegalArgumentException if the template is not valid
+     */
+    public static TopicTemplate parse(String template, int partitions) {
+        String placeholder = null;
+        if (template.contains(CONTRACT_ID)) {
+            placeholder = CONTRACT_ID;
+        }
+        if (template.contains(PARTITION)) {
+            if (placeholder != null) {
+                throw new IllegalArgumentException("Topic [" + template + "] can only use one of " + CONTRACT_ID + " and " + PARTITION);
+            }
+            placeholder = PARTITION;
+            if (partitions < 1) {
+                throw new IllegalArgumentException("Topic [" + template + "] needs at least one partition [" + partitions + "]");
+            }
+        }
+        if (placeholder == null) {
+            return new TopicTemplate(template, null, "", partitions);
+        }
+
+        int start = template.indexOf(placeholder);
+        int end = start + placeholder.length();
+        if (template.indexOf(placeholder, end) >= 0) {
+            throw new IllegalArgumentException("Topic [" + template + "] can only use " + placeholder + " once");
+        }
+        if ((start > 0 && template.charAt(start - 1) != '/')
+                || (end < template.length() && template.charAt(end) != '/')) {
+            throw new IllegalArgumentException("Topic [" + template + "] must use " + placeholder + " as a whole topic level");
+        }
+        return new TopicTemplate(template.substring(0, start), placeholder, template.substring(end), partitions);
+    }
+
+    /**
+     * Return true if probes are spread over more than one topic.
+     *
+     * @return true if the template has a placeholder
+     */
+    public boolean isPartitioned() {
+        return _placeholder != null;
+    }
+
+    /**
+     * Return the topic for a single service contract.
+     *
+     * @param contractId the service contract ID, or null for the {@value #ALL} topic
+     * @return the topic
+     */
+    public String topicFor(String contractId) {
+        if (_placeholder == null) {
+            return _prefix;
+        }
+        return _prefix + levelFor(contractId) + _suffix;
+    }
+
+    /**
+     * Return the one topic a probe naming these service contracts is published on.
+     *
+     * @param contractIds the probe's service contract IDs
+     * @return the topic of its contracts if they share one, otherwise the {@value #ALL} topic
+     */
+    public String topicForProbe(Collection<String> contractIds) {
+        if (_placeholder == null) {
+            return _prefix;
+        }
+        String topic = null;
+        if (contractIds != null) {
+            for (String contractId : contractIds) {
+                String contractTopic = topicFor(contractId);
+                if (topic != null && !topic.equals(contractTopic)) {
+                    // spread over several topics - sending it to each would deliver it
+                    // more than once to any responder subscribed to more than one
+                    return topicFor(null);
+                }
+                topic = contractTopic;
+            }
+        }
+        return topic != null ? topic : topicFor(null);
+    }
+
+    /**
+     * Return the topics a responder answering these service contracts subscribes to.  It
+     * always includes the {@value #ALL} topic.  If no contracts are given every topic
+     * the template can produce is covered by a single wildcard subscription.
+     *
+     * @param contractIds the service contract IDs the responder answers
+     * @return the topic filters
+     */
+    public Set<String> subscriptionsFor(Collection<String> contractIds) {
+        if (_fixed != null) {
+            return _fixed;
+        }
+        if (contractIds == null || contractIds.isEmpty()) {
+            return Collections.singleton(_prefix + "+" + _suffix);
+        }
+        Set<String> topics = new LinkedHashSet<>();
+        topics.add(topicFor(null));
+        for (String contractId : contractIds) {
+            topics.add(topicFor(contractId));
+        }
+        return topics;
+    }
+
+    /**
+     * Return the shared subscription filter for a topic filter, so that the broker hands
+     * each message to just one of the subscribers in the group.
+     *
+     * @param group  the share group name
+     * @param filter the topic filter
+     * @return the {@code $share/<group>/<filter>} filter
+     * @throws IllegalArgumentException if the group name is not valid
+     */
+    public static String shared(String group, String filter) {
+        if (group.isEmpty() || group.contains("/") || group.contains("+") || group.contains("#")) {
+            throw new IllegalArgumentException("Share group [" + group + "] must not be empty or contain '/', '+' or '#'");
+        }
+        return "$share/" + group + "/" + filter;
+    }
+
+    /**
+     * Return the longest topic, in bytes, that a probe could be published on.
+     *
+     * @return the topic length
+     */
+    public int maxTopicLength() {
+        int fixedLength = WireFormat.utf8Length(_prefix) + WireFormat.utf8Length(_suffix);
+        if (_placeholder == null) {
+            return fixedLength;
+        } else if (_placeholder.equals(PARTITION)) {
+            return fixedLength + Math.max(ALL.length(), String.valueOf(_partitions - 1).length());
+        } else {
+            return fixedLength + MAX_CONTRACT_ID_LENGTH;
+        }
+    }
+
+    private String levelFor(String contractId) {
+        if (contractId == null || contractId.isEmpty()) {
+            return ALL;
+        }
+        if (_placeholder.equals(PARTITION)) {
+            return String.valueOf((contractId.hashCode() & Integer.MAX_VALUE) % _partitions);
+        }
+        return sanitize(contractId);
+    }
+
+    /**
+     * Contract IDs are usually URNs, but anything that would change the shape of the
+     * topic is replaced with an underscore.
+     */
+    private static String sanitize(String contractId) {
+        if (contractId.equals(ALL)) {
+            // don't let a contract called "all" receive every catch-all probe
+            return "_" + ALL;
+        }
+        char[] chars = null;
+        for (int i = 0; i < contractId.length(); i++) {
+            char c = contractId.charAt(i);
+            if (c == '/' || c == '+' || c == '#' || c == '\u0000') {
+                if (chars == null) {
+                    chars = contractId.toCharArray();
+                }
+                chars[i] = '_';
+            }
+        }
+        return chars == null ? contractId : new String(chars);
+    }
+
+}
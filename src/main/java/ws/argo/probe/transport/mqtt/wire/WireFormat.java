@@ -0,0 +1,125 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.probe.transport.mqtt.wire;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Constants that describe the layout of MQTT probe payloads on the wire.
+ *
+ * <p>A plain probe is just the probe XML.  Anything else starts with a two byte
+ * frame header: the {@link #MAGIC} byte followed by a frame type.  The magic byte
+ * is a UTF-8 continuation byte, so it can never be the first byte of an XML
+ * document and the two kinds of payload can be told apart by looking at the
+ * first byte alone.
+ */
+public final class WireFormat {
+
+    /**
+     * First byte of every framed payload.
+     */
+    public static final byte MAGIC = (byte) 0xA7;
+
+    /**
+     * Frame type of an envelope carrying several probe payloads.
+     */
+    public static final byte TYPE_ENVELOPE = 'E';
+
+    /**
+     * Frame type of a probe in the compact binary encoding.
+     */
+    public static final byte TYPE_BINARY = 'B';
+
+    /**
+     * Frame type of a deflate compressed payload.  The compressed bytes are themselves
+     * a complete payload - plain XML or another frame.
+     */
+    public static final byte TYPE_DEFLATE = 'Z';
+
+    /**
+     * Frame type of a probe payload wrapped with the route it took through repeater
+     * gateways (see {@link ProbeRoute}).
+     */
+    public static final byte TYPE_ROUTE = 'R';
+
+    /**
+     * The largest "remaining length" an MQTT packet can declare (256 MB).
+     */
+    public static final int MQTT_MAX_REMAINING_LENGTH = 268435455;
+
+    /**
+     * Length of the frame header (magic byte and frame type).
+     */
+    public static final int HEADER_LENGTH = 2;
+
+    private WireFormat() {
+    }
+
+    /**
+     * Return the largest payload an MQTT PUBLISH can carry on the given topic.  The
+     * topic name and packet identifier share the packet's remaining length with the
+     * payload.
+     *
+     * @param topic the topic the payload will be published on
+     * @param qos   the quality of service it will be published with
+     * @return the payload limit in bytes
+     */
+    public static int maxMqttPayload(String topic, int qos) {
+        return maxMqttPayload(utf8Length(topic), qos);
+    }
+
+    /**
+     * Return the largest payload an MQTT PUBLISH can carry on a topic of the given length.
+     *
+     * @param topicLength the length of the topic in bytes
+     * @param qos         the quality of service it will be published with
+     * @return the payload limit in bytes
+     */
+    public static int maxMqttPayload(int topicLength, int qos) {
+        int packetIdLength = qos > 0 ? 2 : 0;
+        return MQTT_MAX_REMAINING_LENGTH - 2 - topicLength - packetIdLength;
+    }
+
+    static int utf8Length(String s) {
+        return s.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Return true if the payload starts with a frame header.
+     *
+     * @param payload the raw message payload
+     * @return true if the payload is framed
+     */
+    public static boolean isFramed(byte[] payload) {
+        return payload != null && payload.length >= HEADER_LENGTH && payload[0] == MAGIC;
+    }
+
+    /**
+     * Return true if the payload is a frame of the given type.
+     *
+     * @param payload the raw message payload
+     * @param type    the frame type
+     * @return true if the payload is a frame of that type
+     */
+    public static boolean isFrame(byte[] payload, byte type) {
+        return isFramed(payload) && payload[1] == type;
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.probe.transport.mqtt.wire;
+
+import ws.argo.wireline.probe.ProbeParseException;
+import ws.argo.wireline.probe.ProbeWrapper;
+import ws.argo.wireline.probe.xml.Probe;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The original wire format - the probe XML, UTF-8 encoded.
+ *
+ * <p>Decoding doesn't go through {@code XMLSerializer}, which builds a new JAXB context
+ * for every probe and needs the payload copied into a String first.  The context is
+ * built once and shared, each thread keeps its own unmarshaller (they aren't thread
+ * safe) and the XML is parsed straight from the payload bytes, in the encoding it
+ * declares or UTF-8 if it doesn't declare one.
+ */
+public class XmlProbeCodec implements ProbeCodec {
+
+    public static final String NAME = "xml";
+
+    private static final JAXBContext CONTEXT;
+
+    static {
+        try {
+            CONTEXT = JAXBContext.newInstance(Probe.class);
+        } catch (JAXBException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final ThreadLocal<Unmarshaller> UNMARSHALLER = new ThreadLocal<Unmarshaller>() {
+        @Override
+        protected Unmarshaller initialValue() {
+            try {
+                return CONTEXT.createUnmarshaller();
+            } catch (JAXBException e) {
+                throw new IllegalStateException("Unable to create probe unmarshaller", e);
+            }
+        }
+    };
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(ProbeWrapper probe) throws ProbeParseException {
+        return probe.asXML().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public ReceivedProbe decode(byte[] payload) throws ProbeParseException {
+        Probe xmlProbe;
+        try {
+            xmlProbe = (Probe) UNMARSHALLER.get().unmarshal(new ByteArrayInputStream(payload));
+        } catch (JAXBException | ClassCastException e) {
+            throw new ProbeParseException("Unable to unmarshal probe XML", e);
+        }
+
+        ReceivedProbe probe = new ReceivedProbe(xmlProbe.getId(), payload);
+        probe.setClientId(xmlProbe.getClient());
+        probe.setDESVersion(xmlProbe.getDESVersion());
+        probe.setRespondToPayloadType(xmlProbe.getRespondToPayloadType());
+
+        if (xmlProbe.getRa() != null) {
+            for (Probe.Ra.RespondTo respondTo : xmlProbe.getRa().getRespondTo()) {
+                probe.addRespondToURL(respondTo.getLabel(), respondTo.getValue());
+            }
+        }
+        if (xmlProbe.getScids() != null) {
+            for (String contractId : xmlProbe.getScids().getServiceContractID()) {
+                probe.addServiceContractID(contractId);
+            }
+        }
+        if (xmlProbe.getSiids() != null) {
+            for (String instanceId : xmlProbe.getSiids().getServiceInstanceID()) {
+                probe.addServiceInstanceID(instanceId);
+            }
+        }
+        return probe;
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.probe.transport.responder.mqtt;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the ids of recently processed probes so that the same probe arriving
+ * again - redelivered by the broker, repeated by several gateways or re-sent by its
+ * client - is only processed once.
+ *
+ * <p>An id is remembered for {@code windowMillis} from when it was first seen, and at
+ * most {@code maxEntries} ids are kept, the oldest being forgotten first, which bounds
+ * the memory used.
+ *
+ * <p>The MQTT repeater uses one too, to remember the probes it has already forwarded.
+ */
+public class DuplicateProbeFilter {
+
+    private final long _windowMillis;
+    private final int _maxEntries;
+    // insertion ordered, so the oldest sighting is always at the head
+    private final LinkedHashMap<String, Long> _seen;
+
+    private long _hits;
+    private long _misses;
+
+    public DuplicateProbeFilter(long windowMillis, final int maxEntries) {
+        _windowMillis = windowMillis;
+        _maxEntries = maxEntries;
+        _seen = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > _maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Return true if the probe id has been seen within the window, otherwise remember it.
+     *
+     * @param probeId the probe id
+     * @return true if this is a duplicate
+     */
+    public boolean isDuplicate(String probeId) {
+        return isDuplicate(probeId, System.currentTimeMillis());
+    }
+
+    public synchronized boolean isDuplicate(String probeId, long now) {
+        if (probeId == null) {
+            return false;
+        }
+        expire(now);
+
+        if (_seen.containsKey(probeId)) {
+            _hits++;
+            return true;
+        }
+        _misses++;
+        _seen.put(probeId, now);
+        return false;
+    }
+
+    private void expire(long now) {
+        Iterator<Long> seenAt = _seen.values().iterator();
+        while (seenAt.hasNext() && now - seenAt.next() >= _windowMillis) {
+            seenAt.remove();
+        }
+    }
+
+    public synchronized long hits() {
+        return _hits;
+    }
+
+    public synchronized long misses() {
+        return _misses;
+    }
+
+    /**
+     * Return the share of probes that were duplicates.
+     *
+     * @return the hit rate between 0 and 1
+     */
+    public synchronized double hitRate() {
+        long total = _hits + _misses;
+        return total == 0 ? 0 : (double) _hits / total;
+    }
+
+    public synchronized int size() {
+        return _seen.size();
+    }
+
+}
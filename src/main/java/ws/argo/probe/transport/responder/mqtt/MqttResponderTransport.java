@@ -20,6 +20,7 @@
 package ws.argo.probe.transport.responder.mqtt;
 
 import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.apache.commons.configuration.XMLConfiguration;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
@@ -32,73 +33,313 @@ import ws.argo.plugin.transport.responder.ProbeProcessor;
 import ws.argo.plugin.transport.responder.Transport;
 import ws.argo.plugin.transport.exception.TransportConfigException;
 import ws.argo.plugin.transport.exception.TransportException;
+import ws.argo.probe.transport.mqtt.wire.PayloadCompressor;
+import ws.argo.probe.transport.mqtt.wire.ProbeCodec;
+import ws.argo.probe.transport.mqtt.wire.ProbeCodecs;
+import ws.argo.probe.transport.mqtt.wire.ProbeDictionary;
+import ws.argo.probe.transport.mqtt.wire.ProbeEnvelope;
+import ws.argo.probe.transport.mqtt.wire.ProbeRoute;
+import ws.argo.probe.transport.mqtt.wire.ReceivedProbe;
+import ws.argo.probe.transport.mqtt.wire.StaxProbeCodec;
+import ws.argo.probe.transport.mqtt.wire.TopicTemplate;
 import ws.argo.wireline.probe.ProbeParseException;
 import ws.argo.wireline.probe.ProbeWrapper;
-import ws.argo.wireline.probe.XMLSerializer;
 
-import java.util.Timer;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static java.lang.Integer.parseInt;
 
 /**
+ * The MQTT responder Transport receives Argo probes from a MQTT broker.
+ * <p>
+ * If the sender partitions probes by service contract (see {@link TopicTemplate}), the
+ * {@code mqttTopic} here is the same template and the responder subscribes only to the
+ * topics of the contracts listed under {@code subscribeContracts}, plus the topic for
+ * probes that name no contract.  With no contracts listed it subscribes to them all.
+ * <p>
+ * Responders with the same {@code shareGroup} use broker shared subscriptions
+ * ({@code $share/<group>/<topic>}), so each probe goes to just one of them and adding
+ * responders adds capacity.  Each one still needs its own {@code clientId}.
+ * <p>
+ * Further topic filters, wildcards included, can be listed under {@code topics}, each
+ * with its own {@code qos} and optionally a fixed {@code wireFormat}, and are all
+ * subscribed on the one connection.  Each message is matched back to its filter with a
+ * {@link TopicTrie} to find how to decode it.
+ * <p>
+ * XML probes are unmarshalled with JAXB unless {@code xmlDecoder} is {@code stax},
+ * which builds them with a streaming parser instead (see {@link StaxProbeCodec}).
+ * <p>
+ * By default probes are decoded and processed on the MQTT client's callback thread.
+ * Setting {@code workerThreads} hands them off to a pool of workers instead, with a
+ * queue of {@code workerQueueSize} probes (see {@link ProbeWorkers}).  The
+ * {@code workerOrdering} keeps probes from the same {@code topic} or {@code clientId}
+ * in order, and the {@code workerOverflowPolicy} decides what happens when the queue is full.
+ * <p>
+ * When the connection to the broker is lost the same client reconnects in the
+ * background and resubscribes to all its topics.  Attempts back off exponentially from
+ * {@code reconnectInitialDelayMillis} to {@code reconnectMaxDelayMillis}, with jitter
+ * (see {@link ReconnectBackoff}), until one succeeds or the transport is shut down.
+ * <p>
+ * With {@code asyncStartup=true}, initialize returns without waiting for the broker and
+ * the first connection is made in the background in the same way, so responders don't
+ * depend on the broker being up first.  {@link #readiness()} completes once the
+ * responder is connected and subscribed, in either mode.
+ * <p>
+ * With {@code duplicateWindowMillis} and {@code duplicateCacheSize} set, a probe whose id
+ * was already processed within the window is dropped before it reaches the
+ * {@link ProbeProcessor} (see {@link DuplicateProbeFilter}).  At most
+ * {@code duplicateCacheSize} ids are remembered.  This is off by default, as a client
+ * may legitimately send a probe id again.
+ * <p>
+ * With {@code manualAcks=true} a message is only acknowledged to the broker once all
+ * its probes have been processed, dropped or rejected, and no more than
+ * {@code receiveWindow} messages are taken in before that happens (see
+ * {@link ReceiveWindow}).  When the window is full the responder stops reading, so a
+ * burst backs up on the broker instead of in the heap.  Use {@code cleanSession=false}
+ * as well to keep unacknowledged QoS 1 messages on the broker across restarts.
+ * <p>
+ * Before anything is parsed, payloads bigger than {@code maxPayloadSize} or that look
+ * like neither a frame nor XML are rejected, as are XML payloads without the
+ * {@code schemaFingerprint} of their topic, if one is set (see {@link PayloadValidator}).
+ * Rejects are counted by reason and, with a {@code quarantineTopic}, the message they
+ * came in is republished there as it arrived, once, so it can be looked at later.
+ * <p>
  * Created by jmsimpson on 10/19/15.
  */
 public class MqttResponderTransport implements Transport, MqttCallback {
 
     private static final String DEFAULT_TOPIC = "mqtt_default";
+    private static final int DEFAULT_MAX_INFLATED_SIZE = 16 * 1024 * 1024;
+    private static final int DEFAULT_TOPIC_PARTITIONS = 16;
+    private static final int DEFAULT_WORKER_QUEUE_SIZE = 1000;
+    private static final long WORKER_DRAIN_TIMEOUT = 30000L;
+    private static final int DEFAULT_RECONNECT_INITIAL_DELAY_MILLIS = 500;
+    private static final int DEFAULT_RECONNECT_MAX_DELAY_MILLIS = 60000;
+    private static final int DEFAULT_DUPLICATE_WINDOW_MILLIS = 0;
+    private static final int DEFAULT_DUPLICATE_CACHE_SIZE = 0;
+    private static final int DEFAULT_MAX_PAYLOAD_SIZE = 1024 * 1024;
+    private static final int DEFAULT_REJECT_LOG_INTERVAL_MILLIS = 10000;
+    private static final int DEFAULT_RECEIVE_WINDOW = 100;
 
     private static final Logger LOGGER = Logger.getLogger(MqttResponderTransport.class.getName());
 
     // Properties
     private String _topicName;
+    private String[] _subscriptions;
+    private int[] _subscriptionQos;
+    private final TopicTrie<TopicRoute> _routes = new TopicTrie<>();
     private int _qos;
     private String _broker;
     private String _clientId;
     private String _username;
     private String _password;
     private int _keepAliveInterval;
+    private int _maxInflatedSize;
+    private PayloadCompressor _compressor;
+    private ProbeCodec _xmlCodec;
+    private int _workerThreads;
+    private int _workerQueueSize;
+    private ProbeWorkers.Ordering _workerOrdering;
+    private ProbeWorkers.OverflowPolicy _workerOverflowPolicy;
+    private ProbeWorkers _workers;
+    private boolean _manualAcks;
+    private int _receiveWindowSize;
+    private boolean _cleanSession;
+    private ReceiveWindow _receiveWindow;
+    private DuplicateProbeFilter _duplicates;
+    private PayloadValidator _validator;
+    private String _quarantineTopic;
+    private final AtomicLong _quarantined = new AtomicLong();
+    private int _reconnectInitialDelay;
+    private int _reconnectMaxDelay;
     private MemoryPersistence _persistence;
     private MqttClient _mqttClient;
 
-    private boolean _isRunning;
-    private final Object lock = new Object();
+    private ReconnectBackoff _backoff;
+    private ScheduledExecutorService _reconnectScheduler;
+    private final AtomicBoolean _reconnecting = new AtomicBoolean();
+    private final AtomicLong _reconnects = new AtomicLong();
+    private final AtomicLong _reconnectAttempts = new AtomicLong();
+    private final AtomicLong _downtimeMillis = new AtomicLong();
+    private volatile long _disconnectedAt;
+    private volatile boolean _shuttingDown;
+
+    private boolean _asyncStartup;
+    private long _initializedAt;
+    private volatile long _startupMillis = -1;
+    private final Readiness _ready = new Readiness();
+    private final CountDownLatch _stopped = new CountDownLatch(1);
     private ProbeProcessor _processor;
     private MqttConnectOptions _connOpts;
 
     @Override
     public void initialize(ProbeProcessor probeProcessor, String propertiesFilename) throws TransportConfigException {
         this._processor = probeProcessor;
+        _initializedAt = System.currentTimeMillis();
 
-        processPropertiesFile(propertiesFilename);
-        createMQTTConnection();
-
+        try {
+            processPropertiesFile(propertiesFilename);
+        } catch (TransportConfigException e) {
+            _ready.fail(e);
+            throw e;
+        }
+        if (_workerThreads > 0) {
+            _workers = new ProbeWorkers(_clientId, _workerThreads, _workerQueueSize,
+                    _workerOrdering != ProbeWorkers.Ordering.NONE, _workerOverflowPolicy);
+        }
         setupReconnectTimer();
+        try {
+            createMQTTConnection();
+        } catch (TransportConfigException e) {
+            _shuttingDown = true;
+            _reconnectScheduler.shutdownNow();
+            if (_receiveWindow != null) {
+                _receiveWindow.close();
+            }
+            closeClientQuietly();
+            shutdownWorkers(0);
+            _ready.fail(e);
+            throw e;
+        }
     }
 
-    private void setupReconnectTimer() {
+    /**
+     * Disconnect and close the client after initialize fails, so a transport that is
+     * reported as failed doesn't keep a live connection with itself as the callback.
+     * Errors are only logged, the original failure is the one that matters.
+     */
+    private void closeClientQuietly() {
+        if (_mqttClient == null) {
+            return;
+        }
+        try {
+            if (_mqttClient.isConnected()) {
+                _mqttClient.disconnect();
+            }
+        } catch (MqttException e) {
+            LOGGER.fine("Unable to disconnect [" + _clientId + "] from broker [" + _broker + "]: " + e.getMessage());
+        }
+        try {
+            _mqttClient.close();
+        } catch (MqttException e) {
+            LOGGER.fine("Unable to close [" + _clientId + "]: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A future that the transport completes by hand once it is connected.
+     */
+    private static class Readiness extends FutureTask<Void> {
+
+        Readiness() {
+            super(new Runnable() {
+                @Override
+                public void run() {
+                    // completed by ready() or fail()
+                }
+            }, null);
+        }
 
-        Timer reconnectTimer = new Timer();
+        void ready() {
+            set(null);
+        }
+
+        void fail(Throwable cause) {
+            setException(cause);
+        }
+    }
+
+    private void markReady() {
+        _startupMillis = System.currentTimeMillis() - _initializedAt;
+        _ready.ready();
+        LOGGER.info("MQTT Responder [" + _clientId + "] ready on broker [" + _broker + "] after [" + _startupMillis + "] ms");
+    }
+
+    /**
+     * Return a future that completes once the responder has connected to the broker and
+     * subscribed for the first time.  It fails if initialize fails, and is cancelled if
+     * the transport is shut down first.
+     *
+     * @return the readiness future
+     */
+    public Future<Void> readiness() {
+        return _ready;
+    }
 
+    /**
+     * Return how long it took from initialize until the responder was ready.
+     *
+     * @return the startup duration in milliseconds, or -1 if not ready yet
+     */
+    public long startupDurationMillis() {
+        return _startupMillis;
+    }
 
+    private void setupReconnectTimer() {
+        _backoff = new ReconnectBackoff(_reconnectInitialDelay, _reconnectMaxDelay, new Random());
+        _reconnectScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MQTT-Responder-Reconnect-" + _clientId);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
     @Override
     public void shutdown() throws TransportException {
-        _isRunning = false; // shutdown the run loop
-        synchronized (lock){
-            lock.notifyAll();
+        _stopped.countDown(); // release run()
+
+        _shuttingDown = true;
+        _reconnectScheduler.shutdownNow();
+        _ready.cancel(false);
+        if (_receiveWindow != null) {
+            // don't let a stuck probe keep the callback thread, and so the disconnect, waiting
+            _receiveWindow.close();
         }
 
         try {
-            _mqttClient.disconnect();
+            if (_mqttClient.isConnected()) {
+                _mqttClient.disconnect();
+            }
+            _mqttClient.close();
         } catch (MqttException e) {
             throw new TransportException("Error closing [" + _clientId + "] on broker [" + _broker + "]", e);
         }
+
+        shutdownWorkers(WORKER_DRAIN_TIMEOUT);
         LOGGER.fine("Disconnected from MQTT: Client [" + _clientId + "] on broker [" + _broker + "]");
     }
 
+    private void shutdownWorkers(long timeoutMillis) {
+        if (_workers != null) {
+            try {
+                if (!_workers.shutdown(timeoutMillis) && timeoutMillis > 0) {
+                    LOGGER.warning("Timed out waiting for [" + _workers.queueDepth() + "] queued probes to be processed");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     @Override
     public String transportName() {
         return "MQTT";
@@ -106,54 +347,467 @@ public class MqttResponderTransport implements Transport, MqttCallback {
 
     /**
      * This run method will actually just wait while the MQTT client waits for inbound
-     * messages.
+     * messages.  It returns once the transport is shut down.
      *
      * @see Thread#run()
      */
     @Override
     public void run() {
-
-
         LOGGER.fine("MQTT Responder now running - " + _clientId);
-        while (_isRunning) {
-            synchronized (lock){
-                try {
-                    lock.wait();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    return;
-                }
-            }
-
+        try {
+            _stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-
+        LOGGER.fine("MQTT Responder stopped - " + _clientId);
     }
 
     @Override
     public void connectionLost(Throwable throwable) {
         LOGGER.warning("MQTT Transport Connection Lost: " + throwable.getMessage());
-        LOGGER.info("MQTT Transport attempting to reconnect to " + _broker);
+        if (_receiveWindow != null) {
+            // message ids still held by the workers belong to the lost session
+            _receiveWindow.newSession();
+        }
+        // this is the client's callback thread, so the reconnecting happens elsewhere
+        if (_reconnecting.compareAndSet(false, true)) {
+            _disconnectedAt = System.currentTimeMillis();
+            scheduleReconnect(0);
+        }
+    }
+
+    private void scheduleReconnect(final int attempt) {
+        if (_shuttingDown) {
+            return;
+        }
+        long delay = _backoff.delayMillis(attempt);
+        LOGGER.info("MQTT Transport attempting to reconnect to " + _broker + " in [" + delay + "] ms");
         try {
-            createMQTTConnection();
-        } catch (TransportConfigException e) {
-            LOGGER.warning("MQTT unable to reconnect: " + throwable.getMessage());
+            _reconnectScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    reconnect(attempt);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down
         }
     }
 
+    private void reconnect(int attempt) {
+        if (_shuttingDown) {
+            return;
+        }
+        _reconnectAttempts.incrementAndGet();
+        try {
+            connectAndSubscribe();
+        } catch (MqttException e) {
+            LOGGER.warning("MQTT unable to reconnect [" + _clientId + "] to " + _broker + " on attempt [" + (attempt + 1) + "]: " + e.getMessage());
+            scheduleReconnect(attempt + 1);
+            return;
+        }
+
+        if (!_ready.isDone()) {
+            // this was the first connection of an async startup
+            _reconnecting.set(false);
+            markReady();
+            return;
+        }
+
+        long downtime = System.currentTimeMillis() - _disconnectedAt;
+        _downtimeMillis.addAndGet(downtime);
+        _disconnectedAt = 0;
+        _reconnects.incrementAndGet();
+        _reconnecting.set(false);
+        LOGGER.info("MQTT Transport reconnected [" + _clientId + "] to " + _broker + " after [" + downtime + "] ms");
+    }
+
+    /**
+     * Connect the client, if it isn't already, and subscribe to all the topics.  The
+     * session is clean so the subscriptions have to be made again on every connect.
+     */
+    private void connectAndSubscribe() throws MqttException {
+        if (!_mqttClient.isConnected()) {
+            LOGGER.fine("Connecting to broker [" + _broker + "]");
+            _mqttClient.connect(_connOpts);
+        }
+        _mqttClient.subscribe(_subscriptions, _subscriptionQos);
+    }
+
+    /**
+     * Return true if the client is connected to the broker.
+     *
+     * @return true if connected
+     */
+    public boolean isConnected() {
+        return _mqttClient != null && _mqttClient.isConnected();
+    }
+
+    /**
+     * Return the number of times the connection was lost and then made again.
+     *
+     * @return the reconnect count
+     */
+    public long reconnectCount() {
+        return _reconnects.get();
+    }
+
+    /**
+     * Return the number of reconnect attempts, successful or not.
+     *
+     * @return the attempt count
+     */
+    public long reconnectAttempts() {
+        return _reconnectAttempts.get();
+    }
+
+    /**
+     * Return the total time spent disconnected from the broker, including the current
+     * outage if there is one.
+     *
+     * @return the downtime in milliseconds
+     */
+    public long downtimeMillis() {
+        long disconnectedAt = _disconnectedAt;
+        long current = disconnectedAt == 0 ? 0 : System.currentTimeMillis() - disconnectedAt;
+        return _downtimeMillis.get() + current;
+    }
+
     @Override
-    public void messageArrived(String s, MqttMessage mqttMessage) throws Exception {
+    public void messageArrived(String topic, MqttMessage mqttMessage) throws Exception {
 //        System.out.println("MQTT Transport Received message: " + mqttMessage.toString());
+        TopicRoute route = _routes.match(topic);
+        ProbeCodec codec = route == null ? null : route.codec;
+        byte[] fingerprint = route == null ? null : route.fingerprint;
+
+        // the message is acknowledged once the receipt is released by everything holding it
+        ReceiveWindow.Receipt receipt = _receiveWindow == null ? null
+                : _receiveWindow.open(mqttMessage.getId(), mqttMessage.getQos());
         try {
-            XMLSerializer serializer = new XMLSerializer();
+            byte[] raw = mqttMessage.getPayload();
+            Arrival arrival = new Arrival(topic, raw);
+            if (_validator.checkSize(raw) != null) {
+                reject(PayloadValidator.Reason.TOO_LARGE, arrival, raw.length + " bytes is over the maxPayloadSize", null);
+                return;
+            }
+
+            try {
+                byte[] payload = raw;
+                if (PayloadCompressor.isCompressed(payload)) {
+                    payload = _compressor.decompress(payload, _maxInflatedSize);
+                }
+
+                if (ProbeEnvelope.isEnvelope(payload)) {
+                    // a batch from the sender - hand each probe on separately
+                    for (byte[] entry : ProbeEnvelope.unpack(payload)) {
+                        if (isAcceptable(arrival, entry, fingerprint)) {
+                            dispatchPayload(arrival, codec, entry, receipt);
+                        }
+                    }
+                } else if (isAcceptable(arrival, payload, fingerprint)) {
+                    dispatchPayload(arrival, codec, payload, receipt);
+                }
+
+            } catch (ProbeParseException e) {
+                reject(PayloadValidator.Reason.MALFORMED, arrival, e.getMessage(), e);
+            }
+        } finally {
+            if (receipt != null) {
+                receipt.release();
+            }
+        }
+
+    }
+
+    private boolean isAcceptable(Arrival arrival, byte[] payload, byte[] fingerprint) {
+        PayloadValidator.Reason reason = _validator.checkProbe(payload, fingerprint);
+        if (reason == null) {
+            return true;
+        }
+        reject(reason, arrival, reason == PayloadValidator.Reason.SCHEMA_MISMATCH
+                ? "the topic's schemaFingerprint was not found"
+                : "not a recognised probe format", null);
+        return false;
+    }
+
+    /**
+     * An MQTT message as it arrived, for the probes taken from it to refer back to.
+     */
+    private static class Arrival {
+
+        final String topic;
+        final byte[] payload;
+        private final AtomicBoolean _quarantined = new AtomicBoolean();
+
+        Arrival(String topic, byte[] payload) {
+            this.topic = topic;
+            this.payload = payload;
+        }
+
+        /**
+         * Return true the first time only, so a message is quarantined at most once
+         * however many of its probes are rejected.
+         */
+        boolean quarantine() {
+            return _quarantined.compareAndSet(false, true);
+        }
+    }
+
+    /**
+     * Count and log the rejected payload and republish the message it came in, as it
+     * arrived, on the quarantine topic if there is one.  Messages that arrived on the
+     * quarantine topic are not sent back to it.
+     */
+    private void reject(PayloadValidator.Reason reason, Arrival arrival, String detail, Throwable cause) {
+        String topic = arrival.topic;
+        _validator.reject(reason, topic, detail, cause);
+        if (_quarantineTopic == null || _quarantineTopic.equals(topic) || !arrival.quarantine()) {
+            return;
+        }
+        try {
+            MqttMessage message = new MqttMessage(arrival.payload);
+            message.setQos(0);
+            _mqttClient.publish(_quarantineTopic, message);
+            _quarantined.incrementAndGet();
+        } catch (MqttException e) {
+            LOGGER.fine("Unable to quarantine payload from [" + topic + "]: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Return the number of inbound payloads rejected before or during parsing.
+     *
+     * @return the reject count
+     */
+    public long rejectedCount() {
+        return _validator.rejected();
+    }
+
+    /**
+     * Return the number of inbound payloads rejected for the reason, one of
+     * {@code too_large}, {@code unknown_format}, {@code schema_mismatch} or
+     * {@code malformed}.
+     *
+     * @param reason the reject reason
+     * @return the reject count
+     */
+    public long rejectedCount(String reason) {
+        return _validator.rejected(PayloadValidator.Reason.valueOf(reason.toUpperCase()));
+    }
+
+    /**
+     * Return the number of rejected payloads republished on the quarantine topic.
+     *
+     * @return the quarantined count
+     */
+    public long quarantinedCount() {
+        return _quarantined.get();
+    }
+
+    /**
+     * Process the payload here on the callback thread, or hand it off to the workers.
+     * A handed off payload holds the message's receipt, if there is one, until the
+     * worker is done with it or it is dropped.
+     */
+    private void dispatchPayload(final Arrival arrival, final ProbeCodec codec, final byte[] payload,
+                                 final ReceiveWindow.Receipt receipt) {
+        if (_workers == null) {
+            processPayload(arrival, codec, payload);
+            return;
+        }
+
+        switch (_workerOrdering) {
+            case CLIENT_ID:
+                final ProbeWrapper probe = decodePayload(arrival, codec, payload);
+                if (probe != null && !isDuplicate(probe)) {
+                    hold(receipt);
+                    _workers.execute(probe.getClientId(), new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                _processor.processProbe(probe);
+                            } finally {
+                                release(receipt);
+                            }
+                        }
+                    }, releaser(receipt));
+                }
+                break;
+            default:
+                hold(receipt);
+                _workers.execute(arrival.topic, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            processPayload(arrival, codec, payload);
+                        } finally {
+                            release(receipt);
+                        }
+                    }
+                }, releaser(receipt));
+                break;
+        }
+    }
+
+    private static void hold(ReceiveWindow.Receipt receipt) {
+        if (receipt != null) {
+            receipt.hold();
+        }
+    }
+
+    private static void release(ReceiveWindow.Receipt receipt) {
+        if (receipt != null) {
+            receipt.release();
+        }
+    }
+
+    private static Runnable releaser(final ReceiveWindow.Receipt receipt) {
+        if (receipt == null) {
+            return null;
+        }
+        return new Runnable() {
+            @Override
+            public void run() {
+                receipt.release();
+            }
+        };
+    }
 
-            ProbeWrapper probe = serializer.unmarshal(mqttMessage.toString());
+    /**
+     * Return the number of messages taken in but not yet acknowledged.
+     *
+     * @return the receive window in use, 0 without manual acks
+     */
+    public int receiveWindowInUse() {
+        return _receiveWindow == null ? 0 : _receiveWindow.inUse();
+    }
+
+    /**
+     * Return the number of messages acknowledged after processing.
+     *
+     * @return the acknowledged count, 0 without manual acks
+     */
+    public long acknowledgedCount() {
+        return _receiveWindow == null ? 0 : _receiveWindow.acknowledged();
+    }
 
+    /**
+     * Return the number of times intake paused because the receive window was full.
+     *
+     * @return the pause count, 0 without manual acks
+     */
+    public long intakePauses() {
+        return _receiveWindow == null ? 0 : _receiveWindow.pauses();
+    }
+
+    private void processPayload(Arrival arrival, ProbeCodec codec, byte[] payload) {
+        ProbeWrapper probe = decodePayload(arrival, codec, payload);
+        if (probe != null && !isDuplicate(probe)) {
             _processor.processProbe(probe);
+        }
+    }
+
+    private boolean isDuplicate(ProbeWrapper probe) {
+        if (_duplicates != null && _duplicates.isDuplicate(probe.getProbeId())) {
+            LOGGER.fine("Dropping duplicate probe [" + probe.getProbeId() + "]");
+            return true;
+        }
+        return false;
+    }
 
+    /**
+     * Return the number of duplicate probes dropped.
+     *
+     * @return the duplicate count, 0 if duplicates are not filtered
+     */
+    public long duplicatesDropped() {
+        return _duplicates == null ? 0 : _duplicates.hits();
+    }
+
+    /**
+     * Return the share of inbound probes that were duplicates.
+     *
+     * @return the duplicate hit rate between 0 and 1
+     */
+    public double duplicateHitRate() {
+        return _duplicates == null ? 0 : _duplicates.hitRate();
+    }
+
+    /**
+     * Decode with the topic's codec if it has one.  Otherwise XML and binary probes can
+     * share the topic, so check each one.  The probe keeps the bytes it was decoded from
+     * and, if it was repeated, its route (see {@link ReceivedProbe}).
+     */
+    private ProbeWrapper decodePayload(Arrival arrival, ProbeCodec codec, byte[] payload) {
+        try {
+            if (ProbeRoute.isRouted(payload)) {
+                // a repeated probe - keep its route for a repeater to pick up
+                ProbeRoute route = ProbeRoute.read(payload);
+                byte[] probePayload = ProbeRoute.unwrap(payload);
+                ReceivedProbe probe = (codec != null ? codec : ProbeCodecs.forPayload(probePayload, _xmlCodec)).decode(probePayload);
+                probe.setRoute(route);
+                return probe;
+            }
+            return (codec != null ? codec : ProbeCodecs.forPayload(payload, _xmlCodec)).decode(payload);
         } catch (ProbeParseException e) {
-            LOGGER.log(Level.SEVERE, "Error parsing inbound probe payload.", e);
+            reject(PayloadValidator.Reason.MALFORMED, arrival, e.getMessage(), e);
+            return null;
         }
+    }
+
+    /**
+     * Return the number of probes waiting for a worker.
+     *
+     * @return the queue depth, 0 without workers
+     */
+    public int workerQueueDepth() {
+        return _workers == null ? 0 : _workers.queueDepth();
+    }
+
+    /**
+     * Return the number of probes handed off to the workers.
+     *
+     * @return the handed off count
+     */
+    public long workerHandedOff() {
+        return _workers == null ? 0 : _workers.handedOff();
+    }
 
+    /**
+     * Return the number of probes thrown away because the worker queue was full.
+     *
+     * @return the dropped count
+     */
+    public long workerDropped() {
+        return _workers == null ? 0 : _workers.dropped();
+    }
+
+    /**
+     * Return the number of probes processed on the callback thread because the worker
+     * queue was full.
+     *
+     * @return the caller runs count
+     */
+    public long workerCallerRuns() {
+        return _workers == null ? 0 : _workers.callerRuns();
+    }
+
+    /**
+     * Return the average time probes waited between arriving and a worker starting on them.
+     *
+     * @return the average handoff latency in microseconds
+     */
+    public long averageHandoffMicros() {
+        return _workers == null ? 0 : _workers.averageHandoffMicros();
+    }
+
+    /**
+     * Return the longest time a probe waited between arriving and a worker starting on it.
+     *
+     * @return the longest handoff latency in microseconds
+     */
+    public long maxHandoffMicros() {
+        return _workers == null ? 0 : _workers.maxHandoffMicros();
     }
 
     @Override
@@ -184,14 +838,11 @@ public class MqttResponderTransport implements Transport, MqttCallback {
             throw new TransportConfigException(e.getLocalizedMessage(), e);
         }
 
-        _topicName = config.getString("mqttTopic", DEFAULT_TOPIC);
+        // with a list of topics the single mqttTopic is optional
+        int lastTopic = config.getMaxIndex("topics.topic");
+        _topicName = config.getString("mqttTopic", lastTopic >= 0 ? null : DEFAULT_TOPIC);
 
-        try {
-            _qos = parseInt(config.getString("qos", "0"));
-        } catch (NumberFormatException e) {
-            LOGGER.warning("Issue parsing the QOS [" + config.getString("qos") + "].  Using default of 0.");
-            _qos = 0;
-        }
+        _qos = intSetting(config, "qos", 0);
         _broker = config.getString("broker");
         _clientId = config.getString("clientId", "NO CLIENT ID");
 
@@ -200,20 +851,181 @@ public class MqttResponderTransport implements Transport, MqttCallback {
             throw new TransportConfigException("The broker MUST be configured correctly");
         }
 
-        if (_topicName.equals(DEFAULT_TOPIC)) {
+        String xmlDecoder = config.getString("xmlDecoder", "jaxb");
+        if (xmlDecoder.equalsIgnoreCase("jaxb")) {
+            _xmlCodec = ProbeCodecs.XML;
+        } else if (xmlDecoder.equalsIgnoreCase("stax")) {
+            _xmlCodec = ProbeCodecs.STAX;
+        } else {
+            throw new TransportConfigException("Unknown xmlDecoder [" + xmlDecoder + "]");
+        }
+
+        if (DEFAULT_TOPIC.equals(_topicName)) {
             LOGGER.info("MQTT topic not defined.  Using the default MQTT Topic [" + DEFAULT_TOPIC + "]");
         }
 
+        int partitions = intSetting(config, "topicPartitions", DEFAULT_TOPIC_PARTITIONS);
+        String schemaFingerprint = config.getString("schemaFingerprint");
+        List<TopicRoute> routes = new ArrayList<>();
+        try {
+            if (_topicName != null) {
+                TopicTemplate topics = TopicTemplate.parse(_topicName, partitions);
+                for (String filter : topics.subscriptionsFor(Arrays.asList(config.getStringArray("subscribeContracts.contractId")))) {
+                    routes.add(new TopicRoute(filter, _qos, null, schemaFingerprint));
+                }
+            }
+            for (int i = 0; i <= lastTopic; i++) {
+                routes.add(readTopicRoute(config, "topics.topic(" + i + ")"));
+            }
+
+            String shareGroup = config.getString("shareGroup");
+            _subscriptions = new String[routes.size()];
+            _subscriptionQos = new int[routes.size()];
+            for (int i = 0; i < routes.size(); i++) {
+                TopicRoute route = routes.get(i);
+                _routes.put(route.filter, route);
+                _subscriptions[i] = shareGroup == null ? route.filter : TopicTemplate.shared(shareGroup.trim(), route.filter);
+                _subscriptionQos[i] = route.qos;
+            }
+        } catch (IllegalArgumentException e) {
+            throw new TransportConfigException(e.getMessage(), e);
+        }
+
         _username = config.getString("username");
         _password = config.getString("password");
 
+        // the built-in dictionary is always available, this adds a custom one
+        String dictionary = config.getString("compressionDictionary", ProbeDictionary.NONE);
+        try {
+            _compressor = new PayloadCompressor(ProbeDictionary.load(dictionary), Integer.MAX_VALUE);
+        } catch (IOException e) {
+            throw new TransportConfigException("Unable to read compressionDictionary [" + dictionary + "]", e);
+        }
+
+        _maxInflatedSize = intSetting(config, "maxInflatedSize", DEFAULT_MAX_INFLATED_SIZE);
+
+        _workerThreads = intSetting(config, "workerThreads", 0);
+        _workerQueueSize = intSetting(config, "workerQueueSize", DEFAULT_WORKER_QUEUE_SIZE);
+        if (_workerQueueSize < 1) {
+            throw new TransportConfigException("workerQueueSize must be at least 1 [" + _workerQueueSize + "]");
+        }
+        _asyncStartup = Boolean.parseBoolean(config.getString("asyncStartup", "false"));
+
+        int duplicateWindow = intSetting(config, "duplicateWindowMillis", DEFAULT_DUPLICATE_WINDOW_MILLIS);
+        int duplicateCacheSize = intSetting(config, "duplicateCacheSize", DEFAULT_DUPLICATE_CACHE_SIZE);
+        // a window or cache size of 0 turns the filter off
+        _duplicates = duplicateWindow > 0 && duplicateCacheSize > 0
+                ? new DuplicateProbeFilter(duplicateWindow, duplicateCacheSize)
+                : null;
+
+        _reconnectInitialDelay = intSetting(config, "reconnectInitialDelayMillis", DEFAULT_RECONNECT_INITIAL_DELAY_MILLIS);
+        _reconnectMaxDelay = intSetting(config, "reconnectMaxDelayMillis", DEFAULT_RECONNECT_MAX_DELAY_MILLIS);
+
+        int maxPayloadSize = intSetting(config, "maxPayloadSize", DEFAULT_MAX_PAYLOAD_SIZE);
+        if (maxPayloadSize < 1) {
+            throw new TransportConfigException("maxPayloadSize must be at least 1 [" + maxPayloadSize + "]");
+        }
+        int rejectLogInterval = intSetting(config, "rejectLogIntervalMillis", DEFAULT_REJECT_LOG_INTERVAL_MILLIS);
+        _validator = new PayloadValidator(maxPayloadSize, rejectLogInterval);
+
+        _manualAcks = Boolean.parseBoolean(config.getString("manualAcks", "false"));
+        _cleanSession = Boolean.parseBoolean(config.getString("cleanSession", "true"));
+        _receiveWindowSize = intSetting(config, "receiveWindow", DEFAULT_RECEIVE_WINDOW);
+        if (_receiveWindowSize < 1) {
+            throw new TransportConfigException("receiveWindow must be at least 1 [" + _receiveWindowSize + "]");
+        }
+        _quarantineTopic = config.getString("quarantineTopic");
+
+        String ordering = config.getString("workerOrdering", "none");
+        try {
+            _workerOrdering = ProbeWorkers.Ordering.parse(ordering);
+        } catch (IllegalArgumentException e) {
+            throw new TransportConfigException("Unknown workerOrdering [" + ordering + "]", e);
+        }
+        String overflowPolicy = config.getString("workerOverflowPolicy", "block");
+        try {
+            _workerOverflowPolicy = ProbeWorkers.OverflowPolicy.parse(overflowPolicy);
+        } catch (IllegalArgumentException e) {
+            throw new TransportConfigException("Unknown workerOverflowPolicy [" + overflowPolicy + "]", e);
+        }
+
     }
 
 
+    /**
+     * Read a whole number setting, logging and using the default if it isn't one.
+     */
+    private static int intSetting(HierarchicalConfiguration config, String key, int defaultValue) {
+        String value = config.getString(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.warning("Issue parsing the " + key + " [" + value + "].  Using default of " + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+
+    private TopicRoute readTopicRoute(XMLConfiguration config, String key) throws TransportConfigException {
+        String filter = config.getString(key);
+        if (filter == null || filter.trim().isEmpty()) {
+            throw new TransportConfigException("Empty topic filter in [" + key + "]");
+        }
+
+        int qos = intSetting(config, key + "[@qos]", _qos);
+
+        ProbeCodec codec = null;
+        String schemaFingerprint = config.getString(key + "[@schemaFingerprint]");
+        String wireFormat = config.getString(key + "[@wireFormat]");
+        if (wireFormat != null && !wireFormat.equalsIgnoreCase("auto")) {
+            codec = ProbeCodecs.forName(wireFormat);
+            if (codec == ProbeCodecs.XML) {
+                codec = _xmlCodec;
+            }
+            if (codec == null) {
+                throw new TransportConfigException("Unknown wireFormat [" + wireFormat + "] for topic [" + filter + "]");
+            }
+        }
+        return new TopicRoute(filter.trim(), qos, codec, schemaFingerprint);
+    }
+
+    /**
+     * A subscribed topic filter and how to handle the messages that arrive on it.
+     */
+    private static class TopicRoute {
+
+        final String filter;
+        final int qos;
+        // null when the format is worked out from each payload
+        final ProbeCodec codec;
+        // null when any XML is accepted
+        final byte[] fingerprint;
+
+        TopicRoute(String filter, int qos, ProbeCodec codec, String fingerprint) {
+            this.filter = filter;
+            this.qos = qos;
+            this.codec = codec;
+            this.fingerprint = PayloadValidator.fingerprint(fingerprint);
+        }
+    }
+
+    /**
+     * Create the client for the configured broker.  Tests override this to stand in for
+     * the broker.
+     *
+     * @return a new, unconnected client
+     * @throws MqttException if the client can't be created
+     */
+    MqttClient createClient() throws MqttException {
+        return new MqttClient(_broker, _clientId, _persistence);
+    }
+
     private void createMQTTConnection() throws TransportConfigException {
         _connOpts = new MqttConnectOptions();
 
-        _connOpts.setCleanSession(true);
+        _connOpts.setCleanSession(_cleanSession);
         _connOpts.setKeepAliveInterval(30);
 
         if (_username != null && !_username.isEmpty())
@@ -223,22 +1035,39 @@ public class MqttResponderTransport implements Transport, MqttCallback {
 
         _persistence = new MemoryPersistence();
 
+        // the one client is kept for the life of the transport and reconnected as needed
         try {
-            _mqttClient = new MqttClient(_broker, _clientId, _persistence);
-
-            LOGGER.fine("Connecting to broker [" + _broker + "]");
-            _mqttClient.connect(_connOpts);
+            _mqttClient = createClient();
             _mqttClient.setCallback(this);
-
-            LOGGER.fine("Connected MQTT Client [" + _clientId + "] to broker [" + _broker + "]");
+            if (_manualAcks) {
+                _mqttClient.setManualAcks(true);
+                _receiveWindow = new ReceiveWindow(_receiveWindowSize, new ReceiveWindow.Acknowledger() {
+                    @Override
+                    public void acknowledge(int messageId, int qos) throws MqttException {
+                        _mqttClient.messageArrivedComplete(messageId, qos);
+                    }
+                });
+            }
         } catch (MqttException me) {
-            throw new TransportConfigException("Error connecting [" + _clientId + "] broker [" + _broker + "]", me);
+            throw new TransportConfigException("Error creating [" + _clientId + "] for broker [" + _broker + "]", me);
+        }
+
+        if (_asyncStartup) {
+            LOGGER.fine("Connecting MQTT Client [" + _clientId + "] to broker [" + _broker + "] in the background");
+            _reconnecting.set(true);
+            scheduleReconnect(0);
+            return;
         }
 
         try {
-            _mqttClient.subscribe(_topicName, _qos);
-        } catch (MqttException e) {
-            throw new TransportConfigException("Error subscribing to topic [" + _topicName + "]");
+            connectAndSubscribe();
+            LOGGER.fine("Connected MQTT Client [" + _clientId + "] to broker [" + _broker + "]");
+            markReady();
+        } catch (MqttException me) {
+            if (!_mqttClient.isConnected()) {
+                throw new TransportConfigException("Error connecting [" + _clientId + "] broker [" + _broker + "]", me);
+            }
+            throw new TransportConfigException("Error subscribing to topics " + Arrays.toString(_subscriptions), me);
         }
 
     }
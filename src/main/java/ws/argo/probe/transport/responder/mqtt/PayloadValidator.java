@@ -0,0 +1,209 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.probe.transport.responder.mqtt;
+
+import ws.argo.probe.transport.mqtt.wire.ProbeRoute;
+import ws.argo.probe.transport.mqtt.wire.WireFormat;
+import ws.argo.wireline.probe.ProbeParseException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cheap checks made on inbound payloads before any parsing, and the accounting for
+ * the payloads that are turned away.
+ *
+ * <p>A payload must be no bigger than the configured limit and must look like one of
+ * the formats the responder understands - a frame, or XML.  A topic can also require
+ * a schema fingerprint, a string such as the probe namespace that must appear near the
+ * start of every XML payload on it.
+ *
+ * <p>Every reject is counted by {@link Reason}.  Rejects are logged at most once per
+ * reason per log interval, with a count of the ones left out, so a misbehaving
+ * publisher can't flood the log.
+ */
+class PayloadValidator {
+
+    private static final Logger LOGGER = Logger.getLogger(PayloadValidator.class.getName());
+
+    /**
+     * How far into an XML payload the schema fingerprint is looked for.
+     */
+    static final int FINGERPRINT_WINDOW = 512;
+
+    /**
+     * Why a payload was turned away.
+     */
+    enum Reason {
+        TOO_LARGE,
+        UNKNOWN_FORMAT,
+        SCHEMA_MISMATCH,
+        MALFORMED
+    }
+
+    private final int _maxPayloadSize;
+    private final long _logIntervalMillis;
+
+    private final Map<Reason, AtomicLong> _rejects = new EnumMap<>(Reason.class);
+    private final Map<Reason, AtomicLong> _unlogged = new EnumMap<>(Reason.class);
+    private final Map<Reason, AtomicLong> _lastLogged = new EnumMap<>(Reason.class);
+
+    PayloadValidator(int maxPayloadSize, long logIntervalMillis) {
+        _maxPayloadSize = maxPayloadSize;
+        _logIntervalMillis = logIntervalMillis;
+        for (Reason reason : Reason.values()) {
+            _rejects.put(reason, new AtomicLong());
+            _unlogged.put(reason, new AtomicLong());
+            _lastLogged.put(reason, new AtomicLong(Long.MIN_VALUE / 2));
+        }
+    }
+
+    /**
+     * Return the encoded fingerprint to look for, or null for none.
+     *
+     * @param fingerprint the configured fingerprint
+     * @return the UTF-8 bytes of the fingerprint
+     */
+    static byte[] fingerprint(String fingerprint) {
+        return fingerprint == null || fingerprint.isEmpty() ? null : fingerprint.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Check the size of the payload as it arrived.
+     *
+     * @param payload the raw payload
+     * @return the reason to reject it, or null if it is acceptable
+     */
+    Reason checkSize(byte[] payload) {
+        return payload.length > _maxPayloadSize ? Reason.TOO_LARGE : null;
+    }
+
+    /**
+     * Check that a single probe payload is in a format the responder understands.  For
+     * a repeated probe it is the payload inside the route frame that is checked.
+     *
+     * @param payload     a decompressed, unenveloped probe payload
+     * @param fingerprint the topic's schema fingerprint, or null
+     * @return the reason to reject it, or null if it is acceptable
+     */
+    Reason checkProbe(byte[] payload, byte[] fingerprint) {
+        int offset = 0;
+        if (ProbeRoute.isRouted(payload)) {
+            try {
+                offset = ProbeRoute.headerLength(payload);
+            } catch (ProbeParseException e) {
+                return Reason.MALFORMED;
+            }
+        }
+        if (payload.length >= offset + WireFormat.HEADER_LENGTH && payload[offset] == WireFormat.MAGIC) {
+            return null;
+        }
+        int start = xmlStart(payload, offset);
+        if (start < 0) {
+            return Reason.UNKNOWN_FORMAT;
+        }
+        if (fingerprint != null && !contains(payload, start, Math.min(payload.length, start + FINGERPRINT_WINDOW), fingerprint)) {
+            return Reason.SCHEMA_MISMATCH;
+        }
+        return null;
+    }
+
+    /**
+     * Return the offset of the opening '<' of an XML payload, skipping a byte order mark
+     * and whitespace, or -1 if the payload doesn't start like XML.
+     */
+    private static int xmlStart(byte[] payload, int offset) {
+        int i = offset;
+        if (payload.length >= i + 3 && payload[i] == (byte) 0xEF && payload[i + 1] == (byte) 0xBB && payload[i + 2] == (byte) 0xBF) {
+            i += 3;
+        }
+        while (i < payload.length && (payload[i] == ' ' || payload[i] == '\t' || payload[i] == '\r' || payload[i] == '\n')) {
+            i++;
+        }
+        return i < payload.length && payload[i] == '<' ? i : -1;
+    }
+
+    private static boolean contains(byte[] payload, int from, int to, byte[] fingerprint) {
+        outer:
+        for (int i = from; i <= to - fingerprint.length; i++) {
+            for (int j = 0; j < fingerprint.length; j++) {
+                if (payload[i + j] != fingerprint[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Count a rejected payload and log it, unless this reason has already been logged
+     * within the log interval.
+     *
+     * @param reason why it was rejected
+     * @param topic  the topic it arrived on
+     * @param detail what was wrong with it
+     * @param cause  the exception behind it, if any
+     */
+    void reject(Reason reason, String topic, String detail, Throwable cause) {
+        _rejects.get(reason).incrementAndGet();
+
+        long now = System.currentTimeMillis();
+        AtomicLong lastLogged = _lastLogged.get(reason);
+        long last = lastLogged.get();
+        if (now - last < _logIntervalMillis || !lastLogged.compareAndSet(last, now)) {
+            _unlogged.get(reason).incrementAndGet();
+            return;
+        }
+
+        long suppressed = _unlogged.get(reason).getAndSet(0);
+        String message = "Rejected inbound payload on [" + topic + "] - " + reason + ": " + detail
+                + (suppressed > 0 ? " (" + suppressed + " more " + reason + " rejects not logged)" : "");
+        LOGGER.log(Level.WARNING, message, cause);
+    }
+
+    /**
+     * Return the number of payloads rejected for the reason.
+     *
+     * @param reason the reason
+     * @return the reject count
+     */
+    long rejected(Reason reason) {
+        return _rejects.get(reason).get();
+    }
+
+    /**
+     * Return the number of payloads rejected for any reason.
+     *
+     * @return the reject count
+     */
+    long rejected() {
+        long total = 0;
+        for (AtomicLong count : _rejects.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+
+}
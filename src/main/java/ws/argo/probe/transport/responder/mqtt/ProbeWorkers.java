@@ -0,0 +1,323 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.probe.transport.responder.mqtt;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The worker stage of the {@link MqttResponderTransport}.  Probes are handed off here
+ * from the MQTT client's single callback thread so that a slow probe handler doesn't
+ * stop the transport from taking further messages off the broker.
+ *
+ * <p>Without ordering, all workers share one bounded queue.  With ordering, each worker
+ * has a queue of its own and the probes for a given key always go to the same worker,
+ * so they are processed in the order they arrived.
+ *
+ * <p>The {@link OverflowPolicy} decides what happens when a queue is full.  Blocking
+ * holds up the callback thread, which in turn leaves messages waiting on the broker.
+ */
+class ProbeWorkers {
+
+    private static final Logger LOGGER = Logger.getLogger(ProbeWorkers.class.getName());
+
+    /**
+     * What probes must stay in order with each other.
+     */
+    enum Ordering {
+        /**
+         * No ordering, any worker may take any probe.
+         */
+        NONE,
+        /**
+         * Probes arriving on the same topic are processed in order.
+         */
+        TOPIC,
+        /**
+         * Probes from the same client are processed in order.  The probe has to be
+         * decoded on the callback thread to find its client id.
+         */
+        CLIENT_ID;
+
+        static Ordering parse(String value) {
+            String normalized = value.trim().toUpperCase();
+            if (normalized.equals("CLIENTID")) {
+                return CLIENT_ID;
+            }
+            return valueOf(normalized);
+        }
+    }
+
+    /**
+     * What to do with a probe that arrives when its queue is full.
+     */
+    enum OverflowPolicy {
+        /**
+         * Wait for room, holding up the callback thread.
+         */
+        BLOCK,
+        /**
+         * Process the probe on the callback thread.
+         */
+        CALLER_RUNS,
+        /**
+         * Throw away the oldest queued probe to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Throw away the probe that just arrived.
+         */
+        DROP_NEWEST;
+
+        static OverflowPolicy parse(String value) {
+            String normalized = value.trim().replace('-', '_').toUpperCase();
+            switch (normalized) {
+                case "CALLERRUNS":
+                    return CALLER_RUNS;
+                case "DROPOLDEST":
+                    return DROP_OLDEST;
+                case "DROPNEWEST":
+                    return DROP_NEWEST;
+                default:
+                    return valueOf(normalized);
+            }
+        }
+    }
+
+    /**
+     * Records how long the task waited between being handed off and starting.
+     */
+    private class TimedTask implements Runnable {
+
+        private final Runnable _task;
+        private final Runnable _onDrop;
+        private final long _queuedAt = System.nanoTime();
+
+        TimedTask(Runnable task, Runnable onDrop) {
+            _task = task;
+            _onDrop = onDrop;
+        }
+
+        void dropped() {
+            _dropped.incrementAndGet();
+            if (_onDrop != null) {
+                _onDrop.run();
+            }
+        }
+
+        @Override
+        public void run() {
+            recordHandoff(System.nanoTime() - _queuedAt);
+            try {
+                _task.run();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Error processing inbound probe", e);
+            }
+        }
+    }
+
+    private final OverflowPolicy _policy;
+    private final ThreadPoolExecutor[] _lanes;
+
+    private final AtomicLong _handedOff = new AtomicLong();
+    private final AtomicLong _handoffNanos = new AtomicLong();
+    private final AtomicLong _maxHandoffNanos = new AtomicLong();
+    private final AtomicLong _dropped = new AtomicLong();
+    private final AtomicLong _callerRuns = new AtomicLong();
+
+    ProbeWorkers(String name, int threads, int queueSize, boolean ordered, OverflowPolicy policy) {
+        _policy = policy;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        final String threadPrefix = "MQTT-Probe-Worker-" + name + "-";
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadPrefix + threadCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        RejectedExecutionHandler overflow = new Overflow();
+
+        if (ordered) {
+            // a single thread per lane is what keeps each key in order
+            _lanes = new ThreadPoolExecutor[threads];
+            int laneQueueSize = Math.max(1, queueSize / threads);
+            for (int i = 0; i < threads; i++) {
+                _lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(laneQueueSize), threadFactory, overflow);
+            }
+        } else {
+            _lanes = new ThreadPoolExecutor[]{new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize), threadFactory, overflow)};
+        }
+        for (ThreadPoolExecutor lane : _lanes) {
+            lane.prestartAllCoreThreads();
+        }
+    }
+
+    /**
+     * Hand a task off to the workers.
+     *
+     * @param key  the ordering key, ignored without ordering
+     * @param task the work
+     */
+    void execute(String key, Runnable task) {
+        execute(key, task, null);
+    }
+
+    /**
+     * Hand a task off to the workers, with something to run instead if the task is
+     * thrown away by the overflow policy or because the workers are shutting down.
+     *
+     * @param key    the ordering key, ignored without ordering
+     * @param task   the work
+     * @param onDrop run on the calling thread if the task is dropped, may be null
+     */
+    void execute(String key, Runnable task, Runnable onDrop) {
+        ThreadPoolExecutor lane = _lanes.length == 1 || key == null
+                ? _lanes[0]
+                : _lanes[(key.hashCode() & Integer.MAX_VALUE) % _lanes.length];
+        lane.execute(new TimedTask(task, onDrop));
+    }
+
+    private void recordHandoff(long nanos) {
+        _handedOff.incrementAndGet();
+        _handoffNanos.addAndGet(nanos);
+        long max = _maxHandoffNanos.get();
+        while (nanos > max && !_maxHandoffNanos.compareAndSet(max, nanos)) {
+            max = _maxHandoffNanos.get();
+        }
+    }
+
+    /**
+     * Applies the overflow policy when a lane's queue is full.
+     */
+    private class Overflow implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor lane) {
+            if (lane.isShutdown()) {
+                ((TimedTask) task).dropped();
+                return;
+            }
+            switch (_policy) {
+                case BLOCK:
+                    try {
+                        lane.getQueue().put(task);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        ((TimedTask) task).dropped();
+                        break;
+                    }
+                    // if shutdown came in while waiting the workers may already be gone,
+                    // so take the probe back out unless one of them has it
+                    if (lane.isShutdown() && lane.remove(task)) {
+                        ((TimedTask) task).dropped();
+                    }
+                    break;
+                case CALLER_RUNS:
+                    _callerRuns.incrementAndGet();
+                    task.run();
+                    break;
+                case DROP_OLDEST:
+                    Runnable oldest = lane.getQueue().poll();
+                    if (oldest != null) {
+                        ((TimedTask) oldest).dropped();
+                    }
+                    lane.execute(task);
+                    break;
+                case DROP_NEWEST:
+                default:
+                    ((TimedTask) task).dropped();
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Return the number of probes waiting for a worker.
+     *
+     * @return the queue depth
+     */
+    int queueDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor lane : _lanes) {
+            depth += lane.getQueue().size();
+        }
+        return depth;
+    }
+
+    long handedOff() {
+        return _handedOff.get();
+    }
+
+    long dropped() {
+        return _dropped.get();
+    }
+
+    long callerRuns() {
+        return _callerRuns.get();
+    }
+
+    /**
+     * Return the average time a probe waited between being handed off and a worker
+     * starting on it.
+     *
+     * @return the average handoff latency in microseconds
+     */
+    long averageHandoffMicros() {
+        long count = _handedOff.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(_handoffNanos.get() / count);
+    }
+
+    long maxHandoffMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(_maxHandoffNanos.get());
+    }
+
+    /**
+     * Stop taking probes and wait for the ones already queued to be processed.
+     *
+     * @param timeoutMillis the longest to wait
+     * @return true if every worker finished in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean shutdown(long timeoutMillis) throws InterruptedException {
+        for (ThreadPoolExecutor lane : _lanes) {
+            lane.shutdown();
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (ThreadPoolExecutor lane : _lanes) {
+            if (!lane.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.probe.transport.responder.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Flow control for the {@link MqttResponderTransport} when it acknowledges messages
+ * itself.
+ *
+ * <p>Each inbound message takes a slot in the window when it arrives and gets a
+ * {@link Receipt}.  Every probe in the message holds the receipt until it has been
+ * processed, dropped or rejected.  When the last one lets go the message is
+ * acknowledged to the broker and its slot is freed.  Once every slot is taken the
+ * callback thread waits for one, which stops the client reading from the broker, so a
+ * burst waits on the broker rather than in memory.
+ *
+ * <p>Message ids only mean something within the session they arrived in.  Each receipt
+ * is tagged with the session it was opened in, and once the connection is lost
+ * ({@link #newSession()}) receipts from the old session free their slot without
+ * acknowledging anything.  An id from the old session may already belong to another
+ * message on the new one, and the broker redelivers the old message if it kept the
+ * session.
+ */
+class ReceiveWindow {
+
+    private static final Logger LOGGER = Logger.getLogger(ReceiveWindow.class.getName());
+
+    /**
+     * Sends the acknowledgement for a message to the broker.
+     */
+    interface Acknowledger {
+        void acknowledge(int messageId, int qos) throws MqttException;
+    }
+
+    /**
+     * Tracks the probes of one message that are still being worked on.
+     */
+    class Receipt {
+
+        private final int _messageId;
+        private final int _qos;
+        private final int _session;
+        // the one taken out for the message itself, released once all its probes are handed on
+        private final AtomicInteger _pending = new AtomicInteger(1);
+
+        Receipt(int messageId, int qos, int session) {
+            _messageId = messageId;
+            _qos = qos;
+            _session = session;
+        }
+
+        /**
+         * Hold the receipt for another probe.
+         */
+        void hold() {
+            _pending.incrementAndGet();
+        }
+
+        /**
+         * Let go of the receipt, acknowledging the message if nothing else holds it.
+         */
+        void release() {
+            if (_pending.decrementAndGet() == 0) {
+                complete(_messageId, _qos, _session);
+            }
+        }
+    }
+
+    private final int _size;
+    private final Acknowledger _acknowledger;
+    private final Semaphore _slots;
+    private volatile boolean _closed;
+    private final AtomicInteger _session = new AtomicInteger();
+
+    private final AtomicLong _acknowledged = new AtomicLong();
+    private final AtomicLong _ackFailures = new AtomicLong();
+    private final AtomicLong _staleAcks = new AtomicLong();
+    private final AtomicLong _pauses = new AtomicLong();
+
+    ReceiveWindow(int size, Acknowledger acknowledger) {
+        _size = size;
+        _acknowledger = acknowledger;
+        _slots = new Semaphore(size);
+    }
+
+    /**
+     * Take a slot for the message, waiting for one if the window is full.
+     *
+     * @param messageId the MQTT message id
+     * @param qos       the QoS the message was delivered at
+     * @return the receipt for the message
+     * @throws InterruptedException if interrupted while waiting for a slot
+     */
+    Receipt open(int messageId, int qos) throws InterruptedException {
+        if (!_slots.tryAcquire()) {
+            _pauses.incrementAndGet();
+            LOGGER.fine("Receive window full, pausing intake");
+            _slots.acquire();
+        }
+        return new Receipt(messageId, qos, _session.get());
+    }
+
+    private void complete(int messageId, int qos, int session) {
+        try {
+            if (session != _session.get()) {
+                _staleAcks.incrementAndGet();
+                LOGGER.fine("Not acknowledging message [" + messageId + "] from a previous session");
+            } else if (!_closed) {
+                _acknowledger.acknowledge(messageId, qos);
+                _acknowledged.incrementAndGet();
+            }
+        } catch (MqttException e) {
+            // the broker will redeliver it if the session survives
+            _ackFailures.incrementAndGet();
+            LOGGER.fine("Unable to acknowledge message [" + messageId + "]: " + e.getMessage());
+        } finally {
+            _slots.release();
+        }
+    }
+
+    /**
+     * Note that the connection was lost, so receipts opened before now belong to a
+     * session whose message ids can no longer be acknowledged.
+     */
+    void newSession() {
+        _session.incrementAndGet();
+    }
+
+    /**
+     * Stop acknowledging and let anything waiting for a slot through, so the transport
+     * can shut down even if probes are stuck.
+     */
+    void close() {
+        _closed = true;
+        _slots.release(_size);
+    }
+
+    /**
+     * Return the number of messages taken in but not yet acknowledged.
+     *
+     * @return the slots in use
+     */
+    int inUse() {
+        return Math.max(0, _size - _slots.availablePermits());
+    }
+
+    long acknowledged() {
+        return _acknowledged.get();
+    }
+
+    long ackFailures() {
+        return _ackFailures.get();
+    }
+
+    /**
+     * Return the number of messages not acknowledged because the session they arrived
+     * in had been lost by the time they were done.
+     *
+     * @return the stale ack count
+     */
+    long staleAcks() {
+        return _staleAcks.get();
+    }
+
+    /**
+     * Return the number of times a message had to wait for a slot.
+     *
+     * @return the pause count
+     */
+    long pauses() {
+        return _pauses.get();
+    }
+
+}
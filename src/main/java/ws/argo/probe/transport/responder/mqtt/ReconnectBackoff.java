@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.probe.transport.responder.mqtt;
+
+import java.util.Random;
+
+/**
+ * Works out how long to wait before each reconnect attempt.  The delay doubles with
+ * every failed attempt, from {@code initialDelayMillis} up to {@code maxDelayMillis},
+ * and each delay is jittered down by up to half so that a fleet of responders that
+ * lost the broker together doesn't come back at it in lock step.
+ */
+class ReconnectBackoff {
+
+    private final long _initialDelayMillis;
+    private final long _maxDelayMillis;
+    private final Random _random;
+
+    ReconnectBackoff(long initialDelayMillis, long maxDelayMillis, Random random) {
+        _initialDelayMillis = Math.max(1, initialDelayMillis);
+        _maxDelayMillis = Math.max(_initialDelayMillis, maxDelayMillis);
+        _random = random;
+    }
+
+    /**
+     * Return the delay before the given attempt.
+     *
+     * @param attempt the attempt number, starting at 0
+     * @return the delay in milliseconds
+     */
+    long delayMillis(int attempt) {
+        long ceiling = _maxDelayMillis;
+        // stop shifting before it can overflow
+        if (attempt < 62 && (_initialDelayMillis << attempt) >> attempt == _initialDelayMillis) {
+            ceiling = Math.min(_maxDelayMillis, _initialDelayMillis << attempt);
+        }
+        long half = ceiling / 2;
+        return ceiling - half + (long) (_random.nextDouble() * (half + 1));
+    }
+
+}
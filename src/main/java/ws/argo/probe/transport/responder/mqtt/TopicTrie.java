@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.probe.transport.responder.mqtt;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Matches topic names against a set of MQTT topic filters, wildcards included, and
+ * returns the value registered for the best matching filter.
+ *
+ * <p>The filters are held as a tree with one level of the topic per node, so matching
+ * costs one map lookup per topic level however many filters there are.  When several
+ * filters match, a literal level beats {@code +} and {@code +} beats {@code #}, working
+ * from the left - so {@code a/b} wins over {@code a/+}, which wins over {@code a/#}.
+ *
+ * <p>As MQTT requires, wildcards in the first level don't match topics starting with
+ * {@code $}.
+ *
+ * @param <T> the type of value routed to
+ */
+class TopicTrie<T> {
+
+    private static class Node<T> {
+
+        final Map<String, Node<T>> children = new HashMap<>();
+        T value;
+        T multiLevelValue;
+    }
+
+    private final Node<T> _root = new Node<>();
+
+    /**
+     * Register a value for a topic filter.
+     *
+     * @param filter the topic filter
+     * @param value  the value to return for matching topics
+     * @throws IllegalArgumentException if {@code #} is used anywhere but the last level
+     */
+    void put(String filter, T value) {
+        String[] levels = filter.split("/", -1);
+        Node<T> node = _root;
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            if (level.equals("#")) {
+                if (i != levels.length - 1) {
+                    throw new IllegalArgumentException("Topic filter [" + filter + "] can only use # as the last level");
+                }
+                node.multiLevelValue = value;
+                return;
+            }
+            Node<T> child = node.children.get(level);
+            if (child == null) {
+                child = new Node<>();
+                node.children.put(level, child);
+            }
+            node = child;
+        }
+        node.value = value;
+    }
+
+    /**
+     * Return the value for the best filter matching the topic.
+     *
+     * @param topic the topic a message arrived on
+     * @return the value, or null if no filter matches
+     */
+    T match(String topic) {
+        return match(_root, topic.split("/", -1), 0, topic.startsWith("$"));
+    }
+
+    private T match(Node<T> node, String[] levels, int depth, boolean system) {
+        if (depth == levels.length) {
+            if (node.value != null) {
+                return node.value;
+            }
+            // "a/#" also matches "a" itself
+            return node.multiLevelValue;
+        }
+
+        Node<T> literal = node.children.get(levels[depth]);
+        if (literal != null) {
+            T value = match(literal, levels, depth + 1, system);
+            if (value != null) {
+                return value;
+            }
+        }
+
+        boolean wildcardsAllowed = !(system && depth == 0);
+        if (wildcardsAllowed) {
+            Node<T> single = node.children.get("+");
+            if (single != null) {
+                T value = match(single, levels, depth + 1, system);
+                if (value != null) {
+                    return value;
+                }
+            }
+            return node.multiLevelValue;
+        }
+        return null;
+    }
+
+}
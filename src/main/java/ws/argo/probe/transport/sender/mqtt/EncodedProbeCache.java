@@ -0,0 +1,163 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.probe.transport.sender.mqtt;
+
+import ws.argo.wireline.probe.ProbeWrapper;
+import ws.argo.wireline.probe.ProbeWrapper.RespondToURL;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, least-recently-used cache of encoded probe payloads.
+ *
+ * <p>Clients tend to send the same probe over and over, and serializing it is by far
+ * the most expensive part of sending it.  Entries are keyed by probe id.  Because a
+ * probe can be changed between sends, each entry also keeps a snapshot of the probe's
+ * contents and is only used if the probe still matches it - comparing the fields is
+ * much cheaper than serializing them.
+ */
+class EncodedProbeCache {
+
+    private final Map<String, CachedPayload> _entries;
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+
+    EncodedProbeCache(final int maxEntries) {
+        _entries = new LinkedHashMap<String, CachedPayload>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedPayload> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Return the cached payload for the probe, if the probe hasn't changed since it
+     * was cached.
+     *
+     * @param probe the probe
+     * @return the encoded payload or null
+     */
+    byte[] get(ProbeWrapper probe) {
+        String probeId = probe.getProbeId();
+        if (probeId != null) {
+            CachedPayload entry;
+            synchronized (_entries) {
+                entry = _entries.get(probeId);
+            }
+            if (entry != null && entry.matches(probe)) {
+                _hits.incrementAndGet();
+                return entry._payload;
+            }
+        }
+        _misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Cache the encoded payload for the probe, replacing any older version.
+     *
+     * @param probe   the probe
+     * @param payload its encoded payload
+     */
+    void put(ProbeWrapper probe, byte[] payload) {
+        String probeId = probe.getProbeId();
+        if (probeId == null) {
+            return;
+        }
+        CachedPayload entry = new CachedPayload(probe, payload);
+        synchronized (_entries) {
+            _entries.put(probeId, entry);
+        }
+    }
+
+    long hits() {
+        return _hits.get();
+    }
+
+    long misses() {
+        return _misses.get();
+    }
+
+    int size() {
+        synchronized (_entries) {
+            return _entries.size();
+        }
+    }
+
+    /**
+     * A snapshot of the probe contents along with the payload encoded from them.
+     */
+    private static class CachedPayload {
+
+        private final String _clientId;
+        private final String _desVersion;
+        private final String _respondToPayloadType;
+        private final List<String> _respondTo;
+        private final List<String> _serviceContractIds;
+        private final List<String> _serviceInstanceIds;
+        private final byte[] _payload;
+
+        CachedPayload(ProbeWrapper probe, byte[] payload) {
+            _clientId = probe.getClientId();
+            _desVersion = probe.getDESVersion();
+            _respondToPayloadType = probe.getRespondToPayloadType();
+            _respondTo = new ArrayList<>();
+            for (RespondToURL respondToURL : probe.getRespondToURLs()) {
+                _respondTo.add(respondToURL.getLabel());
+                _respondTo.add(respondToURL.getUrl());
+            }
+            _serviceContractIds = new ArrayList<>(probe.getServiceContractIDs());
+            _serviceInstanceIds = new ArrayList<>(probe.getServiceInstanceIDs());
+            _payload = payload;
+        }
+
+        boolean matches(ProbeWrapper probe) {
+            if (!equal(_clientId, probe.getClientId())
+                    || !equal(_desVersion, probe.getDESVersion())
+                    || !equal(_respondToPayloadType, probe.getRespondToPayloadType())
+                    || !_serviceContractIds.equals(probe.getServiceContractIDs())
+                    || !_serviceInstanceIds.equals(probe.getServiceInstanceIDs())) {
+                return false;
+            }
+
+            List<RespondToURL> respondToURLs = probe.getRespondToURLs();
+            if (respondToURLs.size() * 2 != _respondTo.size()) {
+                return false;
+            }
+            int i = 0;
+            for (RespondToURL respondToURL : respondToURLs) {
+                if (!equal(_respondTo.get(i++), respondToURL.getLabel()) || !equal(_respondTo.get(i++), respondToURL.getUrl())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+}
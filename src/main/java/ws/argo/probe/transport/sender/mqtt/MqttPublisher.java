@@ -0,0 +1,378 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.probe.transport.sender.mqtt;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import ws.argo.plugin.transport.exception.TransportConfigException;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A single connection to the MQTT broker used by the {@link MqttSenderTransport}.
+ *
+ * <p>The publisher wraps a {@link MqttAsyncClient} and keeps a window of the messages
+ * that have been handed to the client but not yet acknowledged by the broker.  Once the
+ * window is full, publishing blocks until the broker catches up.
+ *
+ * <p>The publisher also tracks its own health so that a transport with several
+ * connections can steer probes away from one that is down or failing.  A publisher
+ * that has failed {@link #MAX_CONSECUTIVE_FAILURES} times in a row is considered
+ * unhealthy until it has been left alone for {@link #RETRY_AFTER_MILLIS}.
+ *
+ * <p>If a publish timeout is set, neither waiting for room in the window nor waiting
+ * for the broker to acknowledge a synchronous publish will take longer than that.  A
+ * publish that runs out of time waiting for room fails with a {@link MqttException}
+ * whose reason code is {@link MqttException#REASON_CODE_CLIENT_TIMEOUT}.  One that runs
+ * out of time waiting for the broker has still been handed to the client and may yet be
+ * delivered, so it throws an {@link UnconfirmedPublishException} instead.  Its window
+ * slot is only freed when the client finishes with it, and its real outcome goes to the
+ * listener given to the publish.  Both are counted as timed out.
+ */
+class MqttPublisher implements MqttCallbackExtended {
+
+    private static final Logger LOGGER = Logger.getLogger(MqttPublisher.class.getName());
+
+    static final int MAX_CONSECUTIVE_FAILURES = 3;
+    static final long RETRY_AFTER_MILLIS = 5000L;
+
+    private final String _broker;
+    private final String _clientId;
+    private final MqttConnectOptions _connOpts;
+    private final int _maxInFlight;
+    private final long _publishTimeout;
+    private final Semaphore _window;
+
+    private IMqttAsyncClient _mqttClient;
+
+    private final AtomicLong _published = new AtomicLong();
+    private final AtomicLong _failed = new AtomicLong();
+    private final AtomicLong _timedOut = new AtomicLong();
+    private final AtomicLong _unconfirmed = new AtomicLong();
+    private volatile int _consecutiveFailures;
+    private volatile long _lastFailure;
+
+    MqttPublisher(String broker, String clientId, MqttConnectOptions connOpts, int maxInFlight, long publishTimeout) {
+        _broker = broker;
+        _clientId = clientId;
+        _connOpts = connOpts;
+        _maxInFlight = maxInFlight;
+        _publishTimeout = publishTimeout;
+        // fair so that a flush waiting on the whole window is not starved by new sends
+        _window = new Semaphore(maxInFlight, true);
+    }
+
+    /**
+     * Publish through a client that is already connected.
+     */
+    MqttPublisher(IMqttAsyncClient client, int maxInFlight, long publishTimeout) {
+        this(client.getServerURI(), client.getClientId(), null, maxInFlight, publishTimeout);
+        _mqttClient = client;
+    }
+
+    void connect() throws TransportConfigException {
+        try {
+            _mqttClient = new MqttAsyncClient(_broker, _clientId, new MemoryPersistence());
+            _mqttClient.setCallback(this);
+            LOGGER.fine("Connecting to broker [" + _broker + "]");
+            _mqttClient.connect(_connOpts).waitForCompletion();
+            LOGGER.fine("Connected MQTT Client [" + _clientId + "] to broker [" + _broker + "]");
+        } catch (MqttException me) {
+            throw new TransportConfigException("Error connecting [" + _clientId + "] broker [" + _broker + "]", me);
+        }
+    }
+
+    /**
+     * Publish the message and wait until it has been delivered to the broker.
+     *
+     * @param topic        the topic to publish on
+     * @param message      the message
+     * @param unconfirmed  told about the outcome if the wait for the broker times out,
+     *                     may be null
+     * @throws UnconfirmedPublishException if the broker didn't acknowledge the message
+     *                                     within the publish timeout
+     * @throws MqttException               if the publish fails or there is no room in
+     *                                     the window before the publish timeout
+     * @throws InterruptedException        if interrupted while waiting for room in the
+     *                                     window
+     */
+    void publish(String topic, MqttMessage message, IMqttActionListener unconfirmed) throws MqttException, InterruptedException {
+        acquireWindow();
+        SyncDelivery delivery = new SyncDelivery(unconfirmed);
+        IMqttDeliveryToken token;
+        try {
+            token = _mqttClient.publish(topic, message, null, delivery);
+        } catch (MqttException e) {
+            _window.release();
+            recordFailure();
+            throw e;
+        }
+
+        try {
+            // Wait until the message has been delivered to the broker
+            if (_publishTimeout > 0) {
+                token.waitForCompletion(_publishTimeout);
+            } else {
+                token.waitForCompletion();
+            }
+        } catch (MqttException e) {
+            if (e.getReasonCode() == MqttException.REASON_CODE_CLIENT_TIMEOUT && delivery.abandon()) {
+                // still with the client, which may deliver it yet
+                _timedOut.incrementAndGet();
+                _unconfirmed.incrementAndGet();
+                throw new UnconfirmedPublishException(e);
+            }
+            recordFailure();
+            throw e;
+        }
+        recordSuccess();
+    }
+
+    /**
+     * Frees the window slot of a synchronous publish once the client is done with it,
+     * and passes on the outcome if the publisher gave up waiting for it.
+     */
+    private class SyncDelivery implements IMqttActionListener {
+
+        private final IMqttActionListener _unconfirmed;
+        private boolean _complete;
+        private boolean _abandoned;
+
+        SyncDelivery(IMqttActionListener unconfirmed) {
+            _unconfirmed = unconfirmed;
+        }
+
+        /**
+         * Stop waiting on the outcome.
+         *
+         * @return false if the outcome is already known
+         */
+        synchronized boolean abandon() {
+            if (_complete) {
+                return false;
+            }
+            _abandoned = true;
+            return true;
+        }
+
+        private synchronized boolean complete() {
+            _complete = true;
+            return _abandoned;
+        }
+
+        @Override
+        public void onSuccess(IMqttToken token) {
+            _window.release();
+            if (complete()) {
+                recordSuccess();
+                if (_unconfirmed != null) {
+                    _unconfirmed.onSuccess(token);
+                }
+            }
+        }
+
+        @Override
+        public void onFailure(IMqttToken token, Throwable throwable) {
+            _window.release();
+            if (complete()) {
+                recordFailure();
+                if (_unconfirmed != null) {
+                    _unconfirmed.onFailure(token, throwable);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hand the message to the MQTT client and return without waiting for the broker.
+     * The listener is told about the outcome once the broker has responded.  If the
+     * in-flight window is full this blocks until a slot frees up.
+     *
+     * @param topic    the topic to publish on
+     * @param message  the message
+     * @param listener told about the outcome of the publish
+     * @throws MqttException        if the client refuses the message outright or there
+     *                              is no room in the window before the publish timeout
+     * @throws InterruptedException if interrupted while waiting for room in the window
+     */
+    void publishAsync(String topic, MqttMessage message, final IMqttActionListener listener) throws MqttException, InterruptedException {
+        acquireWindow();
+        try {
+            _mqttClient.publish(topic, message, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken token) {
+                    _window.release();
+                    recordSuccess();
+                    listener.onSuccess(token);
+                }
+
+                @Override
+                public void onFailure(IMqttToken token, Throwable throwable) {
+                    _window.release();
+                    recordFailure();
+                    listener.onFailure(token, throwable);
+                }
+            });
+        } catch (MqttException e) {
+            _window.release();
+            recordFailure();
+            throw e;
+        }
+    }
+
+    private void acquireWindow() throws MqttException, InterruptedException {
+        if (_publishTimeout <= 0) {
+            _window.acquire();
+        } else if (!_window.tryAcquire(_publishTimeout, TimeUnit.MILLISECONDS)) {
+            _timedOut.incrementAndGet();
+            recordFailure();
+            throw new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT);
+        }
+    }
+
+    private void recordSuccess() {
+        _published.incrementAndGet();
+        _consecutiveFailures = 0;
+    }
+
+    private void recordFailure() {
+        _failed.incrementAndGet();
+        _lastFailure = System.currentTimeMillis();
+        _consecutiveFailures++;
+    }
+
+    /**
+     * Return true if probes should be sent through this publisher.
+     *
+     * @return true if connected and not failing repeatedly
+     */
+    boolean isHealthy() {
+        if (_mqttClient == null || !_mqttClient.isConnected()) {
+            return false;
+        }
+        return _consecutiveFailures < MAX_CONSECUTIVE_FAILURES
+                || System.currentTimeMillis() - _lastFailure > RETRY_AFTER_MILLIS;
+    }
+
+    long publishedCount() {
+        return _published.get();
+    }
+
+    long failedCount() {
+        return _failed.get();
+    }
+
+    long timedOutCount() {
+        return _timedOut.get();
+    }
+
+    long unconfirmedCount() {
+        return _unconfirmed.get();
+    }
+
+    @Override
+    public void connectComplete(boolean reconnect, String serverURI) {
+        if (reconnect) {
+            _consecutiveFailures = 0;
+            LOGGER.info("MQTT Client [" + _clientId + "] reconnected to broker [" + serverURI + "]");
+        }
+    }
+
+    @Override
+    public void connectionLost(Throwable throwable) {
+        LOGGER.warning("MQTT Client [" + _clientId + "] lost connection to broker [" + _broker + "]: " + throwable.getMessage());
+    }
+
+    @Override
+    public void messageArrived(String topic, MqttMessage message) {
+        // publish only - nothing is subscribed
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token) {
+        // outcomes are handled by the tokens and action listeners
+    }
+
+    /**
+     * Wait until every message handed to this publisher has been acknowledged.
+     *
+     * @param timeoutMillis how long to wait
+     * @return true if the window drained, false if the timeout expired first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean flush(long timeoutMillis) throws InterruptedException {
+        if (_window.tryAcquire(_maxInFlight, timeoutMillis, TimeUnit.MILLISECONDS)) {
+            _window.release(_maxInFlight);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Return the number of messages handed to the client that the broker has not
+     * acknowledged yet.
+     *
+     * @return the in-flight count
+     */
+    int inFlight() {
+        return _maxInFlight - _window.availablePermits();
+    }
+
+    void disconnect() throws MqttException {
+        _mqttClient.disconnect().waitForCompletion();
+        _mqttClient.close();
+    }
+
+    /**
+     * Release the client and its threads whether or not it ever connected.
+     */
+    void closeQuietly() {
+        if (_mqttClient == null) {
+            return;
+        }
+        try {
+            if (_mqttClient.isConnected()) {
+                _mqttClient.disconnect().waitForCompletion();
+            }
+        } catch (MqttException e) {
+            LOGGER.fine("Error disconnecting [" + _clientId + "] from broker [" + _broker + "]: " + e.getMessage());
+        }
+        try {
+            _mqttClient.close();
+        } catch (MqttException e) {
+            LOGGER.fine("Error closing [" + _clientId + "]: " + e.getMessage());
+        }
+    }
+
+    String getClientId() {
+        return _clientId;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.probe.transport.sender.mqtt;
+
+import ws.argo.probe.Probe;
+
+/**
+ * Callback interface for the asynchronous mode of the {@link MqttSenderTransport}.
+ * When the transport is running asynchronously, sendProbe returns as soon as the
+ * probe is handed to the MQTT client and the outcome of the publish is reported
+ * here instead.
+ *
+ * <p>The callbacks are made on the MQTT client's callback thread, so implementations
+ * should return quickly.
+ */
+public interface MqttSendListener {
+
+    /**
+     * The probe was delivered to the broker.
+     *
+     * @param probe the probe that was published
+     */
+    void probeSent(Probe probe);
+
+    /**
+     * The probe could not be delivered to the broker.
+     *
+     * @param probe the probe that failed
+     * @param cause the reason it failed
+     */
+    void probeFailed(Probe probe, Throwable cause);
+
+    /**
+     * The broker could not be reached so the probe was written to the outbound journal.
+     * It will be published when the broker is reachable again, but no further callback
+     * is made for it as the journal may outlive this transport.
+     *
+     * @param probe the probe that was journaled
+     */
+    void probeQueued(Probe probe);
+
+}
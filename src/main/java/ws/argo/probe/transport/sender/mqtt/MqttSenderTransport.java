@@ -19,21 +19,35 @@
 
 package ws.argo.probe.transport.sender.mqtt;
 
-import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
-import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
-import org.eclipse.paho.client.mqttv3.MqttTopic;
-import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import ws.argo.plugin.transport.sender.Transport;
 import ws.argo.plugin.transport.exception.TransportConfigException;
 import ws.argo.plugin.transport.exception.TransportException;
 import ws.argo.probe.Probe;
 import ws.argo.probe.ProbeSenderException;
+import ws.argo.probe.transport.mqtt.wire.PayloadCompressor;
+import ws.argo.probe.transport.mqtt.wire.ProbeCodec;
+import ws.argo.probe.transport.mqtt.wire.ProbeCodecs;
+import ws.argo.probe.transport.mqtt.wire.ProbeDictionary;
+import ws.argo.probe.transport.mqtt.wire.ProbeRoute;
+import ws.argo.probe.transport.mqtt.wire.TopicTemplate;
+import ws.argo.probe.transport.mqtt.wire.WireFormat;
+import ws.argo.wireline.probe.ProbeParseException;
+import ws.argo.wireline.probe.ProbeWrapper;
 
-import javax.xml.bind.JAXBException;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static java.lang.Integer.parseInt;
@@ -41,25 +55,110 @@ import static java.lang.Integer.parseInt;
 /**
  * The MQTT probe Transport will support sending Argo probes via a MQTT broker.
  * <p>
+ * By default each probe is published synchronously - sendProbe returns once the broker
+ * has the message.  Setting {@code asyncMode=true} makes sendProbe return as soon as the
+ * message is queued with the MQTT client.  At most {@code maxInFlight} messages may be
+ * waiting on the broker at once, and the outcome of each publish is reported to the
+ * {@link MqttSendListener}.  Use {@link #flush(long)} or {@link #close()} to drain the
+ * messages still in flight.
+ * <p>
+ * Setting {@code batchMaxProbes} above 1 turns on batching.  Probes are collected until
+ * there are {@code batchMaxProbes} of them, the batch would grow past {@code batchMaxBytes}
+ * or the first probe has waited {@code batchLingerMillis}, and are then published together
+ * as one envelope message.  Batched probes report their outcome to the
+ * {@link MqttSendListener} in either mode.
+ * <p>
+ * Probes are sent as XML unless {@code wireFormat=binary} selects the compact binary
+ * encoding.  The responder transport works out the format of each message itself.
+ * <p>
+ * With {@code compression=deflate}, messages of at least {@code compressionThreshold}
+ * bytes are deflated, by default against a preset dictionary of common probe text
+ * (see {@code compressionDictionary}).  The responder transport inflates them itself.
+ * <p>
+ * The encoded payloads of the last {@code serializationCacheSize} probes are kept, so
+ * re-sending an unchanged probe skips serialization altogether.
+ * <p>
+ * A single MQTT connection has one network socket and one send thread.  Setting
+ * {@code connections} above 1 opens that many connections, with client ids derived from
+ * {@code clientId}, and spreads the probes across them - round robin by default, or by
+ * a hash of the probe's client id with {@code shardBy=clientId} so that each client's
+ * probes stay in order.  Connections that are down or failing are skipped until they
+ * recover.
+ * <p>
+ * Setting {@code journalFile} turns on store-and-forward.  While the broker can't be
+ * reached, messages are written to a memory-mapped journal of at most
+ * {@code journalMaxBytes} instead of failing, and a background thread replays them in
+ * order once the broker is back.  Anything still in the journal when the transport is
+ * closed is replayed the next time it starts.
+ * <p>
+ * Setting {@code sendQueueSize} puts a bounded queue in front of each connection, so
+ * sendProbe only encodes the probe and queues it while a dispatcher thread does the
+ * publishing.  The {@code overflowPolicy} decides what happens when a queue is full:
+ * {@code block} waits up to {@code enqueueTimeoutMillis} for room, {@code dropOldest}
+ * and {@code dropNewest} throw a probe away and {@code failFast} fails the send.  Queued
+ * probes report their outcome to the {@link MqttSendListener}.  Independently,
+ * {@code publishTimeoutMillis} limits how long a publish waits on the broker.
+ * <p>
+ * The {@code mqttTopic} may contain a {@code {contractId}} or {@code {partition}}
+ * placeholder (see {@link TopicTemplate}) to publish each probe on a topic of its own
+ * service contracts, or on one of {@code topicPartitions} hashed partitions.  Responders
+ * then subscribe only to the contracts they answer.  Each probe is published once.  A
+ * probe naming contracts on several topics goes to the catch-all topic instead of each
+ * of them, so no responder receives it twice.
+ * <p>
  * Created by jmsimpson on 10/16/15.
  */
 public class MqttSenderTransport implements Transport {
 
     private static final String DEFAULT_TOPIC = "mqtt_default";
+    private static final int DEFAULT_MAX_IN_FLIGHT = 10;
+    private static final long DRAIN_TIMEOUT = 30000L;
+    private static final int DEFAULT_BATCH_MAX_BYTES = 65536;
+    private static final int DEFAULT_BATCH_LINGER_MILLIS = 5;
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 512;
+    private static final int DEFAULT_SERIALIZATION_CACHE_SIZE = 128;
+    private static final int DEFAULT_JOURNAL_MAX_BYTES = 64 * 1024 * 1024;
+    private static final long REPLAY_RETRY_MILLIS = 1000L;
+    private static final int DEFAULT_ENQUEUE_TIMEOUT_MILLIS = 5000;
+    private static final int DEFAULT_TOPIC_PARTITIONS = 16;
 
     private static final Logger LOGGER = Logger.getLogger(MqttSenderTransport.class.getName());
 
     // Properties
     private String _topicName;
-    private MqttTopic _topic;
+    private TopicTemplate _topics;
     private int _qos;
     private String _broker;
     private String _clientId;
     private String _username;
     private String _password;
-    private MemoryPersistence _persistence;
-    private MqttClient _mqttClient;
+    private ProbeCodec _codec;
+    private EncodedProbeCache _encodedCache;
+    private boolean _asyncMode;
+    private int _maxInFlight;
+    private int _batchMaxProbes;
+    private int _batchMaxBytes;
+    private int _batchLingerMillis;
+    private int _maxPayloadSize;
+    private PayloadCompressor _compressor;
+    private int _connections;
+    private boolean _shardByClientId;
+    private MqttPublisher[] _publishers;
+    private ProbeBatcher[] _batchers;
+    private final AtomicInteger _nextPublisher = new AtomicInteger();
     private MqttConnectOptions _connOpts;
+    private String _journalFile;
+    private int _journalMaxBytes;
+    private ProbeJournal _journal;
+    private Thread _journalReplayer;
+    private int _publishTimeout;
+    private int _sendQueueSize;
+    private SendQueue.OverflowPolicy _overflowPolicy;
+    private int _enqueueTimeout;
+    private SendQueue[] _sendQueues;
+    private volatile boolean _closing;
+
+    private volatile MqttSendListener _sendListener = new LoggingSendListener();
 
     /**
      * Initialize the transport with the values provided in the Properties object.
@@ -75,16 +174,58 @@ public class MqttSenderTransport implements Transport {
         processProperties(p);
         createMQTTConnection();
 
+        if (_journalFile != null) {
+            try {
+                _journal = new ProbeJournal(new File(_journalFile), _journalMaxBytes);
+            } catch (IOException e) {
+                throw new TransportConfigException("Unable to open journalFile [" + _journalFile + "]", e);
+            }
+            if (!_journal.isEmpty()) {
+                LOGGER.info("Replaying [" + _journal.depth() + "] journaled messages from [" + _journalFile + "]");
+            }
+            _journalReplayer = new Thread(new JournalReplayer(), "MQTT-Journal-Replayer-" + _clientId);
+            _journalReplayer.setDaemon(true);
+            _journalReplayer.start();
+        }
+
+        if (_batchMaxProbes > 1) {
+            // one batcher per connection so a batch never mixes probes bound for different connections
+            _batchers = new ProbeBatcher[_publishers.length];
+            for (int i = 0; i < _publishers.length; i++) {
+                final MqttPublisher publisher = _publishers[i];
+                _batchers[i] = new ProbeBatcher(_batchMaxProbes, _batchMaxBytes, _batchLingerMillis, new ProbeBatcher.BatchPublisher() {
+                    @Override
+                    public void publishBatch(String topic, byte[] payload, List<Probe> probes) {
+                        publishBatched(publisher, topic, payload, probes);
+                    }
+                });
+            }
+        }
+
+        if (_sendQueueSize > 0) {
+            _sendQueues = new SendQueue[_publishers.length];
+            for (int i = 0; i < _publishers.length; i++) {
+                final int shard = i;
+                _sendQueues[i] = new SendQueue("MQTT-Send-Queue-" + _publishers[i].getClientId(), _sendQueueSize, _overflowPolicy, _enqueueTimeout,
+                        new SendQueue.Dispatcher() {
+                            @Override
+                            public void dispatch(String topic, Probe probe, byte[] payload) {
+                                dispatchQueued(shard, topic, probe, payload);
+                            }
+
+                            @Override
+                            public void dropped(Probe probe, TransportException reason) {
+                                _sendListener.probeFailed(probe, reason);
+                            }
+                        });
+            }
+        }
+
     }
 
     private void processProperties(Properties p) throws TransportConfigException {
         _topicName = p.getProperty("mqttTopic", DEFAULT_TOPIC);
-        try {
-            _qos = parseInt(p.getProperty("qos", "0"));
-        } catch (NumberFormatException e) {
-            LOGGER.warning("Issue parsing the QOS [" + p.getProperty("qos") + "].  Using default of 0.");
-            _qos = 0;
-        }
+        _qos = intProperty(p, "qos", 0);
         _broker = p.getProperty("broker");
         _clientId = p.getProperty("clientId", "NO CLIENT ID");
 
@@ -96,37 +237,564 @@ public class MqttSenderTransport implements Transport {
             LOGGER.info("MQTT topic not defined.  Using the default MQTT Topic [" + DEFAULT_TOPIC + "]");
         }
 
+        try {
+            _topics = TopicTemplate.parse(_topicName, intProperty(p, "topicPartitions", DEFAULT_TOPIC_PARTITIONS));
+        } catch (IllegalArgumentException e) {
+            throw new TransportConfigException(e.getMessage(), e);
+        }
+
         _username = p.getProperty("username");
         _password = p.getProperty("password");
+
+        String wireFormat = p.getProperty("wireFormat", ProbeCodecs.XML.name());
+        _codec = ProbeCodecs.forName(wireFormat.trim());
+        if (_codec == null) {
+            throw new TransportConfigException("Unknown wireFormat [" + wireFormat + "]");
+        }
+
+        int cacheSize = intProperty(p, "serializationCacheSize", DEFAULT_SERIALIZATION_CACHE_SIZE);
+        _encodedCache = cacheSize > 0 ? new EncodedProbeCache(cacheSize) : null;
+
+        _asyncMode = Boolean.parseBoolean(p.getProperty("asyncMode", "false"));
+        _maxInFlight = intProperty(p, "maxInFlight", DEFAULT_MAX_IN_FLIGHT);
+        if (_maxInFlight < 1) {
+            LOGGER.warning("maxInFlight must be at least 1 [" + _maxInFlight + "].  Using default of " + DEFAULT_MAX_IN_FLIGHT + ".");
+            _maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+        }
+
+        _connections = intProperty(p, "connections", 1);
+        if (_connections < 1) {
+            LOGGER.warning("connections must be at least 1 [" + _connections + "].  Using 1.");
+            _connections = 1;
+        }
+        String shardBy = p.getProperty("shardBy", "roundRobin").trim();
+        if (shardBy.equalsIgnoreCase("clientId")) {
+            _shardByClientId = true;
+        } else if (!shardBy.equalsIgnoreCase("roundRobin")) {
+            throw new TransportConfigException("Unknown shardBy [" + shardBy + "]");
+        }
+
+        _journalFile = p.getProperty("journalFile");
+        _journalMaxBytes = intProperty(p, "journalMaxBytes", DEFAULT_JOURNAL_MAX_BYTES);
+
+        _publishTimeout = intProperty(p, "publishTimeoutMillis", 0);
+        _sendQueueSize = intProperty(p, "sendQueueSize", 0);
+        _enqueueTimeout = intProperty(p, "enqueueTimeoutMillis", DEFAULT_ENQUEUE_TIMEOUT_MILLIS);
+        String overflowPolicy = p.getProperty("overflowPolicy", "block");
+        try {
+            _overflowPolicy = SendQueue.OverflowPolicy.parse(overflowPolicy);
+        } catch (IllegalArgumentException e) {
+            throw new TransportConfigException("Unknown overflowPolicy [" + overflowPolicy + "]", e);
+        }
+
+        _batchMaxProbes = intProperty(p, "batchMaxProbes", 1);
+        _batchMaxBytes = intProperty(p, "batchMaxBytes", DEFAULT_BATCH_MAX_BYTES);
+        _batchLingerMillis = intProperty(p, "batchLingerMillis", DEFAULT_BATCH_LINGER_MILLIS);
+
+        String compression = p.getProperty("compression", "none").trim();
+        if (compression.equalsIgnoreCase("deflate")) {
+            String dictionary = p.getProperty("compressionDictionary", ProbeDictionary.BUILTIN);
+            try {
+                _compressor = new PayloadCompressor(ProbeDictionary.load(dictionary),
+                        intProperty(p, "compressionThreshold", DEFAULT_COMPRESSION_THRESHOLD));
+            } catch (IOException e) {
+                throw new TransportConfigException("Unable to read compressionDictionary [" + dictionary + "]", e);
+            }
+        } else if (!compression.equalsIgnoreCase("none")) {
+            throw new TransportConfigException("Unknown compression [" + compression + "]");
+        }
+
+        // the broker may be configured with a smaller limit than the protocol allows
+        int wireLimit = Math.min(intProperty(p, "maxPayloadSize", Integer.MAX_VALUE), WireFormat.maxMqttPayload(_topics.maxTopicLength(), _qos));
+        _maxPayloadSize = wireLimit;
+        if (_compressor != null) {
+            // leave room for the frame and for deflate's worst case expansion
+            _maxPayloadSize = (int) (wireLimit - (PayloadCompressor.maxCompressedLength(wireLimit) - wireLimit));
+        }
+        if (_batchMaxBytes > _maxPayloadSize) {
+            _batchMaxBytes = _maxPayloadSize;
+        }
+    }
+
+    private int intProperty(Properties p, String name, int defaultValue) {
+        String value = p.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.warning("Issue parsing the " + name + " [" + value + "].  Using default of " + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Set the listener that is told about the outcome of each publish when the transport
+     * is running in async mode.  By default failures are just logged.
+     *
+     * @param listener the listener
+     */
+    public void setSendListener(MqttSendListener listener) {
+        _sendListener = listener == null ? new LoggingSendListener() : listener;
     }
 
     /**
      * Actually send the probe out on transport mechanism.
      *
+     * <p>In async mode this returns as soon as the message is queued with the MQTT client
+     * and the outcome is reported to the {@link MqttSendListener}.  It will only block if
+     * the in-flight window is full.
+     *
+     * <p>With a send queue this returns once the probe is queued, and again the outcome
+     * is reported to the {@link MqttSendListener}.  What happens when the queue is full
+     * depends on the {@code overflowPolicy}.
+     *
+     * <p>If a synchronous publish runs past {@code publishTimeoutMillis} waiting for the
+     * broker, the message may still be delivered, so this returns without sending it
+     * again and the outcome is reported to the {@link MqttSendListener} once it is known.
+     *
      * @param probe the Probe instance that has been pre-configured
      * @throws ProbeSenderException if something bad happened when sending the
      *                              probe
      */
     public void sendProbe(Probe probe) throws TransportException {
+        ProbeWrapper wrapper = probe.getProbeWrapper();
+        send(probe, wrapper, encode(wrapper));
+    }
+
+    /**
+     * Send a probe that is being repeated, wrapped with the route it has taken through
+     * repeater gateways so far (see {@link ProbeRoute}).  Otherwise this is the same as
+     * {@link #sendProbe(Probe)}.
+     *
+     * @param probe the Probe being repeated
+     * @param route its route, including this hop
+     * @throws TransportException if something bad happened when sending the probe
+     */
+    public void sendProbe(Probe probe, ProbeRoute route) throws TransportException {
+        ProbeWrapper wrapper = probe.getProbeWrapper();
+        send(probe, wrapper, route.wrap(encode(wrapper)));
+    }
+
+    /**
+     * Send a probe that is being repeated as the payload it was received as, so that it
+     * isn't encoded again.  The payload must be in the {@code wireFormat} of this
+     * transport (see {@link ProbeCodecs#isWrittenBy(byte[], ProbeCodec)} and
+     * {@link #codec()}).  Otherwise this is the same as
+     * {@link #sendProbe(Probe, ProbeRoute)}.
+     *
+     * @param probe   the Probe being repeated
+     * @param payload the probe as it was received, which must not be changed afterwards
+     * @param route   its route, including this hop
+     * @throws TransportException if something bad happened when sending the probe
+     */
+    public void sendProbe(Probe probe, byte[] payload, ProbeRoute route) throws TransportException {
+        send(probe, probe.getProbeWrapper(), route.wrap(payload));
+    }
+
+    private void send(Probe probe, ProbeWrapper wrapper, byte[] payload) throws TransportException {
+        int shard = selectPublisher(wrapper);
+        String topic = _topics.topicForProbe(wrapper.getServiceContractIDs());
+
+        if (_sendQueues != null) {
+            _sendQueues[shard].offer(topic, probe, payload);
+        } else if (_batchers != null) {
+            _batchers[shard].add(topic, probe, payload);
+            LOGGER.fine("Probe batched for [" + topic + "] on broker [" + _broker + "] by [" + _publishers[shard].getClientId() + "]");
+        } else if (publish(_publishers[shard], topic, payload, Collections.singletonList(probe)) == PublishOutcome.PUBLISHED) {
+            LOGGER.fine("Probe published on [" + topic + "] on broker [" + _broker + "] by [" + _publishers[shard].getClientId() + "]");
+        }
+    }
+
+    /**
+     * Pick the connection for the probe.  If the preferred connection isn't healthy the
+     * next healthy one is used instead, which gives up per-client ordering until the
+     * preferred connection recovers.
+     */
+    private int selectPublisher(ProbeWrapper probe) {
+        int count = _publishers.length;
+        if (count == 1) {
+            return 0;
+        }
+
+        int preferred;
+        if (_shardByClientId) {
+            String clientId = probe.getClientId();
+            preferred = clientId == null ? 0 : (clientId.hashCode() & Integer.MAX_VALUE) % count;
+        } else {
+            preferred = (_nextPublisher.getAndIncrement() & Integer.MAX_VALUE) % count;
+        }
+
+        for (int i = 0; i < count; i++) {
+            int shard = (preferred + i) % count;
+            if (_publishers[shard].isHealthy()) {
+                return shard;
+            }
+        }
+        // nothing is healthy, so let the preferred connection report the failure
+        return preferred;
+    }
+
+    private byte[] encode(ProbeWrapper probe) throws TransportException {
+        byte[] payload = _encodedCache != null ? _encodedCache.get(probe) : null;
+        if (payload != null) {
+            return payload;
+        }
 
         try {
-            MqttMessage message = new MqttMessage(probe.asXML().getBytes());
-            message.setQos(_qos);
-            message.setRetained(false);
+            payload = _codec.encode(probe);
+        } catch (ProbeParseException e) {
+            throw new TransportException("Unable to send probe because it could not be serialized to " + _codec.name(), e);
+        }
 
-            MqttDeliveryToken token;
-            try {
-                token = _topic.publish(message);
-                // Wait until the message has been delivered to the broker
-                token.waitForCompletion(); // might want a timeout here
-            } catch (MqttException e) {
-                throw new TransportException("Error publishing message to broker [" + _broker + "]", e);
+        if (_encodedCache != null) {
+            _encodedCache.put(probe, payload);
+        }
+        return payload;
+    }
+
+    /**
+     * What became of a publish.
+     */
+    private enum PublishOutcome {
+        /**
+         * Handed to the broker, or to the client in async mode.
+         */
+        PUBLISHED,
+        /**
+         * Written to the journal.
+         */
+        JOURNALED,
+        /**
+         * Timed out waiting for the broker, the outcome goes to the send listener later.
+         */
+        UNCONFIRMED
+    }
+
+    /**
+     * Publish the payload, or journal it if the broker can't be reached.
+     *
+     * @return what became of it
+     */
+    private PublishOutcome publish(MqttPublisher publisher, String topic, byte[] payload, List<Probe> probes) throws TransportException {
+        if (_compressor != null) {
+            payload = _compressor.compress(payload);
+        }
+
+        if (_journal != null && (!_journal.isEmpty() || !publisher.isHealthy())) {
+            // anything already waiting in the journal has to go first
+            journal(topic, payload, probes, null);
+            return PublishOutcome.JOURNALED;
+        }
+
+        MqttMessage message = createMessage(payload);
+
+        try {
+            if (_asyncMode) {
+                publisher.publishAsync(topic, message, new ProbeDeliveryListener(topic, payload, probes));
+            } else {
+                publisher.publish(topic, message, new ProbeDeliveryListener(topic, payload, probes));
+            }
+            return PublishOutcome.PUBLISHED;
+        } catch (UnconfirmedPublishException e) {
+            // journaling or failing it now could deliver it twice
+            LOGGER.fine("No acknowledgement from broker [" + _broker + "] within [" + _publishTimeout + "] ms, outcome to follow");
+            return PublishOutcome.UNCONFIRMED;
+        } catch (MqttException e) {
+            if (_journal != null) {
+                journal(topic, payload, probes, e);
+                return PublishOutcome.JOURNALED;
+            }
+            throw new TransportException("Error publishing message to broker [" + _broker + "]", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransportException("Interrupted publishing message to broker [" + _broker + "]", e);
+        }
+    }
+
+    private MqttMessage createMessage(byte[] payload) {
+        MqttMessage message = new MqttMessage(payload);
+        message.setQos(_qos);
+        message.setRetained(false);
+        return message;
+    }
+
+    private void journal(String topic, byte[] payload, List<Probe> probes, Throwable cause) throws TransportException {
+        if (!_journal.append(topic, payload)) {
+            throw new TransportException("Outbound journal [" + _journalFile + "] is full, probe dropped", cause);
+        }
+        for (Probe probe : probes) {
+            _sendListener.probeQueued(probe);
+        }
+        LOGGER.fine("Broker [" + _broker + "] unavailable, journaled [" + probes.size() + "] probes");
+    }
+
+    /**
+     * Hand on a probe taken off a send queue, on the queue's dispatcher thread.
+     */
+    private void dispatchQueued(int shard, String topic, Probe probe, byte[] payload) {
+        if (_batchers != null) {
+            _batchers[shard].add(topic, probe, payload);
+        } else {
+            publishBatched(_publishers[shard], topic, payload, Collections.singletonList(probe));
+        }
+    }
+
+    /**
+     * Publish a batch handed on by the batcher, or a probe taken off a send queue.  There
+     * may be no caller waiting on this so the outcome always goes to the send listener.
+     */
+    private void publishBatched(MqttPublisher publisher, String topic, byte[] payload, List<Probe> probes) {
+        PublishOutcome outcome;
+        try {
+            outcome = publish(publisher, topic, payload, probes);
+        } catch (TransportException e) {
+            for (Probe probe : probes) {
+                _sendListener.probeFailed(probe, e);
+            }
+            return;
+        }
+
+        if (outcome == PublishOutcome.PUBLISHED && !_asyncMode) {
+            for (Probe probe : probes) {
+                _sendListener.probeSent(probe);
+            }
+        }
+        LOGGER.fine("Batch of [" + probes.size() + "] probes published on [" + topic + "] on broker [" + _broker + "] by [" + publisher.getClientId() + "]");
+    }
+
+    /**
+     * Wait until every probe sent so far has been acknowledged by the broker.
+     *
+     * @param timeoutMillis how long to wait
+     * @return true if everything was delivered, false if the timeout expired first
+     * @throws TransportException if interrupted while waiting
+     */
+    public boolean flush(long timeoutMillis) throws TransportException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            if (_sendQueues != null) {
+                for (SendQueue queue : _sendQueues) {
+                    if (!queue.awaitDrained(Math.max(0, deadline - System.currentTimeMillis()))) {
+                        return false;
+                    }
+                }
+            }
+            if (_batchers != null) {
+                for (ProbeBatcher batcher : _batchers) {
+                    batcher.flush();
+                }
+            }
+            for (MqttPublisher publisher : _publishers) {
+                if (!publisher.flush(Math.max(0, deadline - System.currentTimeMillis()))) {
+                    return false;
+                }
             }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransportException("Interrupted flushing [" + _clientId + "] on broker [" + _broker + "]", e);
+        }
+    }
 
-            LOGGER.fine("Probe published on broker [" + _broker + "] by [" + _clientId + "]");
-        } catch (JAXBException e) {
-            throw new TransportException("Unable to send probe because it could not be serialized to XML", e);
+    /**
+     * Return the number of probes that have been sent but not yet acknowledged by the broker.
+     *
+     * @return the in-flight count
+     */
+    public int inFlight() {
+        int inFlight = 0;
+        for (MqttPublisher publisher : _publishers) {
+            inFlight += publisher.inFlight();
         }
+        return inFlight;
+    }
+
+    /**
+     * Return the number of probes waiting in the send queues.
+     *
+     * @return the queued count, 0 if there are no send queues
+     */
+    public int queueDepth() {
+        int depth = 0;
+        if (_sendQueues != null) {
+            for (SendQueue queue : _sendQueues) {
+                depth += queue.depth();
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Return the number of probes thrown away by the dropOldest or dropNewest overflow
+     * policies.
+     *
+     * @return the dropped count
+     */
+    public long droppedCount() {
+        long dropped = 0;
+        if (_sendQueues != null) {
+            for (SendQueue queue : _sendQueues) {
+                dropped += queue.dropped();
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Return the number of probes refused by the failFast overflow policy.
+     *
+     * @return the rejected count
+     */
+    public long rejectedCount() {
+        long rejected = 0;
+        if (_sendQueues != null) {
+            for (SendQueue queue : _sendQueues) {
+                rejected += queue.rejected();
+            }
+        }
+        return rejected;
+    }
+
+    /**
+     * Return the number of synchronous publishes that ran out of time waiting for the
+     * broker while the client still had the message.  Their outcome is reported to the
+     * {@link MqttSendListener} when it is known.
+     *
+     * @return the unconfirmed count
+     */
+    public long unconfirmedCount() {
+        long unconfirmed = 0;
+        for (MqttPublisher publisher : _publishers) {
+            unconfirmed += publisher.unconfirmedCount();
+        }
+        return unconfirmed;
+    }
+
+    /**
+     * Return the number of sends that ran out of time, either waiting for room in a send
+     * queue or waiting on the broker past {@code publishTimeoutMillis}.
+     *
+     * @return the timed out count
+     */
+    public long timedOutCount() {
+        long timedOut = 0;
+        if (_sendQueues != null) {
+            for (SendQueue queue : _sendQueues) {
+                timedOut += queue.timedOut();
+            }
+        }
+        for (MqttPublisher publisher : _publishers) {
+            timedOut += publisher.timedOutCount();
+        }
+        return timedOut;
+    }
+
+    /**
+     * Return the number of messages waiting in the outbound journal.
+     *
+     * @return the journal depth, or 0 if there is no journal
+     */
+    public int journalDepth() {
+        return _journal != null ? _journal.depth() : 0;
+    }
+
+    /**
+     * Return the number of journaled messages that have been replayed to the broker.
+     *
+     * @return the replayed count
+     */
+    public long journalReplayed() {
+        return _journal != null ? _journal.replayed() : 0;
+    }
+
+    /**
+     * Return the number of journaled messages thrown away because they couldn't be read
+     * back or sent.
+     *
+     * @return the discarded count
+     */
+    public long journalDiscarded() {
+        return _journal != null ? _journal.discarded() : 0;
+    }
+
+    /**
+     * Return the rate journaled messages are being replayed, in messages per second,
+     * since the journal last started filling.
+     *
+     * @return the replay rate
+     */
+    public double journalReplayRate() {
+        return _journal != null ? _journal.replayRate() : 0;
+    }
+
+    /**
+     * Return how long the oldest journaled message has been waiting.
+     *
+     * @return the age in milliseconds, or 0 if nothing is waiting
+     */
+    public long journalOldestAgeMillis() {
+        return _journal != null ? _journal.oldestAgeMillis() : 0;
+    }
+
+    /**
+     * Return the number of connections currently able to take probes.
+     *
+     * @return the healthy connection count
+     */
+    public int healthyConnections() {
+        int healthy = 0;
+        for (MqttPublisher publisher : _publishers) {
+            if (publisher.isHealthy()) {
+                healthy++;
+            }
+        }
+        return healthy;
+    }
+
+    /**
+     * Return the number of messages each connection has delivered, in connection order.
+     *
+     * @return the per-connection delivered counts
+     */
+    public long[] publishedPerConnection() {
+        long[] counts = new long[_publishers.length];
+        for (int i = 0; i < _publishers.length; i++) {
+            counts[i] = _publishers[i].publishedCount();
+        }
+        return counts;
+    }
+
+    /**
+     * Return the number of messages each connection failed to deliver, in connection order.
+     *
+     * @return the per-connection failure counts
+     */
+    public long[] failedPerConnection() {
+        long[] counts = new long[_publishers.length];
+        for (int i = 0; i < _publishers.length; i++) {
+            counts[i] = _publishers[i].failedCount();
+        }
+        return counts;
+    }
+
+    /**
+     * Return the number of sends that reused a cached payload instead of serializing the probe.
+     *
+     * @return the serialization cache hit count
+     */
+    public long serializationCacheHits() {
+        return _encodedCache != null ? _encodedCache.hits() : 0;
+    }
+
+    /**
+     * Return the number of sends that had to serialize the probe.
+     *
+     * @return the serialization cache miss count
+     */
+    public long serializationCacheMisses() {
+        return _encodedCache != null ? _encodedCache.misses() : 0;
     }
 
     /**
@@ -136,10 +804,24 @@ public class MqttSenderTransport implements Transport {
      * probes. But other transports such as JMS or SNS might allow probe payload
      * sizes much larger (practically unlimited).
      *
+     * <p>For MQTT this is the most the protocol (or the configured {@code maxPayloadSize}
+     * of the broker) lets a message carry on the topic.  With compression on, it is
+     * reduced by deflate's worst case expansion so that any payload under the limit
+     * still fits once compressed.
+     *
      * @return max payload size in bytes
      */
     public int maxPayloadSize() {
-        return 250000000;
+        return _maxPayloadSize;
+    }
+
+    /**
+     * Return the codec probes are encoded with, as picked by {@code wireFormat}.
+     *
+     * @return the codec
+     */
+    public ProbeCodec codec() {
+        return _codec;
     }
 
     public String getNetworkInterfaceName() {
@@ -147,15 +829,66 @@ public class MqttSenderTransport implements Transport {
     }
 
     /**
-     * Close the transport.
+     * Close the transport.  Any probes still in flight are given a chance to reach the
+     * broker before the connection is closed.
      *
      * @throws ProbeSenderException if something bad happened
      */
     public void close() throws TransportException {
-        try {
-            _mqttClient.disconnect();
-        } catch (MqttException e) {
-            throw new TransportException("Error closing [" + _clientId + "] on broker [" + _broker + "]", e);
+        _closing = true;
+        if (_sendQueues != null) {
+            for (SendQueue queue : _sendQueues) {
+                // stops new probes, the dispatcher finishes what is queued
+                queue.close();
+            }
+            try {
+                for (SendQueue queue : _sendQueues) {
+                    if (!queue.awaitDrained(DRAIN_TIMEOUT)) {
+                        LOGGER.warning("Timed out draining [" + queue.depth() + "] queued probes for broker [" + _broker + "]");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (_batchers != null) {
+            for (ProbeBatcher batcher : _batchers) {
+                batcher.close();
+            }
+        }
+        if (!flush(DRAIN_TIMEOUT)) {
+            LOGGER.warning("Timed out waiting for [" + inFlight() + "] in-flight probes to reach broker [" + _broker + "]");
+        }
+
+        if (_journalReplayer != null) {
+            _journalReplayer.interrupt();
+            try {
+                _journalReplayer.join(DRAIN_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                try {
+                    _journal.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Error closing journal [" + _journalFile + "]", e);
+                }
+            }
+            if (_journal.depth() > 0) {
+                LOGGER.info("[" + _journal.depth() + "] messages left in journal [" + _journalFile + "] for the next start");
+            }
+        }
+
+        MqttException failure = null;
+        for (MqttPublisher publisher : _publishers) {
+            try {
+                publisher.disconnect();
+            } catch (MqttException e) {
+                LOGGER.log(Level.WARNING, "Error closing [" + publisher.getClientId() + "] on broker [" + _broker + "]", e);
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw new TransportException("Error closing [" + _clientId + "] on broker [" + _broker + "]", failure);
         }
         LOGGER.fine("Disconnected from MQTT: Client [" + _clientId + "] on broker [" + _broker + "]");
     }
@@ -171,19 +904,176 @@ public class MqttSenderTransport implements Transport {
         if (_password != null && !_password.isEmpty())
             _connOpts.setPassword(_password.toCharArray());
 
-        _persistence = new MemoryPersistence();
+        _connOpts.setMaxInflight(_maxInFlight);
+        // a dropped connection comes back on its own and rejoins the rotation
+        _connOpts.setAutomaticReconnect(true);
 
+        _publishers = new MqttPublisher[_connections];
+        for (int i = 0; i < _connections; i++) {
+            String clientId = _connections == 1 ? _clientId : _clientId + "-" + i;
+            _publishers[i] = new MqttPublisher(_broker, clientId, _connOpts, _maxInFlight, _publishTimeout);
+        }
         try {
+            for (MqttPublisher publisher : _publishers) {
+                publisher.connect();
+            }
+        } catch (TransportConfigException e) {
+            // every client created, connected or not, has threads to let go of
+            for (MqttPublisher publisher : _publishers) {
+                publisher.closeQuietly();
+            }
+            throw e;
+        }
+    }
 
-            _mqttClient = new MqttClient(_broker, _clientId, _persistence);
-            LOGGER.fine("Connecting to broker [" + _broker + "]");
-            _mqttClient.connect(_connOpts);
+    /**
+     * Replays journaled messages, oldest first, whenever a connection is healthy.
+     */
+    private class JournalReplayer implements Runnable {
+
+        @Override
+        public void run() {
+            while (!_closing) {
+                try {
+                    ProbeJournal.Record record = _journal.peek();
+                    if (record == null) {
+                        _journal.awaitRecords(REPLAY_RETRY_MILLIS);
+                        continue;
+                    }
+
+                    MqttPublisher publisher = healthyPublisher();
+                    if (publisher == null) {
+                        Thread.sleep(REPLAY_RETRY_MILLIS);
+                        continue;
+                    }
+
+                    ReplayOutcome outcome = new ReplayOutcome();
+                    try {
+                        publisher.publish(record.topic, createMessage(record.payload), outcome);
+                        _journal.remove(record);
+                    } catch (UnconfirmedPublishException e) {
+                        // sending it again now could deliver it twice, so wait to hear
+                        if (outcome.await()) {
+                            _journal.remove(record);
+                        } else if (!_closing) {
+                            LOGGER.fine("Journal replay to broker [" + _broker + "] failed, will retry");
+                            Thread.sleep(REPLAY_RETRY_MILLIS);
+                        }
+                    } catch (MqttException e) {
+                        LOGGER.fine("Journal replay to broker [" + _broker + "] failed, will retry: " + e.getMessage());
+                        Thread.sleep(REPLAY_RETRY_MILLIS);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    // a record that can't be read or sent mustn't stop the ones behind it
+                    int discarded = _journal.discardHead();
+                    LOGGER.log(Level.WARNING, "Discarded [" + discarded + "] unreadable records from journal [" + _journalFile + "]", e);
+                }
+            }
+        }
+
+        /**
+         * Waits for the outcome of a replayed message that the broker was slow to
+         * acknowledge.
+         */
+        private class ReplayOutcome implements IMqttActionListener {
+
+            private final CountDownLatch _done = new CountDownLatch(1);
+            private volatile boolean _delivered;
+
+            @Override
+            public void onSuccess(IMqttToken token) {
+                _delivered = true;
+                _done.countDown();
+            }
+
+            @Override
+            public void onFailure(IMqttToken token, Throwable throwable) {
+                _done.countDown();
+            }
+
+            /**
+             * Wait for the outcome.
+             *
+             * @return true if the message was delivered, false if it failed or the
+             *     transport is closing
+             */
+            boolean await() throws InterruptedException {
+                while (!_done.await(REPLAY_RETRY_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (_closing) {
+                        return false;
+                    }
+                }
+                return _delivered;
+            }
+        }
+
+        private MqttPublisher healthyPublisher() {
+            for (MqttPublisher publisher : _publishers) {
+                if (publisher.isHealthy()) {
+                    return publisher;
+                }
+            }
+            return null;
+        }
+    }
 
-            _topic = _mqttClient.getTopic(_topicName);
+    /**
+     * Reports the outcome of an asynchronous publish, or of a synchronous one that timed
+     * out waiting for the broker, to the send listener.  If there is a journal, failed
+     * messages go there instead.
+     */
+    private class ProbeDeliveryListener implements IMqttActionListener {
+
+        private final String _topic;
+        private final byte[] _payload;
+        private final List<Probe> _probes;
+
+        ProbeDeliveryListener(String topic, byte[] payload, List<Probe> probes) {
+            _topic = topic;
+            _payload = payload;
+            _probes = probes;
+        }
+
+        @Override
+        public void onSuccess(IMqttToken token) {
+            for (Probe probe : _probes) {
+                _sendListener.probeSent(probe);
+            }
+        }
+
+        @Override
+        public void onFailure(IMqttToken token, Throwable throwable) {
+            if (_journal != null) {
+                try {
+                    journal(_topic, _payload, _probes, throwable);
+                    return;
+                } catch (TransportException e) {
+                    throwable = e;
+                }
+            }
+            for (Probe probe : _probes) {
+                _sendListener.probeFailed(probe, throwable);
+            }
+        }
+    }
+
+    private class LoggingSendListener implements MqttSendListener {
+
+        @Override
+        public void probeSent(Probe probe) {
+            LOGGER.finest("Probe delivered to broker [" + _broker + "] by [" + _clientId + "]");
+        }
+
+        @Override
+        public void probeFailed(Probe probe, Throwable cause) {
+            LOGGER.log(Level.WARNING, "Error publishing message to broker [" + _broker + "]", cause);
+        }
 
-            LOGGER.fine("Connected MQTT Client [" + _clientId + "] to broker [" + _broker + "]");
-        } catch (MqttException me) {
-            throw new TransportConfigException("Error connecting [" + _clientId + "] broker [" + _broker + "]", me);
+        @Override
+        public void probeQueued(Probe probe) {
+            LOGGER.finest("Probe journaled for broker [" + _broker + "] by [" + _clientId + "]");
         }
     }
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.probe.transport.sender.mqtt;
+
+import ws.argo.probe.Probe;
+import ws.argo.probe.transport.mqtt.wire.ProbeEnvelope;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects probe payloads and hands them on as a single {@link ProbeEnvelope}.
+ *
+ * <p>A batch is handed on when it holds {@code maxProbes} probes, when the next probe
+ * would push the envelope past {@code maxBytes}, or when the first probe in the batch
+ * has waited {@code lingerMillis}.  A batch holding only one probe is handed on as the
+ * plain probe payload so that responders which don't understand envelopes still see it.
+ *
+ * <p>Each topic has a batch of its own, since an envelope is published on one topic.
+ */
+class ProbeBatcher {
+
+    /**
+     * Receives the finished batches.  It is responsible for reporting its own failures
+     * as there is no caller to throw them to when the linger timer fires.
+     */
+    interface BatchPublisher {
+
+        void publishBatch(String topic, byte[] payload, List<Probe> probes);
+
+    }
+
+    /**
+     * The probes collected so far for one topic.
+     */
+    private class Batch implements Runnable {
+
+        final String topic;
+        final List<Probe> probes = new ArrayList<>();
+        final List<byte[]> payloads = new ArrayList<>();
+        int bytes = ProbeEnvelope.ENVELOPE_OVERHEAD;
+        ScheduledFuture<?> lingerTask;
+
+        Batch(String topic) {
+            this.topic = topic;
+        }
+
+        @Override
+        public void run() {
+            synchronized (ProbeBatcher.this) {
+                // the batch may have been handed on already and replaced
+                if (_batches.get(topic) == this) {
+                    flush(this);
+                }
+            }
+        }
+    }
+
+    private final int _maxProbes;
+    private final int _maxBytes;
+    private final long _lingerMillis;
+    private final BatchPublisher _publisher;
+    private final ScheduledExecutorService _lingerTimer;
+
+    private final Map<String, Batch> _batches = new HashMap<>();
+
+    ProbeBatcher(int maxProbes, int maxBytes, long lingerMillis, BatchPublisher publisher) {
+        _maxProbes = maxProbes;
+        _maxBytes = maxBytes;
+        _lingerMillis = lingerMillis;
+        _publisher = publisher;
+        _lingerTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MQTT-Probe-Batcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Add a probe to the current batch for its topic, handing the batch on if it is now full.
+     *
+     * @param topic   the topic the probe is published on
+     * @param probe   the probe
+     * @param payload the serialized probe
+     */
+    synchronized void add(String topic, Probe probe, byte[] payload) {
+        int entrySize = ProbeEnvelope.ENTRY_OVERHEAD + payload.length;
+        Batch batch = _batches.get(topic);
+
+        if (ProbeEnvelope.ENVELOPE_OVERHEAD + entrySize > _maxBytes) {
+            // too big to share an envelope with anything, so send it on its own
+            if (batch != null) {
+                flush(batch);
+            }
+            _publisher.publishBatch(topic, payload, Collections.singletonList(probe));
+            return;
+        }
+
+        if (batch != null && batch.bytes + entrySize > _maxBytes) {
+            flush(batch);
+            batch = null;
+        }
+        if (batch == null) {
+            batch = new Batch(topic);
+            _batches.put(topic, batch);
+        }
+
+        batch.probes.add(probe);
+        batch.payloads.add(payload);
+        batch.bytes += entrySize;
+
+        if (batch.probes.size() >= _maxProbes) {
+            flush(batch);
+        } else if (batch.probes.size() == 1) {
+            batch.lingerTask = _lingerTimer.schedule(batch, _lingerMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Hand on whatever is in the current batches.
+     */
+    synchronized void flush() {
+        for (Batch batch : new ArrayList<>(_batches.values())) {
+            flush(batch);
+        }
+    }
+
+    private void flush(Batch batch) {
+        _batches.remove(batch.topic);
+        if (batch.lingerTask != null) {
+            batch.lingerTask.cancel(false);
+        }
+        if (batch.probes.isEmpty()) {
+            return;
+        }
+
+        byte[] payload = batch.payloads.size() == 1 ? batch.payloads.get(0) : ProbeEnvelope.pack(batch.payloads);
+        _publisher.publishBatch(batch.topic, payload, batch.probes);
+    }
+
+    /**
+     * Hand on the current batches and stop the linger timer.
+     */
+    void close() {
+        flush();
+        _lingerTimer.shutdown();
+    }
+
+}
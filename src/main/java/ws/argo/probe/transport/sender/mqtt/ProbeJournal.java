@@ -0,0 +1,339 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.probe.transport.sender.mqtt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A durable outbound queue of MQTT messages that could not be delivered to the broker.
+ *
+ * <p>The journal is a single memory-mapped segment file of fixed size.  Messages are
+ * appended at the write position and consumed in order from the read position.  When
+ * an append doesn't fit, the unconsumed messages are moved back to the start of the
+ * segment; if it still doesn't fit the journal is full.  The positions and message
+ * count are kept in a small header at the front of the file, so whatever has not been
+ * replayed is picked up again the next time the journal is opened.
+ *
+ * <p>Each record is a 4 byte record length, the 8 byte time it was journaled, the
+ * 2 byte length of the topic, the UTF-8 topic and then the message payload.
+ *
+ * <p>Records are matched to the journal by their sequence number rather than their
+ * position, which changes when the journal is compacted.  A record that can't be read
+ * back can be discarded with {@link #discardHead()} so it doesn't block the rest.
+ *
+ * <p>Writes go to the mapped pages and reach the disk when the operating system flushes
+ * them, so the journal survives the process dying but not necessarily the machine.
+ */
+class ProbeJournal {
+
+    /**
+     * A message read back from the journal.
+     */
+    static class Record {
+
+        final String topic;
+        final byte[] payload;
+        final long journaledAt;
+        private final long _sequence;
+        private final int _length;
+
+        Record(String topic, byte[] payload, long journaledAt, long sequence, int length) {
+            this.topic = topic;
+            this.payload = payload;
+            this.journaledAt = journaledAt;
+            _sequence = sequence;
+            _length = length;
+        }
+    }
+
+    private static final int MAGIC = 0x41524A31; // "ARJ1"
+    private static final int HEADER_LENGTH = 4 + 4 + 4 + 4;
+    private static final int RECORD_OVERHEAD = 4 + 8 + 2;
+
+    private final File _file;
+    private final RandomAccessFile _raf;
+    private final FileChannel _channel;
+    private final MappedByteBuffer _buffer;
+    private final int _capacity;
+
+    private int _readPos;
+    private int _writePos;
+    private int _count;
+    // the sequence number of the oldest record, one more for every record taken off
+    private long _headSequence;
+    private long _replayed;
+    private long _discarded;
+    private long _replayStarted;
+    private long _replayedSinceStart;
+
+    ProbeJournal(File file, int capacity) throws IOException {
+        _file = file;
+        _raf = new RandomAccessFile(file, "rw");
+        boolean existing = _raf.length() >= HEADER_LENGTH;
+        if (_raf.length() < capacity) {
+            _raf.setLength(capacity);
+        }
+        _capacity = (int) Math.min(_raf.length(), Integer.MAX_VALUE);
+        _channel = _raf.getChannel();
+        _buffer = _channel.map(FileChannel.MapMode.READ_WRITE, 0, _capacity);
+
+        if (existing && _buffer.getInt(0) == MAGIC) {
+            _readPos = _buffer.getInt(4);
+            _writePos = _buffer.getInt(8);
+            _count = _buffer.getInt(12);
+            if (_readPos < HEADER_LENGTH || _writePos < _readPos || _writePos > _capacity || _count < 0) {
+                throw new IOException("Journal [" + file + "] has a corrupt header");
+            }
+        } else {
+            _readPos = HEADER_LENGTH;
+            _writePos = HEADER_LENGTH;
+            _count = 0;
+            _buffer.putInt(0, MAGIC);
+            writeHeader();
+        }
+    }
+
+    private void writeHeader() {
+        _buffer.putInt(4, _readPos);
+        _buffer.putInt(8, _writePos);
+        _buffer.putInt(12, _count);
+    }
+
+    /**
+     * Append a message to the end of the journal.
+     *
+     * @param topic   the topic it was bound for
+     * @param payload the message payload
+     * @return false if the journal is full
+     */
+    synchronized boolean append(String topic, byte[] payload) {
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        int length = RECORD_OVERHEAD + topicBytes.length + payload.length;
+
+        if (_writePos + length > _capacity) {
+            compact();
+            if (_writePos + length > _capacity) {
+                return false;
+            }
+        }
+
+        ByteBuffer out = _buffer.duplicate();
+        out.position(_writePos);
+        out.putInt(length).putLong(System.currentTimeMillis()).putShort((short) topicBytes.length).put(topicBytes).put(payload);
+
+        if (_count == 0) {
+            _replayStarted = System.currentTimeMillis();
+            _replayedSinceStart = 0;
+        }
+        _writePos += length;
+        _count++;
+        writeHeader();
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Move the unconsumed records back to the start of the segment.
+     */
+    private void compact() {
+        if (_readPos == HEADER_LENGTH) {
+            return;
+        }
+        int length = _writePos - _readPos;
+        byte[] pending = new byte[length];
+        ByteBuffer in = _buffer.duplicate();
+        in.position(_readPos);
+        in.get(pending);
+
+        ByteBuffer out = _buffer.duplicate();
+        out.position(HEADER_LENGTH);
+        out.put(pending);
+
+        _readPos = HEADER_LENGTH;
+        _writePos = HEADER_LENGTH + length;
+        writeHeader();
+    }
+
+    /**
+     * Return the oldest record without removing it.
+     *
+     * @return the oldest record or null if the journal is empty
+     */
+    synchronized Record peek() {
+        if (_count == 0) {
+            return null;
+        }
+        int length = headLength();
+        if (length < 0) {
+            throw new IllegalStateException("Journal [" + _file + "] has a corrupt record at [" + _readPos + "]");
+        }
+        ByteBuffer in = _buffer.duplicate();
+        in.position(_readPos + 4);
+        long journaledAt = in.getLong();
+        int topicLength = in.getShort() & 0xFFFF;
+        if (topicLength > length - RECORD_OVERHEAD) {
+            throw new IllegalStateException("Journal [" + _file + "] has a corrupt topic length at [" + _readPos + "]");
+        }
+        byte[] topic = new byte[topicLength];
+        in.get(topic);
+        byte[] payload = new byte[length - RECORD_OVERHEAD - topic.length];
+        in.get(payload);
+        return new Record(new String(topic, StandardCharsets.UTF_8), payload, journaledAt, _headSequence, length);
+    }
+
+    /**
+     * Return the length of the oldest record, or -1 if it doesn't fit what is written.
+     */
+    private int headLength() {
+        if (_writePos - _readPos < RECORD_OVERHEAD) {
+            return -1;
+        }
+        int length = _buffer.getInt(_readPos);
+        if (length < RECORD_OVERHEAD || length > _writePos - _readPos) {
+            return -1;
+        }
+        return length;
+    }
+
+    /**
+     * Remove a record returned by {@link #peek()} once it has been delivered.  A record
+     * that has already been removed is ignored.
+     *
+     * @param record the oldest record
+     */
+    synchronized void remove(Record record) {
+        if (_count == 0 || record._sequence != _headSequence) {
+            return;
+        }
+        _replayed++;
+        _replayedSinceStart++;
+        advance(record._length);
+    }
+
+    /**
+     * Throw away the oldest record because it can't be read or sent.  If even its length
+     * can't be trusted there is no telling where the next record starts, so everything
+     * left is thrown away.
+     *
+     * @return the number of records thrown away
+     */
+    synchronized int discardHead() {
+        if (_count == 0) {
+            return 0;
+        }
+        int length = headLength();
+        if (length < 0) {
+            int discarded = _count;
+            _discarded += discarded;
+            _headSequence += discarded;
+            _count = 0;
+            _readPos = HEADER_LENGTH;
+            _writePos = HEADER_LENGTH;
+            writeHeader();
+            return discarded;
+        }
+        _discarded++;
+        advance(length);
+        return 1;
+    }
+
+    private void advance(int length) {
+        _readPos += length;
+        _count--;
+        _headSequence++;
+        if (_count == 0) {
+            // empty, so start appending from the front again
+            _readPos = HEADER_LENGTH;
+            _writePos = HEADER_LENGTH;
+        }
+        writeHeader();
+    }
+
+    /**
+     * Wait until there is something in the journal.
+     *
+     * @param timeoutMillis the longest to wait
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized void awaitRecords(long timeoutMillis) throws InterruptedException {
+        if (_count == 0) {
+            wait(timeoutMillis);
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return _count == 0;
+    }
+
+    synchronized int depth() {
+        return _count;
+    }
+
+    synchronized long replayed() {
+        return _replayed;
+    }
+
+    synchronized long discarded() {
+        return _discarded;
+    }
+
+    /**
+     * Return the replay rate, in messages per second, since the journal last went
+     * from empty to holding something.
+     *
+     * @return the replay rate
+     */
+    synchronized double replayRate() {
+        long elapsed = System.currentTimeMillis() - _replayStarted;
+        if (_replayStarted == 0 || elapsed <= 0) {
+            return 0;
+        }
+        return _replayedSinceStart * 1000.0 / elapsed;
+    }
+
+    /**
+     * Return how long the oldest record has been waiting.
+     *
+     * @return the age in milliseconds, or 0 if the journal is empty
+     */
+    synchronized long oldestAgeMillis() {
+        if (_count == 0) {
+            return 0;
+        }
+        return System.currentTimeMillis() - _buffer.getLong(_readPos + 4);
+    }
+
+    synchronized void close() throws IOException {
+        _buffer.force();
+        _channel.close();
+        _raf.close();
+    }
+
+    File getFile() {
+        return _file;
+    }
+
+}
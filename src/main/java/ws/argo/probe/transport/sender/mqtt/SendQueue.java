@@ -0,0 +1,296 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.probe.transport.sender.mqtt;
+
+import ws.argo.plugin.transport.exception.TransportException;
+import ws.argo.probe.Probe;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded queue between the threads calling sendProbe and a single dispatcher thread
+ * that does the publishing, so a slow broker can't stall callers indefinitely.
+ *
+ * <p>What happens when the queue is full is decided by the {@link OverflowPolicy}.
+ * Probes that are dropped are reported through the {@link Dispatcher}, and every drop,
+ * rejection and expired wait is counted.
+ */
+class SendQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(SendQueue.class.getName());
+
+    /**
+     * What to do with a probe that arrives when the queue is full.
+     */
+    enum OverflowPolicy {
+        /**
+         * Wait for room, up to a deadline, then fail the send.
+         */
+        BLOCK,
+        /**
+         * Throw away the oldest queued probe to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Throw away the probe being sent.
+         */
+        DROP_NEWEST,
+        /**
+         * Fail the send straight away.
+         */
+        FAIL_FAST;
+
+        static OverflowPolicy parse(String value) {
+            String normalized = value.trim().replace('-', '_').toUpperCase();
+            if (normalized.equals("DROPOLDEST")) {
+                return DROP_OLDEST;
+            }
+            if (normalized.equals("DROPNEWEST")) {
+                return DROP_NEWEST;
+            }
+            if (normalized.equals("FAILFAST")) {
+                return FAIL_FAST;
+            }
+            return valueOf(normalized);
+        }
+    }
+
+    /**
+     * Does the actual work for queued probes.  Both methods are called without the
+     * queue's lock held.
+     */
+    interface Dispatcher {
+
+        /**
+         * Publish a probe taken off the queue.  Failures must be reported by the
+         * dispatcher as there is no caller left to throw them to.
+         */
+        void dispatch(String topic, Probe probe, byte[] payload);
+
+        /**
+         * A probe was thrown away by the overflow policy.
+         */
+        void dropped(Probe probe, TransportException reason);
+
+    }
+
+    private static class Entry {
+
+        final String topic;
+        final Probe probe;
+        final byte[] payload;
+
+        Entry(String topic, Probe probe, byte[] payload) {
+            this.topic = topic;
+            this.probe = probe;
+            this.payload = payload;
+        }
+    }
+
+    private final int _capacity;
+    private final OverflowPolicy _policy;
+    private final long _blockMillis;
+    private final Dispatcher _dispatcher;
+    private final Thread _thread;
+
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _notEmpty = _lock.newCondition();
+    private final Condition _notFull = _lock.newCondition();
+    private final Condition _drained = _lock.newCondition();
+    private final ArrayDeque<Entry> _entries;
+    private boolean _dispatching;
+    private volatile boolean _closed;
+
+    private final AtomicLong _dropped = new AtomicLong();
+    private final AtomicLong _rejected = new AtomicLong();
+    private final AtomicLong _timedOut = new AtomicLong();
+
+    SendQueue(String name, int capacity, OverflowPolicy policy, long blockMillis, Dispatcher dispatcher) {
+        _capacity = capacity;
+        _policy = policy;
+        _blockMillis = blockMillis;
+        _dispatcher = dispatcher;
+        _entries = new ArrayDeque<>(capacity);
+
+        _thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatchLoop();
+            }
+        }, name);
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    /**
+     * Queue a probe, applying the overflow policy if the queue is full.
+     *
+     * @param topic   the topic to publish on
+     * @param probe   the probe
+     * @param payload its encoded payload
+     * @throws TransportException if the policy fails the send
+     */
+    void offer(String topic, Probe probe, byte[] payload) throws TransportException {
+        Entry dropped = null;
+
+        _lock.lock();
+        try {
+            if (_closed) {
+                throw new TransportException("Send queue is closed");
+            }
+
+            if (_entries.size() >= _capacity) {
+                switch (_policy) {
+                    case BLOCK:
+                        long remaining = TimeUnit.MILLISECONDS.toNanos(_blockMillis);
+                        try {
+                            while (_entries.size() >= _capacity && remaining > 0) {
+                                remaining = _notFull.awaitNanos(remaining);
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new TransportException("Interrupted waiting for room in the send queue", e);
+                        }
+                        if (_entries.size() >= _capacity) {
+                            _timedOut.incrementAndGet();
+                            throw new TransportException("Timed out after [" + _blockMillis + "] ms waiting for room in the send queue");
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        dropped = _entries.poll();
+                        break;
+                    case DROP_NEWEST:
+                        dropped = new Entry(topic, probe, payload);
+                        break;
+                    case FAIL_FAST:
+                    default:
+                        _rejected.incrementAndGet();
+                        throw new TransportException("Send queue is full [" + _capacity + "]");
+                }
+            }
+
+            if (_policy != OverflowPolicy.DROP_NEWEST || dropped == null) {
+                _entries.add(new Entry(topic, probe, payload));
+                _notEmpty.signal();
+            }
+        } finally {
+            _lock.unlock();
+        }
+
+        if (dropped != null) {
+            _dropped.incrementAndGet();
+            _dispatcher.dropped(dropped.probe, new TransportException("Probe dropped, send queue is full [" + _capacity + "]"));
+        }
+    }
+
+    private void dispatchLoop() {
+        while (true) {
+            Entry entry;
+            _lock.lock();
+            try {
+                while (_entries.isEmpty()) {
+                    _dispatching = false;
+                    _drained.signalAll();
+                    if (_closed) {
+                        return;
+                    }
+                    _notEmpty.await();
+                }
+                entry = _entries.poll();
+                _dispatching = true;
+                _notFull.signal();
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                _lock.unlock();
+            }
+
+            try {
+                _dispatcher.dispatch(entry.topic, entry.probe, entry.payload);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Error dispatching queued probe", e);
+            }
+        }
+    }
+
+    /**
+     * Wait until everything queued so far has been dispatched.
+     *
+     * @param timeoutMillis the longest to wait
+     * @return true if the queue drained in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean awaitDrained(long timeoutMillis) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        _lock.lock();
+        try {
+            while (!_entries.isEmpty() || _dispatching) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = _drained.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Stop taking probes.  The dispatcher thread finishes what is already queued and exits.
+     */
+    void close() {
+        _lock.lock();
+        try {
+            _closed = true;
+            _notEmpty.signalAll();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    int depth() {
+        _lock.lock();
+        try {
+            return _entries.size();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    long dropped() {
+        return _dropped.get();
+    }
+
+    long rejected() {
+        return _rejected.get();
+    }
+
+    long timedOut() {
+        return _timedOut.get();
+    }
+
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.probe.transport.sender.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+/**
+ * A synchronous publish ran out of time waiting for the broker to acknowledge it.  The
+ * message is still with the MQTT client and may yet be delivered, so it must not be
+ * treated as failed and sent again.  Its real outcome goes to the listener given to
+ * {@link MqttPublisher#publish}.
+ */
+class UnconfirmedPublishException extends MqttException {
+
+    private static final long serialVersionUID = 1L;
+
+    UnconfirmedPublishException(MqttException cause) {
+        super(MqttException.REASON_CODE_CLIENT_TIMEOUT, cause);
+    }
+
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.responder.plugin.repeater.mqtt;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import ws.argo.plugin.transport.exception.TransportConfigException;
+import ws.argo.wireline.probe.ProbeWrapper;
+import ws.argo.wireline.probe.ProbeWrapper.RespondToURL;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * The rules deciding which probes the {@link MqttRepeaterProbeHandlerPlugin} repeats.
+ *
+ * <p>Probes can be matched on their service contract ids, service instance ids, client
+ * id and the schemes of their respondTo URLs.  A probe is denied if any of its values is
+ * on the deny list.  If an allow list is in use for one of those, the probe must have at
+ * least one value on it; a probe that names no contract or instance ids asks for every
+ * service, so it passes those allow lists.  Of the probes that are left, only
+ * {@code sampleRate} of them are repeated.  Sampling goes by a hash of the probe id, so
+ * every gateway, and every copy of a probe, makes the same choice.
+ *
+ * <p>The lists are compiled into hash sets when the rules are read, so checking a probe
+ * costs a few lookups however long the lists are.
+ */
+class ForwardRules {
+
+    private static final Logger LOGGER = Logger.getLogger(ForwardRules.class.getName());
+
+    private static final int SAMPLE_BUCKETS = 10000;
+
+    /**
+     * Rules that repeat every probe.
+     */
+    static final ForwardRules FORWARD_ALL = new ForwardRules(Criteria.NONE, Criteria.NONE, 1.0);
+
+    /**
+     * What the rules decided about a probe.
+     */
+    enum Verdict {
+        FORWARD, NOT_ALLOWED, DENIED, NOT_SAMPLED
+    }
+
+    /**
+     * The values an allow or deny list matches.  Empty sets match nothing.
+     */
+    static class Criteria {
+
+        static final Criteria NONE = new Criteria(Collections.<String>emptySet(), Collections.<String>emptySet(),
+                Collections.<String>emptySet(), Collections.<String>emptySet());
+
+        final Set<String> contractIds;
+        final Set<String> serviceInstanceIds;
+        final Set<String> clientIds;
+        final Set<String> respondToSchemes;
+
+        Criteria(Set<String> contractIds, Set<String> serviceInstanceIds, Set<String> clientIds, Set<String> respondToSchemes) {
+            this.contractIds = contractIds;
+            this.serviceInstanceIds = serviceInstanceIds;
+            this.clientIds = clientIds;
+            this.respondToSchemes = lowerCase(respondToSchemes);
+        }
+
+        boolean isEmpty() {
+            return contractIds.isEmpty() && serviceInstanceIds.isEmpty() && clientIds.isEmpty() && respondToSchemes.isEmpty();
+        }
+
+        private static Set<String> lowerCase(Set<String> schemes) {
+            Set<String> lower = new HashSet<>(schemes.size() * 2);
+            for (String scheme : schemes) {
+                lower.add(scheme.toLowerCase(Locale.ENGLISH));
+            }
+            return lower;
+        }
+
+        static Criteria read(HierarchicalConfiguration config, String key) {
+            return new Criteria(values(config, key + ".contractId"), values(config, key + ".serviceInstanceId"),
+                    values(config, key + ".clientId"), values(config, key + ".respondToScheme"));
+        }
+
+        private static Set<String> values(HierarchicalConfiguration config, String key) {
+            Set<String> values = new HashSet<>();
+            for (String value : config.getStringArray(key)) {
+                if (!value.trim().isEmpty()) {
+                    values.add(value.trim());
+                }
+            }
+            return values;
+        }
+    }
+
+    private final Criteria _allow;
+    private final Criteria _deny;
+    private final int _sampleThreshold;
+
+    ForwardRules(Criteria allow, Criteria deny, double sampleRate) {
+        _allow = allow;
+        _deny = deny;
+        _sampleThreshold = (int) Math.round(sampleRate * SAMPLE_BUCKETS);
+    }
+
+    /**
+     * Read the rules under the key, {@code allow} and {@code deny} lists and a
+     * {@code sampleRate}.
+     *
+     * @param config the repeater configuration
+     * @param key    the key of the rules
+     * @return the rules, {@link #FORWARD_ALL} if none are set
+     * @throws TransportConfigException if the sample rate is not between 0 and 1
+     */
+    static ForwardRules read(HierarchicalConfiguration config, String key) throws TransportConfigException {
+        Criteria allow = Criteria.read(config, key + ".allow");
+        Criteria deny = Criteria.read(config, key + ".deny");
+
+        double sampleRate;
+        try {
+            sampleRate = Double.parseDouble(config.getString(key + ".sampleRate", "1.0"));
+        } catch (NumberFormatException e) {
+            LOGGER.warning("Issue parsing the sampleRate [" + config.getString(key + ".sampleRate") + "].  Using default of 1.0.");
+            sampleRate = 1.0;
+        }
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new TransportConfigException("sampleRate must be between 0 and 1 [" + sampleRate + "]");
+        }
+
+        if (allow.isEmpty() && deny.isEmpty() && sampleRate == 1.0) {
+            return FORWARD_ALL;
+        }
+        return new ForwardRules(allow, deny, sampleRate);
+    }
+
+    /**
+     * Decide whether to repeat the probe.
+     *
+     * @param probe the probe
+     * @return {@link Verdict#FORWARD} or why not
+     */
+    Verdict check(ProbeWrapper probe) {
+        if (this == FORWARD_ALL) {
+            return Verdict.FORWARD;
+        }
+
+        if (!_deny.isEmpty() && matchesAny(_deny, probe)) {
+            return Verdict.DENIED;
+        }
+        if (!isAllowed(probe)) {
+            return Verdict.NOT_ALLOWED;
+        }
+        if (_sampleThreshold < SAMPLE_BUCKETS && !isSampled(probe.getProbeId())) {
+            return Verdict.NOT_SAMPLED;
+        }
+        return Verdict.FORWARD;
+    }
+
+    private static boolean matchesAny(Criteria criteria, ProbeWrapper probe) {
+        return containsAny(criteria.contractIds, probe.getServiceContractIDs())
+                || containsAny(criteria.serviceInstanceIds, probe.getServiceInstanceIDs())
+                || probe.getClientId() != null && criteria.clientIds.contains(probe.getClientId())
+                || matchesScheme(criteria.respondToSchemes, probe);
+    }
+
+    private boolean isAllowed(ProbeWrapper probe) {
+        if (!_allow.contractIds.isEmpty() && !probe.getServiceContractIDs().isEmpty()
+                && !containsAny(_allow.contractIds, probe.getServiceContractIDs())) {
+            return false;
+        }
+        if (!_allow.serviceInstanceIds.isEmpty() && !probe.getServiceInstanceIDs().isEmpty()
+                && !containsAny(_allow.serviceInstanceIds, probe.getServiceInstanceIDs())) {
+            return false;
+        }
+        if (!_allow.clientIds.isEmpty() && (probe.getClientId() == null || !_allow.clientIds.contains(probe.getClientId()))) {
+            return false;
+        }
+        return _allow.respondToSchemes.isEmpty() || matchesScheme(_allow.respondToSchemes, probe);
+    }
+
+    private static boolean containsAny(Set<String> set, Collection<String> values) {
+        if (set.isEmpty()) {
+            return false;
+        }
+        for (String value : values) {
+            if (set.contains(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchesScheme(Set<String> schemes, ProbeWrapper probe) {
+        if (schemes.isEmpty()) {
+            return false;
+        }
+        for (RespondToURL respondToURL : probe.getRespondToURLs()) {
+            String url = respondToURL.getUrl();
+            int colon = url == null ? -1 : url.indexOf(':');
+            if (colon > 0 && schemes.contains(url.substring(0, colon).toLowerCase(Locale.ENGLISH))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isSampled(String probeId) {
+        if (probeId == null) {
+            return true;
+        }
+        // spread the String hash before bucketing, probe ids share long prefixes
+        int hash = probeId.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return (hash & Integer.MAX_VALUE) % SAMPLE_BUCKETS < _sampleThreshold;
+    }
+
+}
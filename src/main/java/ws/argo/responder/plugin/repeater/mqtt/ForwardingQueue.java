@@ -0,0 +1,242 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.responder.plugin.repeater.mqtt;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The asynchronous forwarding stage of the {@link MqttRepeaterProbeHandlerPlugin}.
+ * Probes are queued here so the Responder's handler thread can return straight away,
+ * and forwarded by publisher threads of the queue's own.
+ *
+ * <p>The {@link OverflowPolicy} decides what happens when the queue is full.  Forward
+ * latency is measured from the probe being queued to its forward completing.
+ *
+ * @param <T> what is forwarded
+ */
+class ForwardingQueue<T> {
+
+    private static final Logger LOGGER = Logger.getLogger(ForwardingQueue.class.getName());
+
+    /**
+     * Sends one item on to its destination.
+     *
+     * @param <T> what is forwarded
+     */
+    interface Forwarder<T> {
+        void forward(T item) throws Exception;
+    }
+
+    /**
+     * What to do with a probe that arrives when the queue is full.
+     */
+    enum OverflowPolicy {
+        /**
+         * Wait for room, holding up the Responder's handler thread.
+         */
+        BLOCK,
+        /**
+         * Throw away the oldest queued probe to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Throw away the probe that just arrived.
+         */
+        DROP_NEWEST;
+
+        static OverflowPolicy parse(String value) {
+            String normalized = value.trim().replace('-', '_').toUpperCase();
+            switch (normalized) {
+                case "DROPOLDEST":
+                    return DROP_OLDEST;
+                case "DROPNEWEST":
+                    return DROP_NEWEST;
+                default:
+                    return valueOf(normalized);
+            }
+        }
+    }
+
+    private class ForwardTask implements Runnable {
+
+        private final T _item;
+        private final long _queuedAt = System.nanoTime();
+
+        ForwardTask(T item) {
+            _item = item;
+        }
+
+        @Override
+        public void run() {
+            try {
+                _forwarder.forward(_item);
+                recordForward(System.nanoTime() - _queuedAt);
+            } catch (Exception e) {
+                _failed.incrementAndGet();
+                LOGGER.log(Level.WARNING, "Unable to forward probe from [" + _name + "]", e);
+            }
+        }
+    }
+
+    private final String _name;
+    private final Forwarder<T> _forwarder;
+    private final OverflowPolicy _policy;
+    private final ThreadPoolExecutor _executor;
+
+    private final AtomicLong _forwarded = new AtomicLong();
+    private final AtomicLong _forwardNanos = new AtomicLong();
+    private final AtomicLong _maxForwardNanos = new AtomicLong();
+    private final AtomicLong _failed = new AtomicLong();
+    private final AtomicLong _dropped = new AtomicLong();
+
+    ForwardingQueue(String name, Forwarder<T> forwarder, int threads, int queueSize, OverflowPolicy policy) {
+        _name = name;
+        _forwarder = forwarder;
+        _policy = policy;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        final String threadPrefix = "MQTT-Repeater-Forwarder-" + name + "-";
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadPrefix + threadCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        _executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), threadFactory, new Overflow());
+        _executor.prestartAllCoreThreads();
+    }
+
+    /**
+     * Queue the item to be forwarded.
+     *
+     * @param item what to forward
+     */
+    void offer(T item) {
+        _executor.execute(new ForwardTask(item));
+    }
+
+    private void recordForward(long nanos) {
+        _forwarded.incrementAndGet();
+        _forwardNanos.addAndGet(nanos);
+        long max = _maxForwardNanos.get();
+        while (nanos > max && !_maxForwardNanos.compareAndSet(max, nanos)) {
+            max = _maxForwardNanos.get();
+        }
+    }
+
+    /**
+     * Applies the overflow policy when the queue is full.
+     */
+    private class Overflow implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                _dropped.incrementAndGet();
+                return;
+            }
+            switch (_policy) {
+                case BLOCK:
+                    try {
+                        executor.getQueue().put(task);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        _dropped.incrementAndGet();
+                        break;
+                    }
+                    // if shutdown came in while waiting the publishers may already be gone,
+                    // so take the probe back out unless one of them has it
+                    if (executor.isShutdown() && executor.remove(task)) {
+                        _dropped.incrementAndGet();
+                    }
+                    break;
+                case DROP_OLDEST:
+                    if (executor.getQueue().poll() != null) {
+                        _dropped.incrementAndGet();
+                    }
+                    executor.execute(task);
+                    break;
+                case DROP_NEWEST:
+                default:
+                    _dropped.incrementAndGet();
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Return the number of probes waiting to be forwarded.
+     *
+     * @return the queue depth
+     */
+    int queueDepth() {
+        return _executor.getQueue().size();
+    }
+
+    long forwarded() {
+        return _forwarded.get();
+    }
+
+    long failed() {
+        return _failed.get();
+    }
+
+    long dropped() {
+        return _dropped.get();
+    }
+
+    /**
+     * Return the average time from a probe being queued to it having been forwarded.
+     *
+     * @return the average forward latency in microseconds
+     */
+    long averageForwardMicros() {
+        long count = _forwarded.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(_forwardNanos.get() / count);
+    }
+
+    long maxForwardMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(_maxForwardNanos.get());
+    }
+
+    /**
+     * Stop taking probes and wait for the ones already queued to be forwarded.
+     *
+     * @param timeoutMillis the longest to wait
+     * @return true if the queue drained in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean shutdown(long timeoutMillis) throws InterruptedException {
+        _executor.shutdown();
+        return _executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+}
@@ -18,6 +18,7 @@
  */
 
 
+
 package ws.argo.responder.plugin.repeater.mqtt;
 
 import org.apache.commons.configuration.ConfigurationException;
@@ -26,11 +27,9 @@ import ws.argo.plugin.probehandler.ProbeHandlerConfigException;
 import ws.argo.plugin.probehandler.ProbeHandlerPlugin;
 import ws.argo.plugin.transport.exception.TransportConfigException;
 import ws.argo.plugin.transport.exception.TransportException;
-import ws.argo.plugin.transport.sender.Transport;
-import ws.argo.probe.Probe;
-import ws.argo.probe.ProbeSender;
-import ws.argo.probe.ProbeSenderException;
-import ws.argo.probe.transport.sender.mqtt.MqttSenderTransport;
+import ws.argo.probe.transport.mqtt.wire.ProbeRoute;
+import ws.argo.probe.transport.mqtt.wire.ReceivedProbe;
+import ws.argo.probe.transport.responder.mqtt.DuplicateProbeFilter;
 import ws.argo.wireline.probe.ProbeWrapper;
 import ws.argo.wireline.probe.XMLSerializer;
 import ws.argo.wireline.response.ResponseWrapper;
@@ -39,7 +38,11 @@ import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -56,15 +59,92 @@ import static java.lang.Integer.parseInt;
  * cause very odd behavior.  It should NOT resend on a channel that would cause a loop
  * back or other feedback issues.
  *
+ * <p>Probes are forwarded asynchronously so that the Responder's handler thread doesn't
+ * wait on the MQTT publish.  They are queued, up to {@code forwardQueueSize}, and sent
+ * by {@code forwardThreads} publisher threads.  The {@code forwardOverflowPolicy}
+ * decides what happens when the queue is full (see {@link ForwardingQueue}).  With
+ * {@code forwardThreads} set to 0 probes are sent on the handler thread as before.
+ *
+ * <p>Probes can be repeated to several {@code destinations}, each a broker and topic
+ * with its own connection, queue and publisher threads (see {@link RepeaterDestination}).
+ * Settings left out of a destination are taken from the top level of the file.  Without
+ * a list of destinations the top level settings describe the only one.
+ *
+ * <p>To stop a misconfigured pair of gateways from passing probes back and forth for
+ * ever, every repeated probe carries its {@link ProbeRoute}: its hop count and the
+ * {@code gatewayId} of each repeater it went through.  A probe is dropped rather than
+ * repeated if this gateway is already on its route, if it has already made
+ * {@code maxHops} hops, or if this repeater forwarded the same probe id within the last
+ * {@code forwardedCacheMillis}.  The route comes with the probe when it was received by
+ * the MQTT responder transport in the same Responder (see {@link ReceivedProbe}); a probe
+ * from any other transport is taken to be starting out.
+ *
+ * <p>The {@code forwardRules} pick which probes are repeated at all, by contract id,
+ * service instance id, client id or respondTo scheme, with allow and deny lists and a
+ * sample rate (see {@link ForwardRules}).  Without rules every probe is repeated.
+ *
+ * <p>Setting {@code coalesceWindowMillis} merges equivalent probes, those naming the
+ * same contract and instance ids, that arrive within the window into one repeated probe
+ * carrying all their respondTo URLs (see {@link ProbeCoalescer}).  This delays each
+ * probe by up to the window.
+ *
+ * <p>With {@code rawForward} on, a probe received by the MQTT responder transport in the
+ * same Responder is repeated as the bytes it arrived as (see {@link ReceivedProbe})
+ * rather than being encoded again, to each destination whose {@code wireFormat} those
+ * bytes are in.  Other destinations, and probes from other transports, get the probe
+ * encoded as before.
+ *
  * Created by jmsimpson on 10/27/15.
  */
 public class MqttRepeaterProbeHandlerPlugin implements ProbeHandlerPlugin {
 
     private static final Logger LOGGER = Logger.getLogger(MqttRepeaterProbeHandlerPlugin.class.getName());
 
+    private static final int DEFAULT_FORWARD_QUEUE_SIZE = 1000;
+    private static final long FORWARD_DRAIN_TIMEOUT = 30000L;
+    private static final int DEFAULT_MAX_HOPS = 8;
+    private static final int DEFAULT_FORWARDED_CACHE_MILLIS = 60000;
+    private static final int DEFAULT_FORWARDED_CACHE_SIZE = 10000;
+
     // Properties
-    private ProbeSender _sender;
+    private final List<RepeaterDestination> _destinations = new ArrayList<>();
+    private String _gatewayId;
+    private int _maxHops;
+    private DuplicateProbeFilter _recentlyForwarded;
+    private boolean _rawForward;
+    private ForwardRules _rules = ForwardRules.FORWARD_ALL;
+    private ProbeCoalescer _coalescer;
+
+    private final AtomicLong _visitedDrops = new AtomicLong();
+    private final AtomicLong _hopLimitDrops = new AtomicLong();
+    private final AtomicLong _alreadyForwardedDrops = new AtomicLong();
+    private final AtomicLong _deniedDrops = new AtomicLong();
+    private final AtomicLong _notAllowedDrops = new AtomicLong();
+    private final AtomicLong _notSampledDrops = new AtomicLong();
 
+    public MqttRepeaterProbeHandlerPlugin() {
+    }
+
+    /**
+     * Create a repeater for the destinations given without reading a configuration file.
+     * Every probe passes the forward rules and none is coalesced.
+     *
+     * @param gatewayId            this gateway's id
+     * @param maxHops              the most hops a repeated probe may have made
+     * @param forwardedCacheMillis how long a forwarded probe id is remembered, 0 not to
+     * @param rawForward           true to repeat received payloads as they are
+     * @param destinations         where to repeat probes to
+     */
+    MqttRepeaterProbeHandlerPlugin(String gatewayId, int maxHops, int forwardedCacheMillis, boolean rawForward,
+                                   RepeaterDestination... destinations) {
+        _gatewayId = gatewayId;
+        _maxHops = Math.min(maxHops, ProbeRoute.MAX_HOPS);
+        _recentlyForwarded = forwardedCacheMillis > 0
+                ? new DuplicateProbeFilter(forwardedCacheMillis, DEFAULT_FORWARDED_CACHE_SIZE)
+                : null;
+        _rawForward = rawForward;
+        Collections.addAll(_destinations, destinations);
+    }
 
     /**
      * The probe handler will simply resend the probe via the sender it setup with it
@@ -76,20 +156,369 @@ public class MqttRepeaterProbeHandlerPlugin implements ProbeHandlerPlugin {
      */
     @Override
     public ResponseWrapper handleProbeEvent(ProbeWrapper probeWrapper) {
-        LOGGER.fine("MqttRepeaterProbeHandlerPlugin handling probe: " + probeWrapper.asXML());
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("MqttRepeaterProbeHandlerPlugin handling probe: " + probeWrapper.asXML());
+        }
 
         ResponseWrapper response = new ResponseWrapper(probeWrapper.getProbeId());
 
-        Probe probe = new Probe(probeWrapper);
-        try {
-            _sender.sendProbe(probe);
-        } catch (ProbeSenderException e) {
-            LOGGER.log(Level.WARNING, "Unable to repeat probe to MQTT Transport.", e);
+        if (isFiltered(probeWrapper)) {
+            return response;
+        }
+
+        ProbeRoute route = ReceivedProbe.routeOf(probeWrapper);
+        if (isLooping(probeWrapper, route)) {
+            return response;
+        }
+
+        byte[] payload = _rawForward ? ReceivedProbe.payloadOf(probeWrapper) : null;
+        RepeatedProbe repeated = new RepeatedProbe(probeWrapper, payload, route.forwardedBy(_gatewayId));
+        if (_coalescer != null) {
+            _coalescer.offer(repeated);
+        } else {
+            repeat(repeated);
         }
 
         return response;
     }
 
+    /**
+     * Hand the probe to every destination.
+     */
+    private void repeat(RepeatedProbe repeated) {
+        for (RepeaterDestination destination : _destinations) {
+            destination.offer(repeated);
+        }
+    }
+
+    /**
+     * Return true, and count it, if the forward rules say the probe should not be repeated.
+     */
+    private boolean isFiltered(ProbeWrapper probeWrapper) {
+        ForwardRules.Verdict verdict = _rules.check(probeWrapper);
+        switch (verdict) {
+            case FORWARD:
+                return false;
+            case DENIED:
+                _deniedDrops.incrementAndGet();
+                break;
+            case NOT_ALLOWED:
+                _notAllowedDrops.incrementAndGet();
+                break;
+            default:
+                _notSampledDrops.incrementAndGet();
+                break;
+        }
+        LOGGER.fine("Not repeating probe [" + probeWrapper.getProbeId() + "]: " + verdict);
+        return true;
+    }
+
+    /**
+     * Return the number of probes dropped because they matched a deny rule.
+     *
+     * @return the denied drop count
+     */
+    public long deniedDropCount() {
+        return _deniedDrops.get();
+    }
+
+    /**
+     * Return the number of probes dropped because they didn't match the allow rules.
+     *
+     * @return the not allowed drop count
+     */
+    public long notAllowedDropCount() {
+        return _notAllowedDrops.get();
+    }
+
+    /**
+     * Return the number of probes left out by sampling.
+     *
+     * @return the not sampled drop count
+     */
+    public long notSampledDropCount() {
+        return _notSampledDrops.get();
+    }
+
+    /**
+     * Return true, and count it, if the probe should not be repeated because it has been
+     * here before, has gone too far or was forwarded recently.
+     */
+    private boolean isLooping(ProbeWrapper probeWrapper, ProbeRoute route) {
+        if (route.visited(_gatewayId)) {
+            _visitedDrops.incrementAndGet();
+            LOGGER.fine("Dropping probe [" + probeWrapper.getProbeId() + "] that has already been through gateway [" + _gatewayId + "] " + route);
+            return true;
+        }
+        if (route.hops() >= _maxHops) {
+            _hopLimitDrops.incrementAndGet();
+            LOGGER.fine("Dropping probe [" + probeWrapper.getProbeId() + "] that has reached the hop limit " + route);
+            return true;
+        }
+        if (_recentlyForwarded != null && _recentlyForwarded.isDuplicate(probeWrapper.getProbeId())) {
+            _alreadyForwardedDrops.incrementAndGet();
+            LOGGER.fine("Dropping probe [" + probeWrapper.getProbeId() + "] that was forwarded recently");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Return the number of probes dropped because they had already been through this
+     * gateway.
+     *
+     * @return the visited drop count
+     */
+    public long visitedDropCount() {
+        return _visitedDrops.get();
+    }
+
+    /**
+     * Return the number of probes dropped because they had made {@code maxHops} hops.
+     *
+     * @return the hop limit drop count
+     */
+    public long hopLimitDropCount() {
+        return _hopLimitDrops.get();
+    }
+
+    /**
+     * Return the number of probes dropped because the same probe was forwarded recently.
+     *
+     * @return the already forwarded drop count
+     */
+    public long alreadyForwardedDropCount() {
+        return _alreadyForwardedDrops.get();
+    }
+
+    /**
+     * Return the number of probes dropped by loop detection for any reason.
+     *
+     * @return the loop drop count
+     */
+    public long loopDropCount() {
+        return _visitedDrops.get() + _hopLimitDrops.get() + _alreadyForwardedDrops.get();
+    }
+
+    /**
+     * Return the number of probes sent as the payload they were received as, over all
+     * destinations.
+     *
+     * @return the raw forward count
+     */
+    public long rawForwardCount() {
+        long count = 0;
+        for (RepeaterDestination destination : _destinations) {
+            count += destination.sentAsReceived();
+        }
+        return count;
+    }
+
+    /**
+     * Return the number of probes that had to be encoded again to be sent, over all
+     * destinations.
+     *
+     * @return the encoded forward count
+     */
+    public long encodedForwardCount() {
+        long count = 0;
+        for (RepeaterDestination destination : _destinations) {
+            count += destination.sentEncoded();
+        }
+        return count;
+    }
+
+    /**
+     * Return the number of probes merged into an equivalent probe instead of being
+     * repeated themselves.
+     *
+     * @return the coalesced count, 0 without a coalescing window
+     */
+    public long coalescedCount() {
+        return _coalescer == null ? 0 : _coalescer.merged();
+    }
+
+    /**
+     * Return the number of probes waiting for their coalescing window to close.
+     *
+     * @return the pending count, 0 without a coalescing window
+     */
+    public int coalescePendingCount() {
+        return _coalescer == null ? 0 : _coalescer.pending();
+    }
+
+    /**
+     * Return how many probes went into the coalescer for each one repeated.  1 means
+     * nothing was merged; the higher it is the more the window is saving.
+     *
+     * @return the coalescing ratio, 1 without a coalescing window or before any repeats
+     */
+    public double coalescingRatio() {
+        if (_coalescer == null || _coalescer.repeated() == 0) {
+            return 1.0;
+        }
+        return (double) (_coalescer.repeated() + _coalescer.merged()) / _coalescer.repeated();
+    }
+
+    /**
+     * Stop forwarding, wait for the queued probes to go and close the MQTT connections.
+     *
+     * @throws TransportException if a connection can't be closed cleanly
+     */
+    public void close() throws TransportException {
+        if (_coalescer != null) {
+            // repeat what is waiting before the destinations close
+            _coalescer.close();
+        }
+        long deadline = System.currentTimeMillis() + FORWARD_DRAIN_TIMEOUT;
+        TransportException failure = null;
+        for (RepeaterDestination destination : _destinations) {
+            try {
+                destination.close(Math.max(0, deadline - System.currentTimeMillis()));
+            } catch (TransportException e) {
+                // close the rest regardless
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Return the names of the destinations probes are repeated to.
+     *
+     * @return the destination names
+     */
+    public List<String> destinationNames() {
+        List<String> names = new ArrayList<>(_destinations.size());
+        for (RepeaterDestination destination : _destinations) {
+            names.add(destination.name());
+        }
+        return names;
+    }
+
+    private RepeaterDestination destination(String name) {
+        for (RepeaterDestination destination : _destinations) {
+            if (destination.name().equals(name)) {
+                return destination;
+            }
+        }
+        throw new IllegalArgumentException("No repeater destination named [" + name + "]");
+    }
+
+    /**
+     * Return the number of probes waiting to be forwarded, over all destinations.
+     *
+     * @return the queue depth, 0 when forwarding inline
+     */
+    public int forwardQueueDepth() {
+        int depth = 0;
+        for (RepeaterDestination destination : _destinations) {
+            depth += destination.queueDepth();
+        }
+        return depth;
+    }
+
+    /**
+     * Return the number of probes waiting to be forwarded to the destination.
+     *
+     * @param destination the destination name
+     * @return the queue depth, 0 when forwarding inline
+     */
+    public int forwardQueueDepth(String destination) {
+        return destination(destination).queueDepth();
+    }
+
+    /**
+     * Return the number of probes forwarded from the queues, over all destinations.
+     *
+     * @return the forwarded count, 0 when forwarding inline
+     */
+    public long forwardedCount() {
+        long count = 0;
+        for (RepeaterDestination destination : _destinations) {
+            count += destination.forwarded();
+        }
+        return count;
+    }
+
+    /**
+     * Return the number of probes forwarded to the destination.
+     *
+     * @param destination the destination name
+     * @return the forwarded count, 0 when forwarding inline
+     */
+    public long forwardedCount(String destination) {
+        return destination(destination).forwarded();
+    }
+
+    /**
+     * Return the number of queued probes that could not be forwarded, over all destinations.
+     *
+     * @return the failed count, 0 when forwarding inline
+     */
+    public long forwardFailedCount() {
+        long count = 0;
+        for (RepeaterDestination destination : _destinations) {
+            count += destination.failed();
+        }
+        return count;
+    }
+
+    /**
+     * Return the number of probes dropped because a queue was full, over all destinations.
+     *
+     * @return the dropped count, 0 when forwarding inline
+     */
+    public long forwardDroppedCount() {
+        long count = 0;
+        for (RepeaterDestination destination : _destinations) {
+            count += destination.dropped();
+        }
+        return count;
+    }
+
+    /**
+     * Return the number of probes dropped because the destination's queue was full.
+     *
+     * @param destination the destination name
+     * @return the dropped count, 0 when forwarding inline
+     */
+    public long forwardDroppedCount(String destination) {
+        return destination(destination).dropped();
+    }
+
+    /**
+     * Return the average time from a probe being queued to it having been forwarded,
+     * over all destinations.
+     *
+     * @return the average forward latency in microseconds
+     */
+    public long averageForwardMicros() {
+        long forwarded = 0;
+        long micros = 0;
+        for (RepeaterDestination destination : _destinations) {
+            forwarded += destination.forwarded();
+            micros += destination.forwarded() * destination.averageForwardMicros();
+        }
+        return forwarded == 0 ? 0 : micros / forwarded;
+    }
+
+    /**
+     * Return the longest time from a probe being queued to it having been forwarded,
+     * over all destinations.
+     *
+     * @return the max forward latency in microseconds
+     */
+    public long maxForwardMicros() {
+        long max = 0;
+        for (RepeaterDestination destination : _destinations) {
+            max = Math.max(max, destination.maxForwardMicros());
+        }
+        return max;
+    }
+
     /**
      * Read in the XML configuration file provided.  This should contain the data it needs to
      * make the MQTT connection and setup the probe sender.
@@ -100,49 +529,42 @@ public class MqttRepeaterProbeHandlerPlugin implements ProbeHandlerPlugin {
     @Override
     public void initializeWithPropertiesFilename(String xmlConfigFilename) throws ProbeHandlerConfigException {
 
-        Properties properties;
         try {
-            properties = processPropertiesFile(xmlConfigFilename);
-            initializeProbeSender(properties);
+            processPropertiesFile(xmlConfigFilename);
         } catch (TransportConfigException e) {
+            closeQuietly();
             throw new ProbeHandlerConfigException("Error reading config [" + xmlConfigFilename + "]", e);
         } catch (SocketException | UnknownHostException e) {
+            closeQuietly();
             throw new ProbeHandlerConfigException("Error initializing MQTT Repeater", e);
         }
 
 
     }
 
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (TransportException e) {
+            LOGGER.log(Level.FINE, "Error closing MQTT Repeater destinations", e);
+        }
+        _destinations.clear();
+    }
+
     @Override
     public String pluginName() {
         return "MQTT Repeater";
     }
 
-    private void initializeProbeSender(Properties properties) throws UnknownHostException, SocketException, TransportConfigException {
-        Transport transport = new MqttSenderTransport();
-
-        NetworkInterface ni = NetworkInterface.getByInetAddress(InetAddress.getLocalHost());
-        String macAddr = ni.getHardwareAddress().toString();
-        String clientId = "MQTT-Repeater-Client-" + macAddr;
-
-        properties.put("clientId", clientId);
-
-        transport.initialize(properties, "");
-        _sender = new ProbeSender(transport);
-
-    }
-
     /**
      * Digs through the xml file to get the particular configuration items necessary to
-     * run this responder transport.
+     * run this repeater, and connects to each of its destinations.
      *
      * @param xmlConfigFilename the name of the xml configuration file
-     * @return an XMLConfiguration object
      * @throws TransportConfigException if something goes awry
      */
-    private Properties processPropertiesFile(String xmlConfigFilename) throws TransportConfigException {
+    private void processPropertiesFile(String xmlConfigFilename) throws TransportConfigException, UnknownHostException, SocketException {
 
-        Properties props = new Properties();
         XMLConfiguration config;
 
         try {
@@ -151,18 +573,116 @@ public class MqttRepeaterProbeHandlerPlugin implements ProbeHandlerPlugin {
             throw new TransportConfigException(e.getLocalizedMessage(), e);
         }
 
-        props.put("mqttTopic", config.getString("mqttTopic"));
-        props.put("qos", config.getString("qos", "0"));
+        _gatewayId = config.getString("gatewayId");
+        if (_gatewayId == null) {
+            _gatewayId = InetAddress.getLocalHost().getHostName();
+        }
+        _maxHops = Math.min(intSetting(config, null, "maxHops", DEFAULT_MAX_HOPS), ProbeRoute.MAX_HOPS);
+        int forwardedCacheMillis = intSetting(config, null, "forwardedCacheMillis", DEFAULT_FORWARDED_CACHE_MILLIS);
+        int forwardedCacheSize = intSetting(config, null, "forwardedCacheSize", DEFAULT_FORWARDED_CACHE_SIZE);
+        // a window or cache size of 0 turns the cache off
+        _recentlyForwarded = forwardedCacheMillis > 0 && forwardedCacheSize > 0
+                ? new DuplicateProbeFilter(forwardedCacheMillis, forwardedCacheSize)
+                : null;
+
+        _rules = ForwardRules.read(config, "forwardRules");
 
-        props.put("broker", config.getString("broker"));
-        props.put("clientId", config.getString("clientId", "NO CLIENT ID"));
+        int coalesceWindowMillis = intSetting(config, null, "coalesceWindowMillis", 0);
+        _coalescer = coalesceWindowMillis > 0 ? new ProbeCoalescer(coalesceWindowMillis, new ProbeCoalescer.Sink() {
+            @Override
+            public void repeat(RepeatedProbe repeated) {
+                MqttRepeaterProbeHandlerPlugin.this.repeat(repeated);
+            }
+        }) : null;
 
-        if (config.getString("username") != null)
-            props.put("username", config.getString("username"));
-        if (config.getString("password") != null)
-            props.put("password", config.getString("password"));
+        _rawForward = Boolean.parseBoolean(config.getString("rawForward", "false"));
 
-        return props;
+        NetworkInterface ni = NetworkInterface.getByInetAddress(InetAddress.getLocalHost());
+        String macAddr = ni.getHardwareAddress().toString();
+        String clientId = "MQTT-Repeater-Client-" + macAddr;
+
+        int lastDestination = config.getMaxIndex("destinations.destination");
+        if (lastDestination < 0) {
+            _destinations.add(createDestination(config, null, "default", clientId));
+        } else {
+            for (int i = 0; i <= lastDestination; i++) {
+                String key = "destinations.destination(" + i + ")";
+                String name = config.getString(key + "[@name]", "destination-" + i);
+                // several connections to the same broker need client ids of their own
+                _destinations.add(createDestination(config, key, name, clientId + "-" + name));
+            }
+        }
+    }
+
+    /**
+     * Create the destination from the settings under the key, falling back to the top
+     * level settings.  With no key the top level settings are the destination.
+     */
+    private RepeaterDestination createDestination(XMLConfiguration config, String key, String name, String clientId) throws TransportConfigException {
+        Properties props = new Properties();
+
+        String topic = setting(config, key, "mqttTopic", null);
+        if (topic != null)
+            props.put("mqttTopic", topic);
+        props.put("qos", setting(config, key, "qos", "0"));
+        if (setting(config, key, "topicPartitions", null) != null)
+            props.put("topicPartitions", setting(config, key, "topicPartitions", null));
+
+        String broker = setting(config, key, "broker", null);
+        if (broker == null || broker.isEmpty()) {
+            throw new TransportConfigException("The broker for repeater destination [" + name + "] MUST be configured");
+        }
+        props.put("broker", broker);
+        props.put("clientId", clientId);
+
+        if (setting(config, key, "username", null) != null)
+            props.put("username", setting(config, key, "username", null));
+        if (setting(config, key, "password", null) != null)
+            props.put("password", setting(config, key, "password", null));
+
+        int forwardThreads = intSetting(config, key, "forwardThreads", 1);
+        if (key != null && forwardThreads < 1) {
+            // inline sends would make each destination wait on the one before it
+            LOGGER.warning("Repeater destination [" + name + "] needs a forward thread of its own.  Using 1.");
+            forwardThreads = 1;
+        }
+        int forwardQueueSize = intSetting(config, key, "forwardQueueSize", DEFAULT_FORWARD_QUEUE_SIZE);
+        if (forwardQueueSize < 1) {
+            throw new TransportConfigException("forwardQueueSize must be at least 1 [" + forwardQueueSize + "]");
+        }
+        // with several destinations blocking on one full queue would hold up the others
+        String overflowPolicy = setting(config, key, "forwardOverflowPolicy", key == null ? "block" : "dropOldest");
+        ForwardingQueue.OverflowPolicy forwardOverflowPolicy;
+        try {
+            forwardOverflowPolicy = ForwardingQueue.OverflowPolicy.parse(overflowPolicy);
+        } catch (IllegalArgumentException e) {
+            throw new TransportConfigException("Unknown forwardOverflowPolicy [" + overflowPolicy + "]", e);
+        }
+
+        LOGGER.fine("Repeating probes to [" + name + "] on broker [" + broker + "]");
+        return RepeaterDestination.connect(name, props, forwardThreads, forwardQueueSize, forwardOverflowPolicy);
+    }
+
+    private static String setting(XMLConfiguration config, String key, String name, String defaultValue) {
+        String value = key == null ? null : config.getString(key + "." + name);
+        return value != null ? value : config.getString(name, defaultValue);
+    }
+
+    /**
+     * Read a whole number setting in the same way, logging and using the default if it
+     * isn't one.
+     */
+    private static int intSetting(XMLConfiguration config, String key, String name, int defaultValue) {
+        String value = setting(config, key, name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.warning("Issue parsing the " + (key == null ? name : key + "." + name) + " [" + value + "].  Using default of " + defaultValue + ".");
+            return defaultValue;
+        }
     }
 
 }
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.responder.plugin.repeater.mqtt;
+
+import ws.argo.probe.transport.mqtt.wire.ProbeRoute;
+import ws.argo.wireline.probe.ProbeWrapper;
+import ws.argo.wireline.probe.ProbeWrapper.RespondToURL;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Merges probes asking for the same thing into one before the
+ * {@link MqttRepeaterProbeHandlerPlugin} repeats them.
+ *
+ * <p>Probes are equivalent if they name the same service contract ids and service
+ * instance ids and want the same respondTo payload type.  The first probe of its kind
+ * opens a window of {@code windowMillis}.  Equivalent probes arriving during the window
+ * are not repeated themselves; their respondTo URLs are added to the first probe's
+ * instead.  When the window closes the first probe is repeated once, with every
+ * respondTo URL, so each client still hears from the services.  The responses carry the
+ * id of the first probe.  Its route is merged with the routes of the probes merged into
+ * it, so loop detection further on still sees every gateway any of them passed through.
+ *
+ * <p>A probe that had nothing merged into it is repeated as it arrived.
+ */
+class ProbeCoalescer {
+
+    private static final Logger LOGGER = Logger.getLogger(ProbeCoalescer.class.getName());
+
+    /**
+     * Takes the probes once their window has closed.
+     */
+    interface Sink {
+        void repeat(RepeatedProbe repeated);
+    }
+
+    /**
+     * The first probe of its kind and the respondTo URLs and routes merged into it so far.
+     */
+    private static class Pending {
+
+        final RepeatedProbe first;
+        final Map<String, String> respondTo = new LinkedHashMap<>();
+        ProbeRoute route;
+        int merged;
+
+        Pending(RepeatedProbe first) {
+            this.first = first;
+            route = first.route;
+            addRespondTo(first.probe);
+        }
+
+        void merge(RepeatedProbe repeated) {
+            merged++;
+            addRespondTo(repeated.probe);
+            route = route.mergedWith(repeated.route);
+        }
+
+        private void addRespondTo(ProbeWrapper probe) {
+            for (RespondToURL respondToURL : probe.getRespondToURLs()) {
+                if (!respondTo.containsKey(respondToURL.getUrl())) {
+                    respondTo.put(respondToURL.getUrl(), respondToURL.getLabel());
+                }
+            }
+        }
+
+        RepeatedProbe toRepeat() {
+            if (merged == 0) {
+                return first;
+            }
+            // a copy - the Responder may be handing the original to other handlers
+            ProbeWrapper original = first.probe;
+            ProbeWrapper probe = new ProbeWrapper(original.getProbeId());
+            probe.setClientId(original.getClientId());
+            probe.setDESVersion(original.getDESVersion());
+            probe.setRespondToPayloadType(original.getRespondToPayloadType());
+            for (Map.Entry<String, String> entry : respondTo.entrySet()) {
+                probe.addRespondToURL(entry.getValue(), entry.getKey());
+            }
+            for (String contractId : original.getServiceContractIDs()) {
+                probe.addServiceContractID(contractId);
+            }
+            for (String instanceId : original.getServiceInstanceIDs()) {
+                probe.addServiceInstanceID(instanceId);
+            }
+            // the payload received no longer matches the probe
+            return new RepeatedProbe(probe, null, route);
+        }
+    }
+
+    private final long _windowMillis;
+    private final Sink _sink;
+    private final ScheduledExecutorService _timer;
+    private final Map<String, Pending> _pending = new HashMap<>();
+
+    private final AtomicLong _received = new AtomicLong();
+    private final AtomicLong _repeated = new AtomicLong();
+    private final AtomicLong _merged = new AtomicLong();
+
+    ProbeCoalescer(long windowMillis, Sink sink) {
+        _windowMillis = windowMillis;
+        _sink = sink;
+        _timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MQTT-Repeater-Coalescer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Merge the probe into an equivalent one waiting to be repeated, or hold it for the
+     * window.
+     *
+     * @param repeated the probe and its route
+     */
+    void offer(RepeatedProbe repeated) {
+        _received.incrementAndGet();
+        final String key = key(repeated.probe);
+        synchronized (_pending) {
+            Pending pending = _pending.get(key);
+            if (pending != null) {
+                pending.merge(repeated);
+                _merged.incrementAndGet();
+                return;
+            }
+            _pending.put(key, new Pending(repeated));
+        }
+        try {
+            _timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush(key);
+                }
+            }, _windowMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed - don't hold the probe for a window that will never close
+            flush(key);
+        }
+    }
+
+    private void flush(String key) {
+        Pending pending;
+        synchronized (_pending) {
+            pending = _pending.remove(key);
+        }
+        if (pending != null) {
+            repeat(pending);
+        }
+    }
+
+    private void repeat(Pending pending) {
+        _repeated.incrementAndGet();
+        try {
+            _sink.repeat(pending.toRepeat());
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Unable to repeat coalesced probe [" + pending.first.probe.getProbeId() + "]", e);
+        }
+    }
+
+    /**
+     * The discovery criteria of the probe, in an order that doesn't depend on the order
+     * the probe lists them in.
+     */
+    static String key(ProbeWrapper probe) {
+        List<String> contractIds = new ArrayList<>(probe.getServiceContractIDs());
+        Collections.sort(contractIds);
+        List<String> instanceIds = new ArrayList<>(probe.getServiceInstanceIDs());
+        Collections.sort(instanceIds);
+
+        StringBuilder key = new StringBuilder();
+        key.append(probe.getRespondToPayloadType()).append('\n');
+        for (String contractId : contractIds) {
+            key.append(contractId).append('\n');
+        }
+        key.append('\n');
+        for (String instanceId : instanceIds) {
+            key.append(instanceId).append('\n');
+        }
+        return key.toString();
+    }
+
+    /**
+     * Return the number of probes offered.
+     *
+     * @return the received count
+     */
+    long received() {
+        return _received.get();
+    }
+
+    /**
+     * Return the number of probes repeated once their window closed.
+     *
+     * @return the repeated count
+     */
+    long repeated() {
+        return _repeated.get();
+    }
+
+    /**
+     * Return the number of probes merged into an equivalent one rather than repeated.
+     *
+     * @return the merged count
+     */
+    long merged() {
+        return _merged.get();
+    }
+
+    /**
+     * Return the number of probes waiting for their window to close.
+     *
+     * @return the pending count
+     */
+    int pending() {
+        synchronized (_pending) {
+            return _pending.size();
+        }
+    }
+
+    /**
+     * Stop the timer and repeat every probe still waiting straight away.
+     */
+    void close() {
+        _timer.shutdownNow();
+        List<Pending> remaining;
+        synchronized (_pending) {
+            remaining = new ArrayList<>(_pending.values());
+            _pending.clear();
+        }
+        for (Pending pending : remaining) {
+            repeat(pending);
+        }
+    }
+
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.responder.plugin.repeater.mqtt;
+
+import ws.argo.probe.transport.mqtt.wire.ProbeRoute;
+import ws.argo.wireline.probe.ProbeWrapper;
+
+/**
+ * A probe on its way out of the repeater, with the route it will carry and, if it is
+ * known, the payload it was received as.
+ */
+class RepeatedProbe {
+
+    final ProbeWrapper probe;
+    final byte[] payload;
+    final ProbeRoute route;
+
+    RepeatedProbe(ProbeWrapper probe, byte[] payload, ProbeRoute route) {
+        this.probe = probe;
+        this.payload = payload;
+        this.route = route;
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2015 Jeff Simpson.
+ *
+ * This file is part of the Argo MQTT Transport plugin.
+ *
+ * Argo MQTT Transport plugin is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.argo.responder.plugin.repeater.mqtt;
+
+import ws.argo.plugin.transport.exception.TransportConfigException;
+import ws.argo.plugin.transport.exception.TransportException;
+import ws.argo.probe.Probe;
+import ws.argo.probe.transport.mqtt.wire.ProbeCodec;
+import ws.argo.probe.transport.mqtt.wire.ProbeCodecs;
+import ws.argo.probe.transport.sender.mqtt.MqttSenderTransport;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One place the {@link MqttRepeaterProbeHandlerPlugin} repeats probes to.
+ *
+ * <p>Each destination has its own connection and its own {@link ForwardingQueue} and
+ * publisher threads, so probes go to all the destinations in parallel and one that is
+ * slow or down only backs up its own queue.
+ *
+ * <p>A probe that comes with the payload it was received as is sent as those bytes if
+ * they are in the destination's {@code wireFormat}, and encoded afresh if not.
+ */
+class RepeaterDestination {
+
+    private static final Logger LOGGER = Logger.getLogger(RepeaterDestination.class.getName());
+
+    /**
+     * Sends repeated probes on to the destination.
+     */
+    interface Sender {
+        /**
+         * Return the codec the destination encodes probes with.
+         */
+        ProbeCodec codec();
+
+        /**
+         * Send the probe, as its received payload if asked to, otherwise encoded.
+         */
+        void send(RepeatedProbe repeated, boolean asReceived) throws TransportException;
+
+        void close() throws TransportException;
+    }
+
+    /**
+     * Sends through a MQTT sender transport of the destination's own.
+     */
+    private static class MqttSender implements Sender {
+
+        private final MqttSenderTransport _transport = new MqttSenderTransport();
+
+        MqttSender(Properties properties) throws TransportConfigException {
+            _transport.initialize(properties, "");
+        }
+
+        @Override
+        public ProbeCodec codec() {
+            return _transport.codec();
+        }
+
+        @Override
+        public void send(RepeatedProbe repeated, boolean asReceived) throws TransportException {
+            // the Probe only wraps the wrapper for the transport's listener and journal
+            if (asReceived) {
+                _transport.sendProbe(new Probe(repeated.probe), repeated.payload, repeated.route);
+            } else {
+                _transport.sendProbe(new Probe(repeated.probe), repeated.route);
+            }
+        }
+
+        @Override
+        public void close() throws TransportException {
+            _transport.close();
+        }
+    }
+
+    private final String _name;
+    private final Sender _sender;
+    private final ForwardingQueue<RepeatedProbe> _forwarding;
+    private final AtomicLong _sentAsReceived = new AtomicLong();
+    private final AtomicLong _sentEncoded = new AtomicLong();
+
+    RepeaterDestination(String name, Sender sender, int forwardThreads, int forwardQueueSize,
+                        ForwardingQueue.OverflowPolicy overflowPolicy) {
+        _name = name;
+        _sender = sender;
+        _forwarding = forwardThreads <= 0 ? null
+                : new ForwardingQueue<>(name, new ForwardingQueue.Forwarder<RepeatedProbe>() {
+                    @Override
+                    public void forward(RepeatedProbe repeated) throws TransportException {
+                        send(repeated);
+                    }
+                }, forwardThreads, forwardQueueSize, overflowPolicy);
+    }
+
+    /**
+     * Connect a destination to the MQTT broker described by the sender properties.
+     *
+     * @param name             the destination name
+     * @param properties       the {@link MqttSenderTransport} properties
+     * @param forwardThreads   the publisher threads, 0 to send on the caller's thread
+     * @param forwardQueueSize the most probes queued
+     * @param overflowPolicy   what to do when the queue is full
+     * @return the destination
+     * @throws TransportConfigException if the transport can't be set up
+     */
+    static RepeaterDestination connect(String name, Properties properties, int forwardThreads, int forwardQueueSize,
+                                       ForwardingQueue.OverflowPolicy overflowPolicy) throws TransportConfigException {
+        return new RepeaterDestination(name, new MqttSender(properties), forwardThreads, forwardQueueSize, overflowPolicy);
+    }
+
+    String name() {
+        return _name;
+    }
+
+    /**
+     * Queue the probe for this destination, or send it straight away without a queue.
+     *
+     * @param repeated the probe and its route
+     */
+    void offer(RepeatedProbe repeated) {
+        if (_forwarding != null) {
+            _forwarding.offer(repeated);
+            return;
+        }
+        try {
+            send(repeated);
+        } catch (TransportException e) {
+            LOGGER.log(Level.WARNING, "Unable to repeat probe to MQTT destination [" + _name + "].", e);
+        }
+    }
+
+    private void send(RepeatedProbe repeated) throws TransportException {
+        boolean asReceived = repeated.payload != null && ProbeCodecs.isWrittenBy(repeated.payload, _sender.codec());
+        _sender.send(repeated, asReceived);
+        (asReceived ? _sentAsReceived : _sentEncoded).incrementAndGet();
+    }
+
+    long sentAsReceived() {
+        return _sentAsReceived.get();
+    }
+
+    long sentEncoded() {
+        return _sentEncoded.get();
+    }
+
+    int queueDepth() {
+        return _forwarding == null ? 0 : _forwarding.queueDepth();
+    }
+
+    long forwarded() {
+        return _forwarding == null ? 0 : _forwarding.forwarded();
+    }
+
+    long failed() {
+        return _forwarding == null ? 0 : _forwarding.failed();
+    }
+
+    long dropped() {
+        return _forwarding == null ? 0 : _forwarding.dropped();
+    }
+
+    long averageForwardMicros() {
+        return _forwarding == null ? 0 : _forwarding.averageForwardMicros();
+    }
+
+    long maxForwardMicros() {
+        return _forwarding == null ? 0 : _forwarding.maxForwardMicros();
+    }
+
+    /**
+     * Wait for the queued probes to be forwarded and close the connection.
+     *
+     * @param timeoutMillis the longest to wait for the queue
+     * @throws TransportException if the connection can't be closed cleanly
+     */
+    void close(long timeoutMillis) throws TransportException {
+        if (_forwarding != null) {
+            try {
+                if (!_forwarding.shutdown(timeoutMillis)) {
+                    LOGGER.warning("Timed out waiting for [" + _forwarding.queueDepth() + "] queued probes to be forwarded to [" + _name + "]");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        _sender.close();
+    }
+
+}
@@ -0,0 +1,54 @@
+package ws.argo.probe.transport.responder.mqtt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the inbound duplicate probe filter.
+ */
+public class DuplicateProbeFilterTest {
+
+    private static final String PROBE_A = "urn:uuid:03d55093-a954-4667-b682-8116c417925d";
+    private static final String PROBE_B = "urn:uuid:8b6e7d1c-5f0a-4a2e-9d7c-3f1e2b4a6c8d";
+
+    @Test
+    public void testDuplicateWithinWindow() {
+        DuplicateProbeFilter filter = new DuplicateProbeFilter(1000, 100);
+
+        assertFalse(filter.isDuplicate(PROBE_A, 0));
+        assertTrue(filter.isDuplicate(PROBE_A, 500));
+        assertFalse(filter.isDuplicate(PROBE_B, 600));
+
+        assertEquals(1, filter.hits());
+        assertEquals(2, filter.misses());
+        assertEquals(1.0 / 3, filter.hitRate(), 0.0001);
+    }
+
+    @Test
+    public void testWindowExpires() {
+        DuplicateProbeFilter filter = new DuplicateProbeFilter(1000, 100);
+
+        assertFalse(filter.isDuplicate(PROBE_A, 0));
+        // the window runs from the first sighting, repeats don't extend it
+        assertTrue(filter.isDuplicate(PROBE_A, 900));
+        assertFalse(filter.isDuplicate(PROBE_A, 1000));
+        assertEquals(1, filter.size());
+    }
+
+    @Test
+    public void testSizeIsBounded() {
+        DuplicateProbeFilter filter = new DuplicateProbeFilter(60000, 10);
+
+        for (int i = 0; i < 100; i++) {
+            filter.isDuplicate("probe-" + i, i);
+        }
+        assertEquals(10, filter.size());
+        // the oldest ids have been forgotten, the newest are still there
+        assertFalse(filter.isDuplicate("probe-0", 100));
+        assertTrue(filter.isDuplicate("probe-99", 100));
+    }
+
+}
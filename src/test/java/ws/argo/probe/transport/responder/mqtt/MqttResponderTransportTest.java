@@ -0,0 +1,148 @@
+package ws.argo.probe.transport.responder.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.Test;
+import ws.argo.plugin.transport.exception.TransportConfigException;
+import ws.argo.probe.transport.mqtt.wire.ProbeEnvelope;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the responder transport with a client that stands in for the broker.
+ */
+public class MqttResponderTransportTest {
+
+    /**
+     * Fails the connect or the subscribe if asked to, and records what was done to it.
+     */
+    private static class FakeClient extends MqttClient {
+
+        private final boolean _connectFails;
+        private final boolean _subscribeFails;
+        final List<MqttMessage> _quarantined = new ArrayList<>();
+        volatile boolean _connected;
+        volatile boolean _closed;
+
+        FakeClient(boolean connectFails, boolean subscribeFails) throws MqttException {
+            super("tcp://localhost:1883", "JUnit-Responder", new MemoryPersistence());
+            _connectFails = connectFails;
+            _subscribeFails = subscribeFails;
+        }
+
+        @Override
+        public void connect(MqttConnectOptions options) throws MqttException {
+            if (_connectFails) {
+                throw new MqttException(MqttException.REASON_CODE_SERVER_CONNECT_ERROR);
+            }
+            _connected = true;
+        }
+
+        @Override
+        public void subscribe(String[] topicFilters, int[] qos) throws MqttException {
+            if (_subscribeFails) {
+                throw new MqttException(MqttException.REASON_CODE_UNEXPECTED_ERROR);
+            }
+        }
+
+        @Override
+        public void publish(String topic, MqttMessage message) throws MqttException {
+            assertEquals("ws.argo/quarantine", topic);
+            _quarantined.add(message);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return _connected;
+        }
+
+        @Override
+        public void disconnect() throws MqttException {
+            _connected = false;
+        }
+
+        @Override
+        public void close() throws MqttException {
+            if (_connected) {
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_CONNECTED);
+            }
+            _closed = true;
+        }
+    }
+
+    private static MqttResponderTransport transport(final MqttClient client) {
+        return new MqttResponderTransport() {
+            @Override
+            MqttClient createClient() {
+                return client;
+            }
+        };
+    }
+
+    @Test
+    public void testFailedConnectClosesTheClient() throws Exception {
+        FakeClient client = new FakeClient(true, false);
+        MqttResponderTransport transport = transport(client);
+
+        assertStartupFails(transport);
+        assertTrue(client._closed);
+    }
+
+    @Test
+    public void testFailedSubscribeDisconnectsTheClient() throws Exception {
+        FakeClient client = new FakeClient(false, true);
+        MqttResponderTransport transport = transport(client);
+
+        assertStartupFails(transport);
+        // the connect worked, so without the clean up it would still be live
+        assertFalse(client._connected);
+        assertTrue(client._closed);
+        assertFalse(transport.isConnected());
+    }
+
+    @Test
+    public void testBatchIsQuarantinedOnceAsItArrived() throws Exception {
+        FakeClient client = new FakeClient(false, false);
+        MqttResponderTransport transport = transport(client);
+        transport.initialize(null, "testQuarantineMqttResponderConfig.xml");
+
+        byte[] batch = ProbeEnvelope.pack(Arrays.asList(
+                "not a probe".getBytes(StandardCharsets.UTF_8), "nor this".getBytes(StandardCharsets.UTF_8)));
+        transport.messageArrived("ws.argo/test", new MqttMessage(batch));
+
+        assertEquals(2, transport.rejectedCount());
+        assertEquals(1, transport.quarantinedCount());
+        assertEquals(1, client._quarantined.size());
+        assertArrayEquals(batch, client._quarantined.get(0).getPayload());
+        transport.shutdown();
+    }
+
+    private static void assertStartupFails(MqttResponderTransport transport) throws InterruptedException {
+        try {
+            transport.initialize(null, "testFailedStartupMqttResponderConfig.xml");
+            fail("expected initialize to fail");
+        } catch (TransportConfigException expected) {
+            // the client, receive window and workers were all set up before this
+        }
+        try {
+            transport.readiness().get();
+            fail("expected readiness to fail");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof TransportConfigException);
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+package ws.argo.probe.transport.responder.mqtt;
+
+import org.junit.Test;
+import ws.argo.probe.transport.mqtt.wire.ProbeRoute;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for the cheap inbound payload checks.
+ */
+public class PayloadValidatorTest {
+
+    private static final byte[] PROBE_XML = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<probe xmlns=\"urn:schemas-ws-argo-probe:2.0\" id=\"urn:uuid:03d55093-a954-4667-b682-8116c417925d\"/>")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] NAMESPACE = PayloadValidator.fingerprint("urn:schemas-ws-argo-probe:2.0");
+
+    @Test
+    public void testSize() {
+        PayloadValidator validator = new PayloadValidator(10, 1000);
+
+        assertNull(validator.checkSize(new byte[10]));
+        assertEquals(PayloadValidator.Reason.TOO_LARGE, validator.checkSize(new byte[11]));
+    }
+
+    @Test
+    public void testFormat() {
+        PayloadValidator validator = new PayloadValidator(1024, 1000);
+
+        assertNull(validator.checkProbe(PROBE_XML, null));
+        assertNull(validator.checkProbe(new byte[]{(byte) 0xA7, 'B', 1, 0}, null));
+        // a byte order mark and leading whitespace are fine
+        assertNull(validator.checkProbe(new byte[]{(byte) 0xEF, (byte) 0xBB, (byte) 0xBF, ' ', '\n', '<', 'p', '/', '>'}, null));
+
+        assertEquals(PayloadValidator.Reason.UNKNOWN_FORMAT, validator.checkProbe("{\"probe\":1}".getBytes(StandardCharsets.UTF_8), null));
+        assertEquals(PayloadValidator.Reason.UNKNOWN_FORMAT, validator.checkProbe(new byte[0], null));
+    }
+
+    @Test
+    public void testFingerprint() {
+        PayloadValidator validator = new PayloadValidator(1024, 1000);
+
+        assertNull(validator.checkProbe(PROBE_XML, NAMESPACE));
+        assertEquals(PayloadValidator.Reason.SCHEMA_MISMATCH,
+                validator.checkProbe("<probe xmlns=\"urn:other\"/>".getBytes(StandardCharsets.UTF_8), NAMESPACE));
+
+        // only the start of the payload is looked at
+        StringBuilder late = new StringBuilder("<probe>");
+        for (int i = 0; i < PayloadValidator.FINGERPRINT_WINDOW; i++) {
+            late.append(' ');
+        }
+        late.append("urn:schemas-ws-argo-probe:2.0</probe>");
+        assertEquals(PayloadValidator.Reason.SCHEMA_MISMATCH,
+                validator.checkProbe(late.toString().getBytes(StandardCharsets.UTF_8), NAMESPACE));
+    }
+
+    @Test
+    public void testRoutedPayloadIsCheckedInside() {
+        PayloadValidator validator = new PayloadValidator(1024, 1000);
+        ProbeRoute route = ProbeRoute.ORIGIN.forwardedBy("gateway-a");
+
+        assertNull(validator.checkProbe(route.wrap(PROBE_XML), NAMESPACE));
+        assertEquals(PayloadValidator.Reason.UNKNOWN_FORMAT,
+                validator.checkProbe(route.wrap("{\"probe\":1}".getBytes(StandardCharsets.UTF_8)), null));
+        assertEquals(PayloadValidator.Reason.MALFORMED, validator.checkProbe(new byte[]{(byte) 0xA7, 'R', 1, 1, 0, 9}, null));
+    }
+
+    @Test
+    public void testRejectsAreCounted() {
+        PayloadValidator validator = new PayloadValidator(1024, 60000);
+
+        for (int i = 0; i < 5; i++) {
+            validator.reject(PayloadValidator.Reason.TOO_LARGE, "ws.argo/probes", "test", null);
+        }
+        validator.reject(PayloadValidator.Reason.MALFORMED, "ws.argo/probes", "test", null);
+
+        assertEquals(5, validator.rejected(PayloadValidator.Reason.TOO_LARGE));
+        assertEquals(1, validator.rejected(PayloadValidator.Reason.MALFORMED));
+        assertEquals(0, validator.rejected(PayloadValidator.Reason.SCHEMA_MISMATCH));
+        assertEquals(6, validator.rejected());
+    }
+
+}
@@ -0,0 +1,208 @@
+package ws.argo.probe.transport.responder.mqtt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the responder's worker stage.
+ */
+public class ProbeWorkersTest {
+
+    @Test
+    public void testSlowProbeDoesNotBlockOthers() throws Exception {
+        ProbeWorkers workers = new ProbeWorkers("JUnit", 2, 10, false, ProbeWorkers.OverflowPolicy.BLOCK);
+        final CountDownLatch slow = new CountDownLatch(1);
+        final CountDownLatch fast = new CountDownLatch(1);
+
+        workers.execute(null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    slow.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        workers.execute(null, new Runnable() {
+            @Override
+            public void run() {
+                fast.countDown();
+            }
+        });
+
+        assertTrue(fast.await(5, TimeUnit.SECONDS));
+        slow.countDown();
+        assertTrue(workers.shutdown(5000));
+        assertEquals(2, workers.handedOff());
+    }
+
+    @Test
+    public void testOrderingKeepsKeyInOrder() throws Exception {
+        ProbeWorkers workers = new ProbeWorkers("JUnit", 4, 4000, true, ProbeWorkers.OverflowPolicy.BLOCK);
+        final List<Integer> seen = Collections.synchronizedList(new ArrayList<Integer>());
+
+        for (int i = 0; i < 1000; i++) {
+            final int sequence = i;
+            workers.execute("JUnit-Client", new Runnable() {
+                @Override
+                public void run() {
+                    seen.add(sequence);
+                }
+            });
+        }
+
+        assertTrue(workers.shutdown(5000));
+        assertEquals(1000, seen.size());
+        for (int i = 0; i < seen.size(); i++) {
+            assertEquals(i, (int) seen.get(i));
+        }
+    }
+
+    @Test
+    public void testOverflowPolicies() throws Exception {
+        long[] dropNewest = overflow(ProbeWorkers.OverflowPolicy.DROP_NEWEST);
+        assertEquals(2, dropNewest[0]);
+        // whoever handed the probe off is told it was dropped
+        assertEquals(2, dropNewest[2]);
+        long[] dropOldest = overflow(ProbeWorkers.OverflowPolicy.DROP_OLDEST);
+        assertEquals(2, dropOldest[0]);
+        assertEquals(2, dropOldest[2]);
+
+        long[] callerRuns = overflow(ProbeWorkers.OverflowPolicy.CALLER_RUNS);
+        assertEquals(0, callerRuns[0]);
+        assertEquals(2, callerRuns[1]);
+        assertEquals(0, callerRuns[2]);
+    }
+
+    /**
+     * Fill a single worker and its one slot queue, then hand off two more.
+     *
+     * @return the dropped, caller runs and drop callback counts
+     */
+    private long[] overflow(ProbeWorkers.OverflowPolicy policy) throws Exception {
+        ProbeWorkers workers = new ProbeWorkers("JUnit", 1, 1, false, policy);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        Runnable blocker = new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        Runnable quick = new Runnable() {
+            @Override
+            public void run() {
+                // nothing to do
+            }
+        };
+        final AtomicInteger dropCallbacks = new AtomicInteger();
+        Runnable onDrop = new Runnable() {
+            @Override
+            public void run() {
+                dropCallbacks.incrementAndGet();
+            }
+        };
+
+        workers.execute(null, blocker);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        workers.execute(null, quick, onDrop);
+        workers.execute(null, quick, onDrop);
+        workers.execute(null, quick, onDrop);
+        assertEquals(1, workers.queueDepth());
+
+        gate.countDown();
+        assertTrue(workers.shutdown(5000));
+        return new long[]{workers.dropped(), workers.callerRuns(), dropCallbacks.get()};
+    }
+
+    @Test
+    public void testBlockedHandoffDuringShutdownIsDropped() throws Exception {
+        final ProbeWorkers workers = new ProbeWorkers("JUnit", 1, 1, false, ProbeWorkers.OverflowPolicy.BLOCK);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AtomicInteger ran = new AtomicInteger();
+        final AtomicInteger dropCallbacks = new AtomicInteger();
+        final Runnable quick = new Runnable() {
+            @Override
+            public void run() {
+                ran.incrementAndGet();
+            }
+        };
+        final Runnable onDrop = new Runnable() {
+            @Override
+            public void run() {
+                dropCallbacks.incrementAndGet();
+            }
+        };
+
+        workers.execute(null, new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        workers.execute(null, quick, onDrop);
+        Thread handoff = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                workers.execute(null, quick, onDrop);
+            }
+        });
+        handoff.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (handoff.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // shut down while the handoff is waiting for room
+        Thread closer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    workers.shutdown(5000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        closer.start();
+        gate.countDown();
+        handoff.join(5000);
+        closer.join(5000);
+
+        // the late probe was either processed or dropped, and its owner told, never left behind
+        assertEquals(0, workers.queueDepth());
+        assertEquals(2, ran.get() + dropCallbacks.get());
+        assertEquals(dropCallbacks.get(), workers.dropped());
+    }
+
+    @Test
+    public void testConfigNames() {
+        assertEquals(ProbeWorkers.Ordering.CLIENT_ID, ProbeWorkers.Ordering.parse("clientId"));
+        assertEquals(ProbeWorkers.Ordering.TOPIC, ProbeWorkers.Ordering.parse("topic"));
+        assertEquals(ProbeWorkers.OverflowPolicy.CALLER_RUNS, ProbeWorkers.OverflowPolicy.parse("callerRuns"));
+        assertEquals(ProbeWorkers.OverflowPolicy.DROP_OLDEST, ProbeWorkers.OverflowPolicy.parse("dropOldest"));
+    }
+
+}
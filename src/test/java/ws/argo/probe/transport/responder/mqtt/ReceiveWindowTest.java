@@ -0,0 +1,126 @@
+package ws.argo.probe.transport.responder.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the manual acknowledgement receive window.
+ */
+public class ReceiveWindowTest {
+
+    private final List<Integer> _acked = Collections.synchronizedList(new ArrayList<Integer>());
+
+    private ReceiveWindow createWindow(int size) {
+        return new ReceiveWindow(size, new ReceiveWindow.Acknowledger() {
+            @Override
+            public void acknowledge(int messageId, int qos) throws MqttException {
+                _acked.add(messageId);
+            }
+        });
+    }
+
+    @Test
+    public void testAcknowledgedOnceEveryProbeIsDone() throws Exception {
+        ReceiveWindow window = createWindow(10);
+
+        ReceiveWindow.Receipt receipt = window.open(1, 1);
+        // two probes handed off to workers
+        receipt.hold();
+        receipt.hold();
+        // the callback thread is done with the message
+        receipt.release();
+        receipt.release();
+        assertTrue(_acked.isEmpty());
+        assertEquals(1, window.inUse());
+
+        receipt.release();
+        assertEquals(Collections.singletonList(1), _acked);
+        assertEquals(0, window.inUse());
+        assertEquals(1, window.acknowledged());
+    }
+
+    @Test
+    public void testIntakePausesWhenFull() throws Exception {
+        final ReceiveWindow window = createWindow(2);
+
+        ReceiveWindow.Receipt first = window.open(1, 1);
+        window.open(2, 1);
+        assertEquals(2, window.inUse());
+
+        final CountDownLatch opened = new CountDownLatch(1);
+        Thread callback = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    window.open(3, 1);
+                    opened.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        callback.start();
+
+        assertFalse(opened.await(200, TimeUnit.MILLISECONDS));
+        first.release();
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+        assertEquals(1, window.pauses());
+        assertEquals(2, window.inUse());
+    }
+
+    @Test
+    public void testCloseLetsWaitersThrough() throws Exception {
+        final ReceiveWindow window = createWindow(1);
+        window.open(1, 1);
+
+        final CountDownLatch opened = new CountDownLatch(1);
+        Thread callback = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    window.open(2, 1);
+                    opened.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        callback.start();
+
+        window.close();
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testReceiptFromALostSessionIsNotAcknowledged() throws Exception {
+        ReceiveWindow window = createWindow(2);
+
+        ReceiveWindow.Receipt held = window.open(1, 1);
+        held.hold();
+        held.release();
+        // the connection drops while a worker still has the probe
+        window.newSession();
+        ReceiveWindow.Receipt current = window.open(1, 1);
+
+        held.release();
+        assertTrue(_acked.isEmpty());
+        assertEquals(1, window.staleAcks());
+        assertEquals(1, window.inUse());
+
+        // the same id on the new session is the one acknowledged
+        current.release();
+        assertEquals(Collections.singletonList(1), _acked);
+        assertEquals(0, window.inUse());
+    }
+
+}
@@ -0,0 +1,37 @@
+package ws.argo.probe.transport.responder.mqtt;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the reconnect backoff schedule.
+ */
+public class ReconnectBackoffTest {
+
+    @Test
+    public void testDelayDoublesUpToTheMaximum() {
+        ReconnectBackoff backoff = new ReconnectBackoff(100, 10000, new Random(42));
+
+        for (int attempt = 0; attempt < 100; attempt++) {
+            long ceiling = Math.min(10000, attempt < 20 ? 100L << attempt : 10000);
+            long delay = backoff.delayMillis(attempt);
+            assertTrue("attempt " + attempt + " delay " + delay, delay >= ceiling / 2 && delay <= ceiling);
+        }
+    }
+
+    @Test
+    public void testDelaysAreJittered() {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 60000, new Random(7));
+
+        long first = backoff.delayMillis(5);
+        boolean varied = false;
+        for (int i = 0; i < 20 && !varied; i++) {
+            varied = backoff.delayMillis(5) != first;
+        }
+        assertTrue(varied);
+    }
+
+}
@@ -0,0 +1,56 @@
+package ws.argo.probe.transport.responder.mqtt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for matching topics against topic filters.
+ */
+public class TopicTrieTest {
+
+    @Test
+    public void testExactAndWildcardMatches() {
+        TopicTrie<String> trie = new TopicTrie<>();
+        trie.put("ws.argo/probes/+", "single");
+        trie.put("ws.argo/legacy/#", "multi");
+        trie.put("ws.argo/test", "exact");
+
+        assertEquals("exact", trie.match("ws.argo/test"));
+        assertEquals("single", trie.match("ws.argo/probes/all"));
+        assertNull(trie.match("ws.argo/probes/all/more"));
+        assertEquals("multi", trie.match("ws.argo/legacy/a/b/c"));
+        assertEquals("multi", trie.match("ws.argo/legacy"));
+        assertNull(trie.match("ws.argo/other"));
+    }
+
+    @Test
+    public void testMostSpecificFilterWins() {
+        TopicTrie<String> trie = new TopicTrie<>();
+        trie.put("ws.argo/#", "multi");
+        trie.put("ws.argo/+/x", "single");
+        trie.put("ws.argo/probes/x", "exact");
+
+        assertEquals("exact", trie.match("ws.argo/probes/x"));
+        assertEquals("single", trie.match("ws.argo/other/x"));
+        assertEquals("multi", trie.match("ws.argo/other/y"));
+    }
+
+    @Test
+    public void testWildcardsSkipSystemTopics() {
+        TopicTrie<String> trie = new TopicTrie<>();
+        trie.put("#", "everything");
+        trie.put("+/probes", "single");
+
+        assertEquals("single", trie.match("ws.argo/probes"));
+        assertEquals("everything", trie.match("ws.argo/other"));
+        assertNull(trie.match("$SYS/probes"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMultiLevelWildcardMustBeLast() {
+        new TopicTrie<String>().put("ws.argo/#/probes", "bad");
+    }
+
+}
@@ -0,0 +1,96 @@
+package ws.argo.probe.transport.sender.mqtt;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * Rough per-call time and allocation figures for comparing two ways of doing the same
+ * thing in a test.  The figures are logged rather than asserted on, as the JIT can
+ * change them from run to run.
+ */
+public final class AllocationMeter {
+
+    /**
+     * Something to measure.
+     */
+    public interface Call {
+        void run() throws Exception;
+    }
+
+    private static final Method ALLOCATED_BYTES = allocatedBytesMethod();
+
+    private AllocationMeter() {
+    }
+
+    /**
+     * Look up the allocation counter without depending on {@code com.sun.management} at
+     * compile time.
+     */
+    private static Method allocatedBytesMethod() {
+        try {
+            Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            if (!type.isInstance(threads)
+                    || !(Boolean) type.getMethod("isThreadAllocatedMemorySupported").invoke(threads)) {
+                return null;
+            }
+            return type.getMethod("getThreadAllocatedBytes", long.class);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Run the call enough times for the JIT to settle.
+     *
+     * @param call       the call
+     * @param iterations the number of runs
+     * @throws Exception if the call fails
+     */
+    public static void warmUp(Call call, int iterations) throws Exception {
+        for (int i = 0; i < iterations; i++) {
+            call.run();
+        }
+    }
+
+    /**
+     * Return the average time the call takes.
+     *
+     * @param call       the call
+     * @param iterations the number of runs to average over
+     * @return nanoseconds per call
+     * @throws Exception if the call fails
+     */
+    public static long nanosPerCall(Call call, int iterations) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            call.run();
+        }
+        return (System.nanoTime() - start) / iterations;
+    }
+
+    /**
+     * Return the average number of bytes the call allocates on this thread.
+     *
+     * @param call       the call
+     * @param iterations the number of runs to average over
+     * @return bytes per call, or -1 if the JVM doesn't count allocations
+     * @throws Exception if the call fails
+     */
+    public static long bytesPerCall(Call call, int iterations) throws Exception {
+        if (ALLOCATED_BYTES == null) {
+            return -1;
+        }
+        long start = allocatedBytes();
+        for (int i = 0; i < iterations; i++) {
+            call.run();
+        }
+        return (allocatedBytes() - start) / iterations;
+    }
+
+    private static long allocatedBytes() throws ReflectiveOperationException {
+        return (Long) ALLOCATED_BYTES.invoke(ManagementFactory.getThreadMXBean(), Thread.currentThread().getId());
+    }
+
+}
@@ -0,0 +1,111 @@
+package ws.argo.probe.transport.sender.mqtt;
+
+import org.junit.Test;
+import ws.argo.probe.transport.mqtt.wire.ProbeCodec;
+import ws.argo.probe.transport.mqtt.wire.ProbeCodecs;
+import ws.argo.wireline.probe.ProbeParseException;
+import ws.argo.wireline.probe.ProbeWrapper;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the compact binary probe encoding, including a rough size and speed
+ * comparison against the XML encoding.
+ */
+public class BinaryProbeCodecTest {
+
+    private static final Logger LOGGER = Logger.getLogger(BinaryProbeCodecTest.class.getName());
+
+    private static final int ITERATIONS = 20000;
+
+    private ProbeWrapper createProbe(int ids) {
+        ProbeWrapper probe = new ProbeWrapper("urn:uuid:" + UUID.randomUUID());
+        probe.setClientId("JUnit-Binary-Codec-Client");
+        probe.setDESVersion("urn:uuid:918b5a45-1d24-4a09-94bc-d4ac9f8e0ed3");
+        probe.setRespondToPayloadType("urn:schemas-ws-argo-org:2.0:payload-type:json");
+        probe.addRespondToURL("internal", "http://10.0.0.1:4009/AsynchListener/api/responseHandler/probeResponse");
+        probe.addRespondToURL("external", "http://192.168.1.20:4009/AsynchListener/api/responseHandler/probeResponse");
+        for (int i = 0; i < ids; i++) {
+            probe.addServiceContractID("urn:uuid:" + UUID.randomUUID());
+            probe.addServiceInstanceID("service-instance-" + i);
+        }
+        return probe;
+    }
+
+    @Test
+    public void testRoundTrip() throws ProbeParseException {
+        ProbeWrapper probe = createProbe(3);
+
+        byte[] payload = ProbeCodecs.BINARY.encode(probe);
+        assertSame(ProbeCodecs.BINARY, ProbeCodecs.forPayload(payload));
+
+        ProbeWrapper decoded = ProbeCodecs.BINARY.decode(payload);
+        assertEquals(probe.getProbeId(), decoded.getProbeId());
+        assertEquals(probe.getClientId(), decoded.getClientId());
+        assertEquals(probe.getDESVersion(), decoded.getDESVersion());
+        assertEquals(probe.getRespondToPayloadType(), decoded.getRespondToPayloadType());
+        assertEquals(probe.getRespondToURLs().size(), decoded.getRespondToURLs().size());
+        assertEquals(probe.getServiceContractIDs(), decoded.getServiceContractIDs());
+        assertEquals(probe.getServiceInstanceIDs(), decoded.getServiceInstanceIDs());
+    }
+
+    @Test
+    public void testXmlPayloadIsDetected() throws ProbeParseException {
+        byte[] payload = ProbeCodecs.XML.encode(createProbe(1));
+
+        assertSame(ProbeCodecs.XML, ProbeCodecs.forPayload(payload));
+    }
+
+    @Test(expected = ProbeParseException.class)
+    public void testTruncatedPayload() throws ProbeParseException {
+        byte[] payload = ProbeCodecs.BINARY.encode(createProbe(2));
+
+        ProbeCodecs.BINARY.decode(Arrays.copyOf(payload, payload.length - 5));
+    }
+
+    @Test
+    public void testBinaryVersusXmlSizeAndSpeed() throws ProbeParseException {
+        ProbeWrapper probe = createProbe(20);
+
+        int xmlSize = ProbeCodecs.XML.encode(probe).length;
+        int binarySize = ProbeCodecs.BINARY.encode(probe).length;
+        LOGGER.info("Encoded size: xml [" + xmlSize + "] bytes, binary [" + binarySize + "] bytes");
+        assertTrue(binarySize < xmlSize);
+
+        long[] xmlTimes = time(ProbeCodecs.XML, probe);
+        long[] binaryTimes = time(ProbeCodecs.BINARY, probe);
+        LOGGER.info("Encode per probe: xml [" + xmlTimes[0] + "] ns, binary [" + binaryTimes[0] + "] ns");
+        LOGGER.info("Decode per probe: xml [" + xmlTimes[1] + "] ns, binary [" + binaryTimes[1] + "] ns");
+    }
+
+    /**
+     * Return the average encode and decode time in nanoseconds, after a warm up.
+     */
+    private long[] time(ProbeCodec codec, ProbeWrapper probe) throws ProbeParseException {
+        byte[] payload = codec.encode(probe);
+        for (int i = 0; i < ITERATIONS; i++) {
+            codec.decode(codec.encode(probe));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            codec.encode(probe);
+        }
+        long encode = (System.nanoTime() - start) / ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            codec.decode(payload);
+        }
+        long decode = (System.nanoTime() - start) / ITERATIONS;
+
+        return new long[]{encode, decode};
+    }
+
+}
@@ -0,0 +1,72 @@
+package ws.argo.probe.transport.sender.mqtt;
+
+import org.junit.Test;
+import ws.argo.wireline.probe.ProbeWrapper;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests for the encoded probe payload cache.
+ */
+public class EncodedProbeCacheTest {
+
+    private ProbeWrapper createProbe() {
+        ProbeWrapper probe = new ProbeWrapper("urn:uuid:" + UUID.randomUUID());
+        probe.setClientId("JUnit-Cache-Client");
+        probe.addRespondToURL("internal", "http://10.0.0.1:4009");
+        probe.addServiceContractID("urn:uuid:" + UUID.randomUUID());
+        return probe;
+    }
+
+    @Test
+    public void testUnchangedProbeHits() {
+        EncodedProbeCache cache = new EncodedProbeCache(10);
+        ProbeWrapper probe = createProbe();
+        byte[] payload = new byte[]{1, 2, 3};
+
+        assertNull(cache.get(probe));
+        cache.put(probe, payload);
+        assertSame(payload, cache.get(probe));
+        assertSame(payload, cache.get(probe));
+
+        assertEquals(2, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    @Test
+    public void testChangedProbeMisses() {
+        EncodedProbeCache cache = new EncodedProbeCache(10);
+        ProbeWrapper probe = createProbe();
+        cache.put(probe, new byte[]{1});
+
+        probe.addServiceContractID("urn:uuid:" + UUID.randomUUID());
+        assertNull(cache.get(probe));
+
+        cache.put(probe, new byte[]{2});
+        probe.addRespondToURL("external", "http://192.168.1.20:4009");
+        assertNull(cache.get(probe));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        EncodedProbeCache cache = new EncodedProbeCache(2);
+        ProbeWrapper first = createProbe();
+        ProbeWrapper second = createProbe();
+        ProbeWrapper third = createProbe();
+
+        cache.put(first, new byte[]{1});
+        cache.put(second, new byte[]{2});
+        cache.get(first);
+        cache.put(third, new byte[]{3});
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get(second));
+        assertEquals(1, cache.get(first)[0]);
+        assertEquals(3, cache.get(third)[0]);
+    }
+
+}
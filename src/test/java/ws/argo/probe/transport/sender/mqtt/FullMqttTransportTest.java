@@ -18,6 +18,9 @@ import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,7 +34,7 @@ public class FullMqttTransportTest {
 
 
     @Test
-    public void testFullTransportTest() throws UnknownHostException, SocketException, TransportConfigException, UnsupportedPayloadType, MalformedURLException, ProbeSenderException, TransportException {
+    public void testFullTransportTest() throws UnknownHostException, SocketException, TransportConfigException, UnsupportedPayloadType, MalformedURLException, ProbeSenderException, TransportException, InterruptedException, ExecutionException, TimeoutException {
         final ProbeProcessor probeProcessor = new ProbeProcessor() {
             @Override
             public void processProbe(ProbeWrapper probeWrapper) {
@@ -78,7 +81,11 @@ public class FullMqttTransportTest {
         };
 
         LOGGER.setLevel(Level.ALL);
-        responder.run();  // Got the responder up
+        // run() blocks until shutdown, so it gets a thread of its own
+        Thread responderThread = new Thread(responder, "JUnit-Responder");
+        responderThread.setDaemon(true);
+        responderThread.start();  // Got the responder up
+        responderTransport.readiness().get(10, TimeUnit.SECONDS);
 
         Transport transport = new MqttSenderTransport();
 
@@ -0,0 +1,188 @@
+package ws.argo.probe.transport.sender.mqtt;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the publisher's in-flight window against a client that doesn't answer.
+ */
+public class MqttPublisherTest {
+
+    /**
+     * A connected client whose publishes complete only when the test says so.
+     */
+    private static class StalledClient implements InvocationHandler {
+
+        final List<IMqttActionListener> _listeners = new ArrayList<>();
+        final List<IMqttToken> _tokens = new ArrayList<>();
+
+        IMqttAsyncClient client() {
+            return (IMqttAsyncClient) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] {IMqttAsyncClient.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "publish":
+                    _listeners.add((IMqttActionListener) args[3]);
+                    IMqttToken token = stalledToken();
+                    _tokens.add(token);
+                    return token;
+                case "isConnected":
+                    return true;
+                case "getClientId":
+                    return "JUnit-Publisher";
+                case "getServerURI":
+                    return "tcp://stalled:1883";
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        }
+
+        void complete(int index) {
+            _listeners.get(index).onSuccess(_tokens.get(index));
+        }
+
+        void fail(int index) {
+            _listeners.get(index).onFailure(_tokens.get(index), new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED));
+        }
+
+        private static IMqttToken stalledToken() {
+            return (IMqttToken) Proxy.newProxyInstance(MqttPublisherTest.class.getClassLoader(),
+                    new Class<?>[] {IMqttDeliveryToken.class}, new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                            if (method.getName().equals("waitForCompletion")) {
+                                // never acknowledged in time
+                                throw new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT);
+                            }
+                            return defaultValue(method.getReturnType());
+                        }
+                    });
+        }
+
+        private static Object defaultValue(Class<?> type) {
+            if (type == boolean.class) {
+                return false;
+            }
+            if (type == int.class) {
+                return 0;
+            }
+            if (type == long.class) {
+                return 0L;
+            }
+            return null;
+        }
+    }
+
+    private static class CountingListener implements IMqttActionListener {
+
+        final AtomicInteger _succeeded = new AtomicInteger();
+        final AtomicInteger _failed = new AtomicInteger();
+
+        @Override
+        public void onSuccess(IMqttToken token) {
+            _succeeded.incrementAndGet();
+        }
+
+        @Override
+        public void onFailure(IMqttToken token, Throwable throwable) {
+            _failed.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testTimedOutPublishKeepsItsWindowSlot() throws Exception {
+        StalledClient stalled = new StalledClient();
+        MqttPublisher publisher = new MqttPublisher(stalled.client(), 2, 50);
+        CountingListener outcome = new CountingListener();
+
+        try {
+            publisher.publish("topic", new MqttMessage(new byte[] {1}), outcome);
+            fail("expected the publish to time out");
+        } catch (UnconfirmedPublishException expected) {
+            // the client still has the message
+        }
+        assertEquals(1, publisher.inFlight());
+        assertEquals(1, publisher.timedOutCount());
+        assertEquals(1, publisher.unconfirmedCount());
+        assertEquals(0, publisher.failedCount());
+
+        // the late acknowledgement frees the slot and reports the real outcome
+        stalled.complete(0);
+        assertEquals(0, publisher.inFlight());
+        assertEquals(1, outcome._succeeded.get());
+        assertEquals(1, publisher.publishedCount());
+    }
+
+    @Test
+    public void testWindowFillsWithUnconfirmedPublishes() throws Exception {
+        StalledClient stalled = new StalledClient();
+        MqttPublisher publisher = new MqttPublisher(stalled.client(), 2, 50);
+        CountingListener outcome = new CountingListener();
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                publisher.publish("topic", new MqttMessage(new byte[] {1}), outcome);
+                fail("expected the publish to time out");
+            } catch (UnconfirmedPublishException expected) {
+                // still in flight
+            }
+        }
+        assertEquals(2, publisher.inFlight());
+
+        // the window matches the client, so the next publish waits for room instead of
+        // being refused by the client
+        try {
+            publisher.publish("topic", new MqttMessage(new byte[] {1}), outcome);
+            fail("expected no room in the window");
+        } catch (UnconfirmedPublishException e) {
+            fail("should not have reached the client");
+        } catch (MqttException expected) {
+            assertEquals(MqttException.REASON_CODE_CLIENT_TIMEOUT, expected.getReasonCode());
+        }
+        assertEquals(2, stalled._listeners.size());
+
+        stalled.fail(0);
+        assertEquals(1, publisher.inFlight());
+        assertEquals(1, outcome._failed.get());
+        stalled.complete(1);
+        assertEquals(0, publisher.inFlight());
+        assertEquals(1, outcome._succeeded.get());
+    }
+
+    @Test
+    public void testClientThatNeverConnectedIsClosed() {
+        final List<String> calls = new ArrayList<>();
+        IMqttAsyncClient client = (IMqttAsyncClient) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {IMqttAsyncClient.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        calls.add(method.getName());
+                        return method.getName().equals("isConnected") ? Boolean.FALSE : null;
+                    }
+                });
+
+        new MqttPublisher(client, 1, 0).closeQuietly();
+        assertTrue(calls.contains("close"));
+        assertFalse(calls.contains("disconnect"));
+    }
+}
@@ -14,6 +14,9 @@ import ws.argo.wireline.probe.ProbeWrapper;
 import ws.argo.wireline.probe.XMLSerializer;
 
 import javax.xml.bind.JAXBException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,7 +46,7 @@ public class MqttRepeaterTest {
     }
 
     @Test
-    public void testMqttRepeater() throws ProbeHandlerConfigException, UnsupportedPayloadType, JAXBException, ProbeParseException {
+    public void testMqttRepeater() throws ProbeHandlerConfigException, UnsupportedPayloadType, JAXBException, ProbeParseException, InterruptedException, ExecutionException, TimeoutException {
         final ProbeProcessor probeProcessor = new ProbeProcessor() {
             @Override
             public void processProbe(ProbeWrapper probeWrapper) {
@@ -90,7 +93,11 @@ public class MqttRepeaterTest {
         };
 
         LOGGER.setLevel(Level.ALL);
-        responder.run();  // Got the responder up
+        // run() blocks until shutdown, so it gets a thread of its own
+        Thread responderThread = new Thread(responder, "JUnit-Responder");
+        responderThread.setDaemon(true);
+        responderThread.start();  // Got the responder up
+        responderTransport.readiness().get(10, TimeUnit.SECONDS);
 
 
         ProbeHandlerPlugin handlerPlugin = new MqttRepeaterProbeHandlerPlugin();
@@ -2,8 +2,12 @@ package ws.argo.probe.transport.sender.mqtt;
 
 import org.junit.Test;
 import ws.argo.plugin.transport.exception.TransportConfigException;
+import ws.argo.plugin.transport.exception.TransportException;
 import ws.argo.probe.transport.responder.mqtt.MqttResponderTransport;
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
 /**
  * Created by jmsimpson on 10/21/15.
  */
@@ -18,6 +22,14 @@ public class MqttResponderTransportConfigTest {
 
     }
 
+    @Test
+    public void testReadMultiTopicConfig() throws TransportConfigException, TransportException {
+        MqttResponderTransport responderTransport = new MqttResponderTransport();
+
+        responderTransport.initialize(null, "testMultiTopicMqttResponderConfig.xml");
+        responderTransport.shutdown();
+    }
+
     @Test( expected = TransportConfigException.class)
     public void testBadConfigValues() throws TransportConfigException {
         MqttResponderTransport responderTransport = new MqttResponderTransport();
@@ -27,4 +39,31 @@ public class MqttResponderTransportConfigTest {
 
     }
 
+    @Test
+    public void testBadBrokerLeavesNoWorkers() throws InterruptedException {
+        MqttResponderTransport responderTransport = new MqttResponderTransport();
+
+        try {
+            responderTransport.initialize(null, "testBadBrokerWorkersMqttResponderConfig.xml");
+            fail("expected the connection to fail");
+        } catch (TransportConfigException expected) {
+            // the workers were started before the connection was tried
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (workerThreadsAlive() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertFalse(workerThreadsAlive());
+    }
+
+    private static boolean workerThreadsAlive() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("MQTT-Probe-Worker-testBadBrokerWorkers-")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
 }
@@ -12,6 +12,10 @@ import ws.argo.probe.transport.responder.mqtt.MqttResponderTransport;
 
 import java.net.*;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Created by jmsimpson on 10/19/15.
@@ -62,4 +66,115 @@ public class MqttSenderTransportTest {
         sender.close();
     }
 
+    @Test
+    public void testSendingProbesAsync() throws TransportConfigException, UnsupportedPayloadType, TransportException {
+        Properties p = new Properties();
+
+        p.put("mqttTopic", "/argo/test");
+        p.put("qos", "1");
+        p.put("broker", "tcp://localhost:1883");
+        p.put("clientId", "mqttAsyncTestClient");
+        p.put("asyncMode", "true");
+        p.put("maxInFlight", "5");
+
+        MqttSenderTransport senderTransport = new MqttSenderTransport();
+        senderTransport.initialize(p, "");
+
+        final AtomicInteger sent = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        senderTransport.setSendListener(new MqttSendListener() {
+            @Override
+            public void probeSent(Probe probe) {
+                sent.incrementAndGet();
+            }
+
+            @Override
+            public void probeFailed(Probe probe, Throwable cause) {
+                failed.incrementAndGet();
+            }
+
+            @Override
+            public void probeQueued(Probe probe) {
+            }
+        });
+
+        for (int i = 0; i < 50; i++) {
+            senderTransport.sendProbe(new Probe(Probe.JSON));
+            assertTrue(senderTransport.inFlight() <= 5);
+        }
+
+        assertTrue(senderTransport.flush(10000));
+        assertEquals(0, senderTransport.inFlight());
+        assertEquals(50, sent.get() + failed.get());
+
+        senderTransport.close();
+    }
+
+    @Test
+    public void testSendingBatchedProbes() throws TransportConfigException, UnsupportedPayloadType, TransportException {
+        Properties p = new Properties();
+
+        p.put("mqttTopic", "/argo/test");
+        p.put("broker", "tcp://localhost:1883");
+        p.put("clientId", "mqttBatchTestClient");
+        p.put("batchMaxProbes", "20");
+        p.put("batchLingerMillis", "50");
+
+        MqttSenderTransport senderTransport = new MqttSenderTransport();
+        senderTransport.initialize(p, "");
+
+        final AtomicInteger sent = new AtomicInteger();
+        senderTransport.setSendListener(new MqttSendListener() {
+            @Override
+            public void probeSent(Probe probe) {
+                sent.incrementAndGet();
+            }
+
+            @Override
+            public void probeFailed(Probe probe, Throwable cause) {
+            }
+
+            @Override
+            public void probeQueued(Probe probe) {
+            }
+        });
+
+        // two full batches and a partial one left for the linger timer
+        for (int i = 0; i < 45; i++) {
+            senderTransport.sendProbe(new Probe(Probe.JSON));
+        }
+
+        assertTrue(senderTransport.flush(10000));
+        assertEquals(45, sent.get());
+
+        senderTransport.close();
+    }
+
+    @Test
+    public void testShardedConnections() throws TransportConfigException, UnsupportedPayloadType, TransportException {
+        Properties p = new Properties();
+
+        p.put("mqttTopic", "/argo/test");
+        p.put("broker", "tcp://localhost:1883");
+        p.put("clientId", "mqttShardTestClient");
+        p.put("asyncMode", "true");
+        p.put("connections", "3");
+
+        MqttSenderTransport senderTransport = new MqttSenderTransport();
+        senderTransport.initialize(p, "");
+        assertEquals(3, senderTransport.healthyConnections());
+
+        for (int i = 0; i < 30; i++) {
+            senderTransport.sendProbe(new Probe(Probe.JSON));
+        }
+        assertTrue(senderTransport.flush(10000));
+
+        // round robin spreads the probes evenly
+        for (long published : senderTransport.publishedPerConnection()) {
+            assertEquals(10, published);
+        }
+
+        senderTransport.close();
+    }
+
 }
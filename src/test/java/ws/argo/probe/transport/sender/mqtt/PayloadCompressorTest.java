@@ -0,0 +1,82 @@
+package ws.argo.probe.transport.sender.mqtt;
+
+import org.junit.Test;
+import ws.argo.probe.transport.mqtt.wire.PayloadCompressor;
+import ws.argo.probe.transport.mqtt.wire.ProbeCodecs;
+import ws.argo.probe.transport.mqtt.wire.ProbeDictionary;
+import ws.argo.wireline.probe.ProbeParseException;
+import ws.argo.wireline.probe.ProbeWrapper;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for deflate compression of probe payloads.
+ */
+public class PayloadCompressorTest {
+
+    private static final Logger LOGGER = Logger.getLogger(PayloadCompressorTest.class.getName());
+
+    private byte[] probeXml() throws ProbeParseException {
+        ProbeWrapper probe = new ProbeWrapper("urn:uuid:" + UUID.randomUUID());
+        probe.setClientId("JUnit-Compression-Client");
+        probe.setRespondToPayloadType("urn:schemas-ws-argo-org:2.0:payload-type:json");
+        probe.addRespondToURL("internal", "http://10.0.0.1:4009/AsynchListener/api/responseHandler/probeResponse");
+        probe.addServiceContractID("urn:uuid:" + UUID.randomUUID());
+        return ProbeCodecs.XML.encode(probe);
+    }
+
+    @Test
+    public void testRoundTripWithBuiltinDictionary() throws ProbeParseException {
+        byte[] xml = probeXml();
+
+        byte[] plain = new PayloadCompressor(null, 0).compress(xml);
+        byte[] compressed = new PayloadCompressor(ProbeDictionary.bytes(), 0).compress(xml);
+        LOGGER.info("Probe xml [" + xml.length + "] bytes, deflated [" + plain.length + "], with dictionary [" + compressed.length + "]");
+
+        assertTrue(PayloadCompressor.isCompressed(compressed));
+        assertTrue(compressed.length < plain.length);
+
+        // the inflating side always knows the built-in dictionary
+        assertArrayEquals(xml, new PayloadCompressor(null, 0).decompress(compressed, xml.length));
+    }
+
+    @Test
+    public void testBelowThresholdIsUntouched() throws ProbeParseException {
+        byte[] xml = probeXml();
+
+        assertSame(xml, new PayloadCompressor(null, xml.length + 1).compress(xml));
+    }
+
+    @Test
+    public void testIncompressibleIsUntouched() {
+        byte[] noise = new byte[4096];
+        new Random(42).nextBytes(noise);
+
+        byte[] result = new PayloadCompressor(null, 0).compress(noise);
+        assertSame(noise, result);
+        assertFalse(PayloadCompressor.isCompressed(result));
+    }
+
+    @Test(expected = ProbeParseException.class)
+    public void testInflatedSizeLimit() throws ProbeParseException {
+        byte[] xml = probeXml();
+        byte[] compressed = new PayloadCompressor(null, 0).compress(xml);
+
+        new PayloadCompressor(null, 0).decompress(compressed, xml.length - 1);
+    }
+
+    @Test(expected = ProbeParseException.class)
+    public void testUnknownDictionary() throws ProbeParseException {
+        byte[] compressed = new PayloadCompressor("<probe><ra><respondTo>".getBytes(), 0).compress(probeXml());
+
+        new PayloadCompressor(null, 0).decompress(compressed, Integer.MAX_VALUE);
+    }
+
+}
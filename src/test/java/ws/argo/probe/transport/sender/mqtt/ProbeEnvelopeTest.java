@@ -0,0 +1,53 @@
+package ws.argo.probe.transport.sender.mqtt;
+
+import org.junit.Test;
+import ws.argo.probe.transport.mqtt.wire.ProbeEnvelope;
+import ws.argo.wireline.probe.ProbeParseException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for packing and unpacking multi-probe envelopes.
+ */
+public class ProbeEnvelopeTest {
+
+    @Test
+    public void testPackAndUnpack() throws ProbeParseException {
+        List<byte[]> entries = new ArrayList<>();
+        entries.add("<probe id=\"1\"/>".getBytes());
+        entries.add(new byte[0]);
+        entries.add("<probe id=\"3\"/>".getBytes());
+
+        byte[] envelope = ProbeEnvelope.pack(entries);
+        assertTrue(ProbeEnvelope.isEnvelope(envelope));
+
+        List<byte[]> unpacked = ProbeEnvelope.unpack(envelope);
+        assertEquals(3, unpacked.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertArrayEquals(entries.get(i), unpacked.get(i));
+        }
+    }
+
+    @Test
+    public void testPlainXmlIsNotAnEnvelope() {
+        assertFalse(ProbeEnvelope.isEnvelope("<?xml version=\"1.0\"?><probe/>".getBytes()));
+        assertFalse(ProbeEnvelope.isEnvelope(new byte[0]));
+    }
+
+    @Test(expected = ProbeParseException.class)
+    public void testTruncatedEnvelope() throws ProbeParseException {
+        List<byte[]> entries = new ArrayList<>();
+        entries.add("<probe id=\"1\"/>".getBytes());
+        byte[] envelope = ProbeEnvelope.pack(entries);
+
+        ProbeEnvelope.unpack(Arrays.copyOf(envelope, envelope.length - 3));
+    }
+
+}
@@ -0,0 +1,136 @@
+package ws.argo.probe.transport.sender.mqtt;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the memory-mapped outbound journal.
+ */
+public class ProbeJournalTest {
+
+    private File tempJournal() throws IOException {
+        File file = File.createTempFile("mqttJournal", ".dat");
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void testReplayInOrder() throws IOException {
+        ProbeJournal journal = new ProbeJournal(tempJournal(), 4096);
+
+        assertTrue(journal.append("argo/a", new byte[]{1}));
+        assertTrue(journal.append("argo/b", new byte[]{2, 2}));
+        assertEquals(2, journal.depth());
+
+        ProbeJournal.Record first = journal.peek();
+        assertEquals("argo/a", first.topic);
+        assertArrayEquals(new byte[]{1}, first.payload);
+        journal.remove(first);
+
+        ProbeJournal.Record second = journal.peek();
+        assertEquals("argo/b", second.topic);
+        assertArrayEquals(new byte[]{2, 2}, second.payload);
+        journal.remove(second);
+
+        assertTrue(journal.isEmpty());
+        assertNull(journal.peek());
+        assertEquals(2, journal.replayed());
+        journal.close();
+    }
+
+    @Test
+    public void testSurvivesReopen() throws IOException {
+        File file = tempJournal();
+        ProbeJournal journal = new ProbeJournal(file, 4096);
+        journal.append("argo/a", new byte[]{1});
+        journal.append("argo/b", new byte[]{2});
+        journal.remove(journal.peek());
+        journal.close();
+
+        ProbeJournal reopened = new ProbeJournal(file, 4096);
+        assertEquals(1, reopened.depth());
+        assertEquals("argo/b", reopened.peek().topic);
+        reopened.close();
+    }
+
+    @Test
+    public void testFullJournalCompactsThenRejects() throws IOException {
+        ProbeJournal journal = new ProbeJournal(tempJournal(), 200);
+        byte[] payload = new byte[50];
+
+        // each record is 14 bytes of overhead, the topic and the payload
+        assertTrue(journal.append("t", payload));
+        assertTrue(journal.append("t", payload));
+        assertFalse(journal.append("t", payload));
+
+        // consuming one makes room once the rest is moved to the front
+        journal.remove(journal.peek());
+        assertTrue(journal.append("t", payload));
+        assertEquals(2, journal.depth());
+        journal.close();
+    }
+
+    @Test
+    public void testRemoveAfterCompaction() throws IOException {
+        ProbeJournal journal = new ProbeJournal(tempJournal(), 16 + 3 * 25);
+        byte[] payload = new byte[10];
+        journal.append("t", new byte[] {1, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+        journal.append("t", new byte[] {2, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+        journal.append("t", new byte[] {3, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+        journal.remove(journal.peek());
+
+        // an append compacts the journal while the second record is being replayed
+        ProbeJournal.Record second = journal.peek();
+        assertTrue(journal.append("t", payload));
+        journal.remove(second);
+        assertEquals(3, journal.peek().payload[0]);
+        assertEquals(2, journal.depth());
+
+        // removing it again does nothing
+        journal.remove(second);
+        assertEquals(2, journal.depth());
+        journal.close();
+    }
+
+    @Test
+    public void testCorruptRecordIsDiscarded() throws IOException {
+        File file = tempJournal();
+        ProbeJournal journal = new ProbeJournal(file, 4096);
+        journal.append("argo/a", new byte[]{1});
+        journal.append("argo/b", new byte[]{2});
+        journal.close();
+
+        // scribble over the first record's length
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(16);
+            raf.writeInt(-7);
+        }
+
+        ProbeJournal reopened = new ProbeJournal(file, 4096);
+        try {
+            reopened.peek();
+            fail("expected the corrupt record to be refused");
+        } catch (IllegalStateException expected) {
+            // can't tell where the next record starts
+        }
+        assertEquals(2, reopened.discardHead());
+        assertTrue(reopened.isEmpty());
+        assertEquals(2, reopened.discarded());
+
+        // and the journal is usable again
+        assertTrue(reopened.append("argo/c", new byte[]{3}));
+        assertEquals("argo/c", reopened.peek().topic);
+        reopened.close();
+    }
+
+}
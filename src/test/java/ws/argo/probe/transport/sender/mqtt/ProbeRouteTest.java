@@ -0,0 +1,85 @@
+package ws.argo.probe.transport.sender.mqtt;
+
+import org.junit.Test;
+import ws.argo.probe.transport.mqtt.wire.ProbeRoute;
+import ws.argo.probe.transport.mqtt.wire.ReceivedProbe;
+import ws.argo.wireline.probe.ProbeParseException;
+import ws.argo.wireline.probe.ProbeWrapper;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the route frame carried by repeated probes.
+ */
+public class ProbeRouteTest {
+
+    private static final byte[] PROBE = "<probe id=\"1\"/>".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testWrapAndRead() throws ProbeParseException {
+        ProbeRoute route = ProbeRoute.ORIGIN.forwardedBy("gateway-a").forwardedBy("gateway-\u00e9");
+
+        byte[] framed = route.wrap(PROBE);
+        assertTrue(ProbeRoute.isRouted(framed));
+
+        ProbeRoute read = ProbeRoute.read(framed);
+        assertEquals(2, read.hops());
+        assertEquals(Arrays.asList("gateway-a", "gateway-\u00e9"), read.gateways());
+        assertArrayEquals(PROBE, ProbeRoute.unwrap(framed));
+    }
+
+    @Test
+    public void testVisited() {
+        ProbeRoute route = ProbeRoute.ORIGIN.forwardedBy("gateway-a");
+
+        assertTrue(route.visited("gateway-a"));
+        assertFalse(route.visited("gateway-b"));
+        assertFalse(ProbeRoute.ORIGIN.visited("gateway-a"));
+        assertEquals(0, ProbeRoute.ORIGIN.hops());
+    }
+
+    @Test
+    public void testMergedWith() {
+        ProbeRoute near = ProbeRoute.ORIGIN.forwardedBy("gateway-a");
+        ProbeRoute far = ProbeRoute.ORIGIN.forwardedBy("gateway-b").forwardedBy("gateway-a");
+
+        ProbeRoute merged = near.mergedWith(far);
+        assertEquals(2, merged.hops());
+        assertEquals(Arrays.asList("gateway-a", "gateway-b"), merged.gateways());
+
+        assertSame(far, far.mergedWith(near));
+        assertSame(near, near.mergedWith(ProbeRoute.ORIGIN));
+        assertEquals(1, ProbeRoute.ORIGIN.mergedWith(near).hops());
+    }
+
+    @Test
+    public void testPlainXmlIsNotRouted() {
+        assertFalse(ProbeRoute.isRouted(PROBE));
+    }
+
+    @Test(expected = ProbeParseException.class)
+    public void testTruncatedRoute() throws ProbeParseException {
+        byte[] framed = ProbeRoute.ORIGIN.forwardedBy("gateway-a").wrap(new byte[0]);
+        ProbeRoute.read(Arrays.copyOf(framed, framed.length - 3));
+    }
+
+    @Test
+    public void testRouteTravelsWithTheProbe() {
+        ProbeRoute route = ProbeRoute.ORIGIN.forwardedBy("gateway-a");
+        ReceivedProbe received = new ReceivedProbe("urn:uuid:route-test", PROBE);
+        assertSame(ProbeRoute.ORIGIN, ReceivedProbe.routeOf(received));
+        received.setRoute(route);
+        assertSame(route, ReceivedProbe.routeOf(received));
+
+        // the same id from another transport has no route of its own
+        assertSame(ProbeRoute.ORIGIN, ReceivedProbe.routeOf(new ProbeWrapper("urn:uuid:route-test")));
+    }
+
+}
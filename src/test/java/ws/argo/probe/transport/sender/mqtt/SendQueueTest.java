@@ -0,0 +1,163 @@
+package ws.argo.probe.transport.sender.mqtt;
+
+import org.junit.Test;
+import ws.argo.plugin.transport.exception.TransportException;
+import ws.argo.probe.Probe;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the bounded send queue and its overflow policies.
+ */
+public class SendQueueTest {
+
+    private static final String TOPIC = "ws.argo/test";
+
+    /**
+     * Holds up the first dispatch until released so the queue can be filled.
+     */
+    private static class GatedDispatcher implements SendQueue.Dispatcher {
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final List<Byte> dispatched = Collections.synchronizedList(new ArrayList<Byte>());
+        final List<Probe> dropped = Collections.synchronizedList(new ArrayList<Probe>());
+
+        @Override
+        public void dispatch(String topic, Probe probe, byte[] payload) {
+            started.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            dispatched.add(payload[0]);
+        }
+
+        @Override
+        public void dropped(Probe probe, TransportException reason) {
+            dropped.add(probe);
+        }
+    }
+
+    private SendQueue fill(GatedDispatcher dispatcher, SendQueue.OverflowPolicy policy, long blockMillis) throws Exception {
+        SendQueue queue = new SendQueue("JUnit-Send-Queue", 2, policy, blockMillis, dispatcher);
+        // the first payload is taken by the dispatcher, the next two fill the queue
+        queue.offer(TOPIC, new Probe(Probe.JSON), new byte[]{0});
+        assertTrue(dispatcher.started.await(5, TimeUnit.SECONDS));
+        queue.offer(TOPIC, new Probe(Probe.JSON), new byte[]{1});
+        queue.offer(TOPIC, new Probe(Probe.JSON), new byte[]{2});
+        assertEquals(2, queue.depth());
+        return queue;
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        GatedDispatcher dispatcher = new GatedDispatcher();
+        SendQueue queue = fill(dispatcher, SendQueue.OverflowPolicy.DROP_OLDEST, 0);
+
+        queue.offer(TOPIC, new Probe(Probe.JSON), new byte[]{3});
+        dispatcher.gate.countDown();
+        assertTrue(queue.awaitDrained(5000));
+
+        assertEquals(1, queue.dropped());
+        assertEquals(1, dispatcher.dropped.size());
+        assertEquals(3, dispatcher.dispatched.size());
+        assertEquals(2, (byte) dispatcher.dispatched.get(1));
+        assertEquals(3, (byte) dispatcher.dispatched.get(2));
+        queue.close();
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+        GatedDispatcher dispatcher = new GatedDispatcher();
+        SendQueue queue = fill(dispatcher, SendQueue.OverflowPolicy.DROP_NEWEST, 0);
+
+        Probe newest = new Probe(Probe.JSON);
+        queue.offer(TOPIC, newest, new byte[]{3});
+        dispatcher.gate.countDown();
+        assertTrue(queue.awaitDrained(5000));
+
+        assertEquals(1, queue.dropped());
+        assertSame(newest, dispatcher.dropped.get(0));
+        assertEquals(3, dispatcher.dispatched.size());
+        assertEquals(2, (byte) dispatcher.dispatched.get(2));
+        queue.close();
+    }
+
+    @Test
+    public void testFailFast() throws Exception {
+        GatedDispatcher dispatcher = new GatedDispatcher();
+        SendQueue queue = fill(dispatcher, SendQueue.OverflowPolicy.FAIL_FAST, 0);
+
+        try {
+            queue.offer(TOPIC, new Probe(Probe.JSON), new byte[]{3});
+            fail("offer to a full fail-fast queue should throw");
+        } catch (TransportException expected) {
+            // expected
+        }
+        assertEquals(1, queue.rejected());
+        dispatcher.gate.countDown();
+        queue.close();
+    }
+
+    @Test
+    public void testBlockTimesOut() throws Exception {
+        GatedDispatcher dispatcher = new GatedDispatcher();
+        SendQueue queue = fill(dispatcher, SendQueue.OverflowPolicy.BLOCK, 50);
+
+        long start = System.currentTimeMillis();
+        try {
+            queue.offer(TOPIC, new Probe(Probe.JSON), new byte[]{3});
+            fail("offer to a full blocking queue should time out");
+        } catch (TransportException expected) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start >= 50);
+        assertEquals(1, queue.timedOut());
+        dispatcher.gate.countDown();
+        queue.close();
+    }
+
+    @Test
+    public void testBlockWaitsForRoom() throws Exception {
+        final GatedDispatcher dispatcher = new GatedDispatcher();
+        SendQueue queue = fill(dispatcher, SendQueue.OverflowPolicy.BLOCK, 5000);
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ignored) {
+                    // just release early
+                }
+                dispatcher.gate.countDown();
+            }
+        }).start();
+
+        queue.offer(TOPIC, new Probe(Probe.JSON), new byte[]{3});
+        assertTrue(queue.awaitDrained(5000));
+        assertEquals(4, dispatcher.dispatched.size());
+        assertEquals(0, queue.timedOut());
+        queue.close();
+    }
+
+    @Test
+    public void testPolicyNames() {
+        assertEquals(SendQueue.OverflowPolicy.BLOCK, SendQueue.OverflowPolicy.parse("block"));
+        assertEquals(SendQueue.OverflowPolicy.DROP_OLDEST, SendQueue.OverflowPolicy.parse("dropOldest"));
+        assertEquals(SendQueue.OverflowPolicy.DROP_NEWEST, SendQueue.OverflowPolicy.parse("drop-newest"));
+        assertEquals(SendQueue.OverflowPolicy.FAIL_FAST, SendQueue.OverflowPolicy.parse("failFast"));
+    }
+
+}
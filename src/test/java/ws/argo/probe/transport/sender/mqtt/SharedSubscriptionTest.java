@@ -0,0 +1,100 @@
+package ws.argo.probe.transport.sender.mqtt;
+
+import org.junit.Test;
+import ws.argo.plugin.transport.responder.ProbeProcessor;
+import ws.argo.probe.Probe;
+import ws.argo.probe.transport.responder.mqtt.MqttResponderTransport;
+import ws.argo.wireline.probe.ProbeWrapper;
+
+import java.net.InetAddress;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs two responders in the same share group against the broker and checks that the
+ * probes are split between them rather than each receiving them all.
+ */
+public class SharedSubscriptionTest {
+
+    private static final Logger LOGGER = Logger.getLogger(SharedSubscriptionTest.class.getName());
+
+    private static final int PROBES = 40;
+
+    private static class CountingProcessor implements ProbeProcessor {
+
+        final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public void processProbe(ProbeWrapper probeWrapper) {
+            count.incrementAndGet();
+        }
+
+        @Override
+        public float probesPerSecond() {
+            return 0;
+        }
+
+        @Override
+        public int probesProcessed() {
+            return count.get();
+        }
+
+        @Override
+        public void probeProcessed() {
+
+        }
+
+        @Override
+        public String getRuntimeID() {
+            return null;
+        }
+    }
+
+    @Test
+    public void testProbesAreSplitAcrossTheGroup() throws Exception {
+        CountingProcessor first = new CountingProcessor();
+        CountingProcessor second = new CountingProcessor();
+
+        MqttResponderTransport firstResponder = new MqttResponderTransport();
+        firstResponder.initialize(first, "testSharedMqttResponderConfig1.xml");
+        MqttResponderTransport secondResponder = new MqttResponderTransport();
+        secondResponder.initialize(second, "testSharedMqttResponderConfig2.xml");
+
+        Properties senderProps = new Properties();
+        senderProps.put("mqttTopic", "ws.argo/test");
+        senderProps.put("broker", "tcp://localhost:1883");
+        senderProps.put("clientId", "JUnit-Shared-Subscription-Sender");
+        senderProps.put("username", "user");
+        senderProps.put("password", "p@ssw0rd");
+        senderProps.put("qos", "1");
+
+        MqttSenderTransport senderTransport = new MqttSenderTransport();
+        senderTransport.initialize(senderProps, "");
+
+        for (int i = 0; i < PROBES; i++) {
+            Probe probe = new Probe(Probe.JSON);
+            probe.addRespondToURL("internal", "http://" + InetAddress.getLocalHost().getHostAddress() + ":4009");
+            senderTransport.sendProbe(probe);
+        }
+
+        // give the broker time to deliver everything
+        long deadline = System.currentTimeMillis() + 5000;
+        while (first.count.get() + second.count.get() < PROBES && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        senderTransport.close();
+        firstResponder.shutdown();
+        secondResponder.shutdown();
+
+        LOGGER.info("Shared subscription split: [" + first.count.get() + "] and [" + second.count.get() + "]");
+        assertEquals(PROBES, first.count.get() + second.count.get());
+        assertTrue(first.count.get() > 0);
+        assertTrue(second.count.get() > 0);
+    }
+
+}
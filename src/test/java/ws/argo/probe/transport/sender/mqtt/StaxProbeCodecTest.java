@@ -0,0 +1,125 @@
+package ws.argo.probe.transport.sender.mqtt;
+
+import org.junit.Test;
+import ws.argo.probe.transport.mqtt.wire.ProbeCodecs;
+import ws.argo.wireline.probe.ProbeParseException;
+import ws.argo.wireline.probe.ProbeWrapper;
+import ws.argo.wireline.probe.XMLSerializer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the streaming XML probe decoder, including a comparison with decoding
+ * through XMLSerializer for a large probe.
+ */
+public class StaxProbeCodecTest {
+
+    private static final Logger LOGGER = Logger.getLogger(StaxProbeCodecTest.class.getName());
+
+    private static final int ITERATIONS = 1000;
+
+    private ProbeWrapper createProbe(int urls, int contracts) {
+        ProbeWrapper probe = new ProbeWrapper("urn:uuid:" + UUID.randomUUID());
+        probe.setClientId("JUnit-Stax-Codec-Client");
+        probe.setDESVersion("urn:uuid:918b5a45-1d24-4a09-94bc-d4ac9f8e0ed3");
+        probe.setRespondToPayloadType("urn:schemas-ws-argo-org:2.0:payload-type:json");
+        for (int i = 0; i < urls; i++) {
+            probe.addRespondToURL("label-" + i, "http://10.0.0." + i + ":4009/AsynchListener/api/responseHandler/probeResponse");
+        }
+        for (int i = 0; i < contracts; i++) {
+            probe.addServiceContractID("urn:uuid:" + UUID.randomUUID());
+        }
+        probe.addServiceInstanceID("service-instance-\u00e9");
+        return probe;
+    }
+
+    private void assertSameProbe(ProbeWrapper expected, ProbeWrapper actual) {
+        assertEquals(expected.getProbeId(), actual.getProbeId());
+        assertEquals(expected.getClientId(), actual.getClientId());
+        assertEquals(expected.getDESVersion(), actual.getDESVersion());
+        assertEquals(expected.getRespondToPayloadType(), actual.getRespondToPayloadType());
+        assertEquals(expected.getRespondToURLs().size(), actual.getRespondToURLs().size());
+        for (int i = 0; i < expected.getRespondToURLs().size(); i++) {
+            assertEquals(expected.getRespondToURLs().get(i).getLabel(), actual.getRespondToURLs().get(i).getLabel());
+            assertEquals(expected.getRespondToURLs().get(i).getUrl(), actual.getRespondToURLs().get(i).getUrl());
+        }
+        assertEquals(expected.getServiceContractIDs(), actual.getServiceContractIDs());
+        assertEquals(expected.getServiceInstanceIDs(), actual.getServiceInstanceIDs());
+    }
+
+    @Test
+    public void testDecodesLikeJaxb() throws ProbeParseException {
+        ProbeWrapper probe = createProbe(20, 50);
+        byte[] payload = ProbeCodecs.XML.encode(probe);
+
+        assertSameProbe(probe, ProbeCodecs.STAX.decode(payload));
+        assertSameProbe(ProbeCodecs.XML.decode(payload), ProbeCodecs.STAX.decode(payload));
+    }
+
+    @Test
+    public void testSelectedByName() {
+        assertEquals(ProbeCodecs.STAX, ProbeCodecs.forName("stax"));
+        assertEquals(ProbeCodecs.STAX, ProbeCodecs.forPayload("<probe/>".getBytes(StandardCharsets.UTF_8), ProbeCodecs.STAX));
+    }
+
+    @Test(expected = ProbeParseException.class)
+    public void testMalformedPayload() throws ProbeParseException {
+        ProbeCodecs.STAX.decode("<probe id=".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test(expected = ProbeParseException.class)
+    public void testTruncatedPayload() throws ProbeParseException {
+        ProbeCodecs.STAX.decode("<probe id=\"1\"><scids><serviceContractID>a</serviceContractID>".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test(expected = ProbeParseException.class)
+    public void testNotAProbe() throws ProbeParseException {
+        ProbeCodecs.STAX.decode("<response id=\"1\"/>".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test(expected = ProbeParseException.class)
+    public void testExternalEntitiesRefused() throws ProbeParseException {
+        ProbeCodecs.STAX.decode(("<?xml version=\"1.0\"?><!DOCTYPE probe [<!ENTITY x SYSTEM \"file:///etc/passwd\">]>"
+                + "<probe id=\"&x;\"/>").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testComparedWithXmlSerializer() throws Exception {
+        final byte[] payload = ProbeCodecs.XML.encode(createProbe(20, 50));
+        AllocationMeter.Call serializer = new AllocationMeter.Call() {
+            @Override
+            public void run() throws Exception {
+                new XMLSerializer().unmarshal(new String(payload, StandardCharsets.UTF_8));
+            }
+        };
+        AllocationMeter.Call stax = new AllocationMeter.Call() {
+            @Override
+            public void run() throws Exception {
+                ProbeCodecs.STAX.decode(payload);
+            }
+        };
+
+        AllocationMeter.warmUp(serializer, ITERATIONS);
+        AllocationMeter.warmUp(stax, ITERATIONS);
+        long serializerNanos = AllocationMeter.nanosPerCall(serializer, ITERATIONS);
+        long staxNanos = AllocationMeter.nanosPerCall(stax, ITERATIONS);
+        long serializerBytes = AllocationMeter.bytesPerCall(serializer, ITERATIONS);
+        long staxBytes = AllocationMeter.bytesPerCall(stax, ITERATIONS);
+        LOGGER.info("Decoding a probe of [" + payload.length + "] bytes: XMLSerializer [" + serializerNanos + "] ns, ["
+                + serializerBytes + "] bytes; StAX [" + staxNanos + "] ns, [" + staxBytes + "] bytes");
+
+        // the margin is several times over, so only ask that StAX wins at all
+        assertTrue("StAX took [" + staxNanos + "] ns per probe against [" + serializerNanos + "]",
+                staxNanos < serializerNanos);
+        if (staxBytes >= 0) {
+            assertTrue("StAX allocated [" + staxBytes + "] bytes per probe against [" + serializerBytes + "]",
+                    staxBytes < serializerBytes);
+        }
+    }
+
+}
@@ -0,0 +1,89 @@
+package ws.argo.probe.transport.sender.mqtt;
+
+import org.junit.Test;
+import ws.argo.probe.transport.mqtt.wire.TopicTemplate;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for partitioning probes over topics by service contract.
+ */
+public class TopicTemplateTest {
+
+    private static final String CONTRACT_A = "urn:uuid:03d55093-a954-4667-b682-8116c417925d";
+    private static final String CONTRACT_B = "urn:uuid:8b6e7d1c-5f0a-4a2e-9d7c-3f1e2b4a6c8d";
+
+    @Test
+    public void testPlainTopic() {
+        TopicTemplate topics = TopicTemplate.parse("ws.argo/test", 16);
+
+        assertFalse(topics.isPartitioned());
+        assertEquals("ws.argo/test", topics.topicForProbe(Arrays.asList(CONTRACT_A, CONTRACT_B)));
+        assertEquals(Collections.singleton("ws.argo/test"), topics.subscriptionsFor(Collections.singletonList(CONTRACT_A)));
+    }
+
+    @Test
+    public void testContractTopics() {
+        TopicTemplate topics = TopicTemplate.parse("ws.argo/probes/{contractId}", 16);
+
+        assertTrue(topics.isPartitioned());
+        assertEquals("ws.argo/probes/" + CONTRACT_A, topics.topicForProbe(Collections.singletonList(CONTRACT_A)));
+        assertEquals("ws.argo/probes/all", topics.topicForProbe(Collections.<String>emptyList()));
+        // published once, where every responder that might answer it will see it
+        assertEquals("ws.argo/probes/all", topics.topicForProbe(Arrays.asList(CONTRACT_A, CONTRACT_B)));
+        assertEquals("ws.argo/probes/" + CONTRACT_A, topics.topicForProbe(Arrays.asList(CONTRACT_A, CONTRACT_A)));
+        assertEquals("ws.argo/probes/a_b_c_", topics.topicFor("a/b+c#"));
+        assertEquals("ws.argo/probes/_all", topics.topicFor("all"));
+    }
+
+    @Test
+    public void testPartitionTopics() {
+        TopicTemplate topics = TopicTemplate.parse("ws.argo/{partition}/probes", 4);
+
+        String topic = topics.topicFor(CONTRACT_A);
+        assertEquals(topic, topics.topicFor(CONTRACT_A));
+        int partition = Integer.parseInt(topic.split("/")[1]);
+        assertTrue(partition >= 0 && partition < 4);
+        assertEquals("ws.argo/all/probes", topics.topicFor(null));
+
+        // contracts that share a partition still go to it
+        String other = CONTRACT_B;
+        for (int i = 0; !topics.topicFor(other).equals(topic); i++) {
+            other = CONTRACT_B + "-" + i;
+        }
+        assertEquals(topic, topics.topicForProbe(Arrays.asList(CONTRACT_A, other)));
+    }
+
+    @Test
+    public void testSubscriptions() {
+        TopicTemplate topics = TopicTemplate.parse("ws.argo/probes/{contractId}", 16);
+
+        Set<String> subscriptions = topics.subscriptionsFor(Collections.singletonList(CONTRACT_A));
+        assertEquals(2, subscriptions.size());
+        assertTrue(subscriptions.contains("ws.argo/probes/all"));
+        assertTrue(subscriptions.contains("ws.argo/probes/" + CONTRACT_A));
+
+        assertEquals(Collections.singleton("ws.argo/probes/+"), topics.subscriptionsFor(Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void testInvalidTemplates() {
+        String[] invalid = {"ws.argo/probes-{contractId}", "ws.argo/{contractId}/{partition}", "ws.argo/{partition}/{partition}"};
+        for (String template : invalid) {
+            try {
+                TopicTemplate.parse(template, 16);
+                fail("Template [" + template + "] should be rejected");
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+    }
+
+}
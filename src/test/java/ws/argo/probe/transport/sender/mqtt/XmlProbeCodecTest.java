@@ -0,0 +1,91 @@
+package ws.argo.probe.transport.sender.mqtt;
+
+import org.junit.Test;
+import ws.argo.probe.transport.mqtt.wire.ProbeCodecs;
+import ws.argo.wireline.probe.ProbeParseException;
+import ws.argo.wireline.probe.ProbeWrapper;
+import ws.argo.wireline.probe.XMLSerializer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the XML probe decoder, including a comparison with unmarshalling through a
+ * new XMLSerializer each time.
+ */
+public class XmlProbeCodecTest {
+
+    private static final Logger LOGGER = Logger.getLogger(XmlProbeCodecTest.class.getName());
+
+    private static final int ITERATIONS = 2000;
+
+    private ProbeWrapper createProbe() {
+        ProbeWrapper probe = new ProbeWrapper("urn:uuid:" + UUID.randomUUID());
+        probe.setClientId("JUnit-Xml-Codec-Client");
+        probe.setDESVersion("urn:uuid:918b5a45-1d24-4a09-94bc-d4ac9f8e0ed3");
+        probe.setRespondToPayloadType("urn:schemas-ws-argo-org:2.0:payload-type:json");
+        probe.addRespondToURL("internal", "http://10.0.0.1:4009/AsynchListener/api/responseHandler/probeResponse");
+        probe.addServiceContractID("urn:uuid:" + UUID.randomUUID());
+        probe.addServiceInstanceID("service-instance-\u00e9");
+        return probe;
+    }
+
+    @Test
+    public void testRoundTrip() throws ProbeParseException {
+        ProbeWrapper probe = createProbe();
+
+        ProbeWrapper decoded = ProbeCodecs.XML.decode(ProbeCodecs.XML.encode(probe));
+        assertEquals(probe.getProbeId(), decoded.getProbeId());
+        assertEquals(probe.getClientId(), decoded.getClientId());
+        assertEquals(probe.getDESVersion(), decoded.getDESVersion());
+        assertEquals(probe.getRespondToPayloadType(), decoded.getRespondToPayloadType());
+        assertEquals(probe.getRespondToURLs().get(0).getUrl(), decoded.getRespondToURLs().get(0).getUrl());
+        assertEquals(probe.getServiceContractIDs(), decoded.getServiceContractIDs());
+        // non-ASCII survives whatever the platform's default charset is
+        assertEquals(probe.getServiceInstanceIDs(), decoded.getServiceInstanceIDs());
+    }
+
+    @Test(expected = ProbeParseException.class)
+    public void testMalformedPayload() throws ProbeParseException {
+        ProbeCodecs.XML.decode("<probe id=".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testComparedWithXmlSerializer() throws Exception {
+        final byte[] payload = ProbeCodecs.XML.encode(createProbe());
+        AllocationMeter.Call serializer = new AllocationMeter.Call() {
+            @Override
+            public void run() throws Exception {
+                new XMLSerializer().unmarshal(new String(payload, StandardCharsets.UTF_8));
+            }
+        };
+        AllocationMeter.Call codec = new AllocationMeter.Call() {
+            @Override
+            public void run() throws Exception {
+                ProbeCodecs.XML.decode(payload);
+            }
+        };
+
+        AllocationMeter.warmUp(serializer, ITERATIONS);
+        AllocationMeter.warmUp(codec, ITERATIONS);
+        long serializerBytes = AllocationMeter.bytesPerCall(serializer, ITERATIONS);
+        long codecBytes = AllocationMeter.bytesPerCall(codec, ITERATIONS);
+        LOGGER.info("Decoding a probe of [" + payload.length + "] bytes: XMLSerializer ["
+                + AllocationMeter.nanosPerCall(serializer, ITERATIONS) + "] ns, [" + serializerBytes + "] bytes; codec ["
+                + AllocationMeter.nanosPerCall(codec, ITERATIONS) + "] ns, [" + codecBytes + "] bytes");
+
+        if (codecBytes >= 0) {
+            // building a JAXB context per probe costs far more than this, so a
+            // regression back to it fails here even on a noisy machine
+            assertTrue("codec allocated [" + codecBytes + "] bytes per probe against [" + serializerBytes + "]",
+                    codecBytes * 2 < serializerBytes);
+        }
+        assertEquals(new XMLSerializer().unmarshal(new String(payload, StandardCharsets.UTF_8)).getProbeId(),
+                ProbeCodecs.XML.decode(payload).getProbeId());
+    }
+
+}
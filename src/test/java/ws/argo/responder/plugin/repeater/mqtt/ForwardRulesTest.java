@@ -0,0 +1,94 @@
+package ws.argo.responder.plugin.repeater.mqtt;
+
+import org.junit.Test;
+import ws.argo.wireline.probe.ProbeWrapper;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the repeater's forwarding rules.
+ */
+public class ForwardRulesTest {
+
+    private static Set<String> set(String... values) {
+        return new HashSet<>(Arrays.asList(values));
+    }
+
+    private static Set<String> none() {
+        return Collections.emptySet();
+    }
+
+    private static ProbeWrapper probe(String clientId, String url, String... contractIds) {
+        ProbeWrapper probe = new ProbeWrapper("urn:uuid:" + UUID.randomUUID());
+        probe.setClientId(clientId);
+        probe.addRespondToURL("internal", url);
+        for (String contractId : contractIds) {
+            probe.addServiceContractID(contractId);
+        }
+        return probe;
+    }
+
+    @Test
+    public void testAllowedContracts() {
+        ForwardRules rules = new ForwardRules(new ForwardRules.Criteria(set("urn:a", "urn:b"), none(), none(), none()),
+                ForwardRules.Criteria.NONE, 1.0);
+
+        assertEquals(ForwardRules.Verdict.FORWARD, rules.check(probe("c", "http://h/r", "urn:x", "urn:b")));
+        assertEquals(ForwardRules.Verdict.NOT_ALLOWED, rules.check(probe("c", "http://h/r", "urn:x")));
+        // a probe naming no contracts asks for everything
+        assertEquals(ForwardRules.Verdict.FORWARD, rules.check(probe("c", "http://h/r")));
+    }
+
+    @Test
+    public void testDenyWinsOverAllow() {
+        ForwardRules rules = new ForwardRules(new ForwardRules.Criteria(set("urn:a"), none(), none(), none()),
+                new ForwardRules.Criteria(none(), none(), set("noisy-client"), set("HTTPS")), 1.0);
+
+        assertEquals(ForwardRules.Verdict.DENIED, rules.check(probe("noisy-client", "http://h/r", "urn:a")));
+        // schemes are matched without regard to case
+        assertEquals(ForwardRules.Verdict.DENIED, rules.check(probe("c", "https://h/r", "urn:a")));
+        assertEquals(ForwardRules.Verdict.FORWARD, rules.check(probe("c", "http://h/r", "urn:a")));
+    }
+
+    @Test
+    public void testAllowedSchemesAndClients() {
+        ForwardRules rules = new ForwardRules(new ForwardRules.Criteria(none(), none(), set("gateway-client"), set("http")),
+                ForwardRules.Criteria.NONE, 1.0);
+
+        assertEquals(ForwardRules.Verdict.FORWARD, rules.check(probe("gateway-client", "HTTP://h/r")));
+        assertEquals(ForwardRules.Verdict.NOT_ALLOWED, rules.check(probe("gateway-client", "mqtt://h/r")));
+        assertEquals(ForwardRules.Verdict.NOT_ALLOWED, rules.check(probe("other-client", "http://h/r")));
+    }
+
+    @Test
+    public void testSampling() {
+        ForwardRules rules = new ForwardRules(ForwardRules.Criteria.NONE, ForwardRules.Criteria.NONE, 0.25);
+
+        int forwarded = 0;
+        for (int i = 0; i < 10000; i++) {
+            ProbeWrapper probe = probe("c", "http://h/r");
+            ForwardRules.Verdict verdict = rules.check(probe);
+            // the same probe always gets the same answer
+            assertEquals(verdict, rules.check(probe));
+            if (verdict == ForwardRules.Verdict.FORWARD) {
+                forwarded++;
+            }
+        }
+        assertTrue("forwarded " + forwarded, forwarded > 2000 && forwarded < 3000);
+
+        assertEquals(ForwardRules.Verdict.NOT_SAMPLED,
+                new ForwardRules(ForwardRules.Criteria.NONE, ForwardRules.Criteria.NONE, 0).check(probe("c", "http://h/r")));
+    }
+
+    @Test
+    public void testForwardAll() {
+        assertEquals(ForwardRules.Verdict.FORWARD, ForwardRules.FORWARD_ALL.check(probe(null, "http://h/r", "urn:a")));
+    }
+}
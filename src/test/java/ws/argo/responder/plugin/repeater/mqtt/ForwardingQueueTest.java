@@ -0,0 +1,148 @@
+package ws.argo.responder.plugin.repeater.mqtt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the repeater's asynchronous forwarding queue.
+ */
+public class ForwardingQueueTest {
+
+    @Test
+    public void testOfferReturnsBeforeForwarding() throws Exception {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final List<String> forwarded = Collections.synchronizedList(new ArrayList<String>());
+        ForwardingQueue<String> queue = new ForwardingQueue<>("JUnit", new ForwardingQueue.Forwarder<String>() {
+            @Override
+            public void forward(String item) throws Exception {
+                gate.await();
+                forwarded.add(item);
+            }
+        }, 1, 10, ForwardingQueue.OverflowPolicy.BLOCK);
+
+        // a slow publish doesn't hold up the caller
+        queue.offer("a");
+        queue.offer("b");
+        assertTrue(forwarded.isEmpty());
+
+        gate.countDown();
+        assertTrue(queue.shutdown(5000));
+        assertEquals(2, queue.forwarded());
+        assertEquals(2, forwarded.size());
+        assertTrue(queue.maxForwardMicros() >= queue.averageForwardMicros());
+    }
+
+    @Test
+    public void testFailuresAreCounted() throws Exception {
+        ForwardingQueue<String> queue = new ForwardingQueue<>("JUnit", new ForwardingQueue.Forwarder<String>() {
+            @Override
+            public void forward(String item) throws Exception {
+                throw new Exception("broker down");
+            }
+        }, 1, 10, ForwardingQueue.OverflowPolicy.BLOCK);
+
+        queue.offer("a");
+        assertTrue(queue.shutdown(5000));
+        assertEquals(0, queue.forwarded());
+        assertEquals(1, queue.failed());
+    }
+
+    @Test
+    public void testOverflowPolicies() throws Exception {
+        assertEquals(2, overflow(ForwardingQueue.OverflowPolicy.DROP_NEWEST));
+        assertEquals(2, overflow(ForwardingQueue.OverflowPolicy.DROP_OLDEST));
+    }
+
+    /**
+     * Hold up a single publisher with a one slot queue, then offer three more.
+     *
+     * @return the dropped count
+     */
+    private long overflow(ForwardingQueue.OverflowPolicy policy) throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        ForwardingQueue<String> queue = new ForwardingQueue<>("JUnit", new ForwardingQueue.Forwarder<String>() {
+            @Override
+            public void forward(String item) throws Exception {
+                started.countDown();
+                gate.await();
+            }
+        }, 1, 1, policy);
+
+        queue.offer("blocker");
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        queue.offer("a");
+        queue.offer("b");
+        queue.offer("c");
+        assertEquals(1, queue.queueDepth());
+
+        gate.countDown();
+        assertTrue(queue.shutdown(5000));
+        assertEquals(2, queue.forwarded());
+        return queue.dropped();
+    }
+
+    @Test
+    public void testBlockedOfferDuringShutdownIsCounted() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final ForwardingQueue<String> queue = new ForwardingQueue<>("JUnit", new ForwardingQueue.Forwarder<String>() {
+            @Override
+            public void forward(String item) throws Exception {
+                started.countDown();
+                gate.await();
+            }
+        }, 1, 1, ForwardingQueue.OverflowPolicy.BLOCK);
+
+        queue.offer("blocker");
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        queue.offer("a");
+        Thread offerer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                queue.offer("b");
+            }
+        });
+        offerer.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (offerer.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // shut down while the offer is waiting for room
+        Thread closer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    queue.shutdown(5000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        closer.start();
+        gate.countDown();
+        offerer.join(5000);
+        closer.join(5000);
+
+        // the late probe was either forwarded or dropped, never left behind
+        assertEquals(0, queue.queueDepth());
+        assertEquals(3, queue.forwarded() + queue.dropped());
+    }
+
+    @Test
+    public void testConfigNames() {
+        assertEquals(ForwardingQueue.OverflowPolicy.BLOCK, ForwardingQueue.OverflowPolicy.parse("block"));
+        assertEquals(ForwardingQueue.OverflowPolicy.DROP_OLDEST, ForwardingQueue.OverflowPolicy.parse("dropOldest"));
+        assertEquals(ForwardingQueue.OverflowPolicy.DROP_NEWEST, ForwardingQueue.OverflowPolicy.parse("drop-newest"));
+    }
+
+}
@@ -0,0 +1,252 @@
+package ws.argo.responder.plugin.repeater.mqtt;
+
+import org.junit.Test;
+import ws.argo.plugin.transport.exception.TransportException;
+import ws.argo.probe.transport.mqtt.wire.ProbeCodec;
+import ws.argo.probe.transport.mqtt.wire.ProbeCodecs;
+import ws.argo.probe.transport.mqtt.wire.ProbeRoute;
+import ws.argo.probe.transport.mqtt.wire.ReceivedProbe;
+import ws.argo.probe.transport.sender.mqtt.AllocationMeter;
+import ws.argo.wireline.probe.ProbeParseException;
+import ws.argo.wireline.probe.ProbeWrapper;
+
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the repeater's handling of probes, driven through {@code handleProbeEvent}
+ * with destinations that capture what would have been published.
+ */
+public class MqttRepeaterProbeHandlerPluginTest {
+
+    private static final Logger LOGGER = Logger.getLogger(MqttRepeaterProbeHandlerPluginTest.class.getName());
+
+    private static final int ITERATIONS = 1000;
+
+    /**
+     * Builds the bytes the MQTT sender transport would publish, and keeps the last.
+     */
+    private static class CapturingSender implements RepeaterDestination.Sender {
+
+        private final ProbeCodec _codec;
+        RepeatedProbe _repeated;
+        boolean _asReceived;
+        byte[] _published;
+
+        CapturingSender(ProbeCodec codec) {
+            _codec = codec;
+        }
+
+        @Override
+        public ProbeCodec codec() {
+            return _codec;
+        }
+
+        @Override
+        public void send(RepeatedProbe repeated, boolean asReceived) throws TransportException {
+            _repeated = repeated;
+            _asReceived = asReceived;
+            try {
+                _published = repeated.route.wrap(asReceived ? repeated.payload : _codec.encode(repeated.probe));
+            } catch (ProbeParseException e) {
+                throw new TransportException("Unable to encode probe", e);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static ProbeWrapper createProbe() {
+        ProbeWrapper probe = new ProbeWrapper("urn:uuid:" + UUID.randomUUID());
+        probe.setClientId("JUnit-Repeater-Client");
+        probe.setRespondToPayloadType("urn:schemas-ws-argo-org:2.0:payload-type:json");
+        probe.addRespondToURL("internal", "http://10.0.0.1:4009/AsynchListener/api/responseHandler/probeResponse");
+        for (int i = 0; i < 5; i++) {
+            probe.addServiceContractID("urn:uuid:" + UUID.randomUUID());
+        }
+        return probe;
+    }
+
+    private static MqttRepeaterProbeHandlerPlugin repeater(boolean rawForward, CapturingSender sender) {
+        return repeater(8, 0, rawForward, sender);
+    }
+
+    private static MqttRepeaterProbeHandlerPlugin repeater(int maxHops, int forwardedCacheMillis, boolean rawForward,
+                                                           CapturingSender sender) {
+        return new MqttRepeaterProbeHandlerPlugin("JUnit-Gateway", maxHops, forwardedCacheMillis, rawForward,
+                new RepeaterDestination("inline", sender, 0, 1, ForwardingQueue.OverflowPolicy.BLOCK));
+    }
+
+    /**
+     * A probe as the MQTT responder transport hands it over after a repeat.
+     */
+    private static ReceivedProbe received(ProbeWrapper probe, ProbeRoute route) throws ProbeParseException {
+        ReceivedProbe received = ProbeCodecs.XML.decode(ProbeCodecs.XML.encode(probe));
+        received.setRoute(route);
+        return received;
+    }
+
+    @Test
+    public void testProbeIsForwardedWithThisHopOnItsRoute() throws Exception {
+        CapturingSender sender = new CapturingSender(ProbeCodecs.XML);
+        MqttRepeaterProbeHandlerPlugin repeater = repeater(false, sender);
+        repeater.handleProbeEvent(received(createProbe(), ProbeRoute.ORIGIN.forwardedBy("JUnit-Other")));
+
+        assertEquals(2, sender._repeated.route.hops());
+        assertTrue(sender._repeated.route.visited("JUnit-Other"));
+        assertTrue(sender._repeated.route.visited("JUnit-Gateway"));
+        assertEquals(0, repeater.loopDropCount());
+    }
+
+    @Test
+    public void testProbeThatWasHereBeforeIsDropped() throws Exception {
+        CapturingSender sender = new CapturingSender(ProbeCodecs.XML);
+        MqttRepeaterProbeHandlerPlugin repeater = repeater(false, sender);
+        repeater.handleProbeEvent(received(createProbe(), ProbeRoute.ORIGIN.forwardedBy("JUnit-Gateway").forwardedBy("JUnit-Other")));
+
+        assertNull(sender._repeated);
+        assertEquals(1, repeater.visitedDropCount());
+        assertEquals(1, repeater.loopDropCount());
+    }
+
+    @Test
+    public void testProbeAtTheHopLimitIsDropped() throws Exception {
+        CapturingSender sender = new CapturingSender(ProbeCodecs.XML);
+        MqttRepeaterProbeHandlerPlugin repeater = repeater(2, 0, false, sender);
+
+        repeater.handleProbeEvent(received(createProbe(), ProbeRoute.ORIGIN.forwardedBy("a").forwardedBy("b")));
+        assertNull(sender._repeated);
+        assertEquals(1, repeater.hopLimitDropCount());
+
+        repeater.handleProbeEvent(received(createProbe(), ProbeRoute.ORIGIN.forwardedBy("a")));
+        assertNotNull(sender._repeated);
+        assertEquals(1, repeater.hopLimitDropCount());
+    }
+
+    @Test
+    public void testRecentlyForwardedProbeIsDropped() throws Exception {
+        CapturingSender sender = new CapturingSender(ProbeCodecs.XML);
+        MqttRepeaterProbeHandlerPlugin repeater = repeater(8, 60000, false, sender);
+        ProbeWrapper probe = createProbe();
+
+        repeater.handleProbeEvent(received(probe, ProbeRoute.ORIGIN));
+        assertEquals(1, repeater.encodedForwardCount());
+        // the same probe back again by another way
+        repeater.handleProbeEvent(received(probe, ProbeRoute.ORIGIN.forwardedBy("JUnit-Other")));
+        assertEquals(1, repeater.encodedForwardCount());
+        assertEquals(1, repeater.alreadyForwardedDropCount());
+        assertEquals(1, repeater.loopDropCount());
+    }
+
+    @Test
+    public void testSameIdFromAnotherTransportHasNoRoute() throws Exception {
+        CapturingSender sender = new CapturingSender(ProbeCodecs.XML);
+        MqttRepeaterProbeHandlerPlugin repeater = repeater(false, sender);
+        ProbeWrapper probe = createProbe();
+
+        repeater.handleProbeEvent(received(probe, ProbeRoute.ORIGIN.forwardedBy("JUnit-Gateway")));
+        assertEquals(1, repeater.visitedDropCount());
+
+        // clients send the same id over several transports; this copy hasn't been repeated
+        repeater.handleProbeEvent(probe);
+        assertEquals(1, repeater.visitedDropCount());
+        assertEquals(1, sender._repeated.route.hops());
+    }
+
+    @Test
+    public void testProbeReceivedOverMqttIsForwardedAsItsOwnBytes() throws Exception {
+        byte[] received = ProbeCodecs.XML.encode(createProbe());
+        // decoded just as the MQTT responder transport does
+        ProbeWrapper probe = ProbeCodecs.XML.decode(received);
+
+        CapturingSender sender = new CapturingSender(ProbeCodecs.XML);
+        MqttRepeaterProbeHandlerPlugin repeater = repeater(true, sender);
+        assertNotNull(repeater.handleProbeEvent(probe));
+
+        assertTrue(sender._asReceived);
+        assertSame(received, sender._repeated.payload);
+        assertEquals(1, repeater.rawForwardCount());
+        assertEquals(0, repeater.encodedForwardCount());
+    }
+
+    @Test
+    public void testProbesAreEncodedWithoutRawForward() throws Exception {
+        ProbeWrapper probe = ProbeCodecs.XML.decode(ProbeCodecs.XML.encode(createProbe()));
+
+        CapturingSender sender = new CapturingSender(ProbeCodecs.XML);
+        MqttRepeaterProbeHandlerPlugin repeater = repeater(false, sender);
+        repeater.handleProbeEvent(probe);
+
+        assertFalse(sender._asReceived);
+        assertEquals(0, repeater.rawForwardCount());
+        assertEquals(1, repeater.encodedForwardCount());
+    }
+
+    @Test
+    public void testProbeFromAnotherTransportIsEncoded() {
+        CapturingSender sender = new CapturingSender(ProbeCodecs.XML);
+        MqttRepeaterProbeHandlerPlugin repeater = repeater(true, sender);
+        repeater.handleProbeEvent(createProbe());
+
+        assertFalse(sender._asReceived);
+        assertEquals(1, repeater.encodedForwardCount());
+    }
+
+    @Test
+    public void testComparedWithEncodingAgain() throws Exception {
+        byte[] received = ProbeCodecs.XML.encode(createProbe());
+        final ProbeWrapper probe = ProbeCodecs.XML.decode(received);
+
+        CapturingSender encodingSender = new CapturingSender(ProbeCodecs.XML);
+        final MqttRepeaterProbeHandlerPlugin encoding = repeater(false, encodingSender);
+        CapturingSender rawSender = new CapturingSender(ProbeCodecs.XML);
+        final MqttRepeaterProbeHandlerPlugin raw = repeater(true, rawSender);
+
+        AllocationMeter.Call encodeAgain = new AllocationMeter.Call() {
+            @Override
+            public void run() {
+                encoding.handleProbeEvent(probe);
+            }
+        };
+        AllocationMeter.Call forwardRaw = new AllocationMeter.Call() {
+            @Override
+            public void run() {
+                raw.handleProbeEvent(probe);
+            }
+        };
+
+        AllocationMeter.warmUp(encodeAgain, ITERATIONS);
+        AllocationMeter.warmUp(forwardRaw, ITERATIONS);
+
+        // both ways put the same bytes on the wire
+        assertFalse(encodingSender._asReceived);
+        assertTrue(rawSender._asReceived);
+        assertArrayEquals(encodingSender._published, rawSender._published);
+
+        long encodeNanos = AllocationMeter.nanosPerCall(encodeAgain, ITERATIONS);
+        long rawNanos = AllocationMeter.nanosPerCall(forwardRaw, ITERATIONS);
+        long encodeBytes = AllocationMeter.bytesPerCall(encodeAgain, ITERATIONS);
+        long rawBytes = AllocationMeter.bytesPerCall(forwardRaw, ITERATIONS);
+
+        LOGGER.info("Repeating a probe of [" + received.length + "] bytes: encoded again [" + perSecond(encodeNanos)
+                + "] probes/s and [" + encodeBytes + "] bytes allocated, raw [" + perSecond(rawNanos) + "] probes/s and ["
+                + rawBytes + "] bytes allocated");
+
+        // raw forwarding skips a whole marshal, so only ask that it wins at all
+        assertTrue("raw took [" + rawNanos + "] ns per probe against [" + encodeNanos + "]", rawNanos < encodeNanos);
+    }
+
+    private static long perSecond(long nanosPerCall) {
+        return nanosPerCall == 0 ? 0 : 1000000000L / nanosPerCall;
+    }
+}
@@ -0,0 +1,134 @@
+package ws.argo.responder.plugin.repeater.mqtt;
+
+import org.junit.Test;
+import ws.argo.probe.transport.mqtt.wire.ProbeRoute;
+import ws.argo.wireline.probe.ProbeWrapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for merging equivalent probes at the repeater.
+ */
+public class ProbeCoalescerTest {
+
+    private static RepeatedProbe repeated(String url, String... contractIds) {
+        return repeated(ProbeRoute.ORIGIN.forwardedBy("JUnit"), url, contractIds);
+    }
+
+    private static RepeatedProbe repeated(ProbeRoute route, String url, String... contractIds) {
+        ProbeWrapper probe = new ProbeWrapper("urn:uuid:" + UUID.randomUUID());
+        probe.setClientId("JUnit-Coalescer-Client");
+        probe.setRespondToPayloadType("urn:schemas-ws-argo-org:2.0:payload-type:json");
+        probe.addRespondToURL("internal", url);
+        for (String contractId : contractIds) {
+            probe.addServiceContractID(contractId);
+        }
+        return new RepeatedProbe(probe, new byte[] {1, 2, 3}, route);
+    }
+
+    private static class CollectingSink implements ProbeCoalescer.Sink {
+
+        final List<RepeatedProbe> _repeated = Collections.synchronizedList(new ArrayList<RepeatedProbe>());
+        final CountDownLatch _latch;
+
+        CollectingSink(int expected) {
+            _latch = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void repeat(RepeatedProbe repeated) {
+            _repeated.add(repeated);
+            _latch.countDown();
+        }
+    }
+
+    @Test
+    public void testEquivalentProbesAreMerged() throws Exception {
+        CollectingSink sink = new CollectingSink(2);
+        ProbeCoalescer coalescer = new ProbeCoalescer(200, sink);
+
+        RepeatedProbe first = repeated("http://a/r", "urn:x", "urn:y");
+        coalescer.offer(first);
+        // the same contracts in another order, and a repeat of a URL already held
+        coalescer.offer(repeated("http://b/r", "urn:y", "urn:x"));
+        coalescer.offer(repeated("http://a/r", "urn:x", "urn:y"));
+        RepeatedProbe other = repeated("http://c/r", "urn:z");
+        coalescer.offer(other);
+
+        assertTrue(sink._latch.await(5, TimeUnit.SECONDS));
+        assertEquals(2, sink._repeated.size());
+        assertEquals(4, coalescer.received());
+        assertEquals(2, coalescer.merged());
+        assertEquals(2, coalescer.repeated());
+        assertEquals(0, coalescer.pending());
+
+        for (RepeatedProbe repeated : sink._repeated) {
+            if (repeated.probe.getProbeId().equals(first.probe.getProbeId())) {
+                // a copy carrying every client's respondTo URL, encoded afresh
+                assertNotSame(first.probe, repeated.probe);
+                assertEquals(2, repeated.probe.getRespondToURLs().size());
+                assertEquals(1, first.probe.getRespondToURLs().size());
+                assertNull(repeated.payload);
+                assertSame(first.route, repeated.route);
+            } else {
+                // nothing merged, so it goes as it arrived
+                assertSame(other, repeated);
+            }
+        }
+        coalescer.close();
+    }
+
+    @Test
+    public void testMergedProbeKeepsTheLongestRoute() {
+        CollectingSink sink = new CollectingSink(1);
+        ProbeCoalescer coalescer = new ProbeCoalescer(60000, sink);
+
+        coalescer.offer(repeated(ProbeRoute.ORIGIN.forwardedBy("JUnit"), "http://a/r", "urn:x"));
+        // the same probe from a client further away
+        coalescer.offer(repeated(ProbeRoute.ORIGIN.forwardedBy("JUnit-Far").forwardedBy("JUnit-Near").forwardedBy("JUnit"),
+                "http://b/r", "urn:x"));
+        coalescer.close();
+
+        ProbeRoute route = sink._repeated.get(0).route;
+        assertEquals(3, route.hops());
+        assertEquals(Arrays.asList("JUnit", "JUnit-Far", "JUnit-Near"), route.gateways());
+    }
+
+    @Test
+    public void testCloseRepeatsWhatIsWaiting() {
+        CollectingSink sink = new CollectingSink(1);
+        ProbeCoalescer coalescer = new ProbeCoalescer(60000, sink);
+
+        coalescer.offer(repeated("http://a/r", "urn:x"));
+        assertEquals(1, coalescer.pending());
+        coalescer.close();
+        assertEquals(1, sink._repeated.size());
+
+        // nothing is held once closed
+        coalescer.offer(repeated("http://a/r", "urn:x"));
+        assertEquals(2, sink._repeated.size());
+    }
+
+    @Test
+    public void testKeyIgnoresOrderButNotPayloadType() {
+        RepeatedProbe a = repeated("http://a/r", "urn:x", "urn:y");
+        RepeatedProbe b = repeated("http://b/r", "urn:y", "urn:x");
+        assertEquals(ProbeCoalescer.key(a.probe), ProbeCoalescer.key(b.probe));
+
+        b.probe.setRespondToPayloadType("urn:schemas-ws-argo-org:2.0:payload-type:xml");
+        assertNotEquals(ProbeCoalescer.key(a.probe), ProbeCoalescer.key(b.probe));
+    }
+}
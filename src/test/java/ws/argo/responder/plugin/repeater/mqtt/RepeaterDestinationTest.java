@@ -0,0 +1,150 @@
+package ws.argo.responder.plugin.repeater.mqtt;
+
+import org.junit.Test;
+import ws.argo.plugin.transport.exception.TransportException;
+import ws.argo.probe.transport.mqtt.wire.ProbeCodec;
+import ws.argo.probe.transport.mqtt.wire.ProbeCodecs;
+import ws.argo.probe.transport.mqtt.wire.ProbeRoute;
+import ws.argo.wireline.probe.ProbeWrapper;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for fanning repeated probes out to several destinations.
+ */
+public class RepeaterDestinationTest {
+
+    private static RepeatedProbe repeated() {
+        return new RepeatedProbe(new ProbeWrapper("urn:uuid:" + UUID.randomUUID()), null, ProbeRoute.ORIGIN.forwardedBy("JUnit"));
+    }
+
+    @Test
+    public void testBlockedDestinationDoesNotHoldUpAnother() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch sent = new CountDownLatch(3);
+        CountingSender stuck = new CountingSender() {
+            @Override
+            public void send(RepeatedProbe repeated, boolean asReceived) throws TransportException {
+                started.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new TransportException("interrupted", e);
+                }
+                super.send(repeated, asReceived);
+            }
+        };
+        CountingSender healthy = new CountingSender() {
+            @Override
+            public void send(RepeatedProbe repeated, boolean asReceived) throws TransportException {
+                super.send(repeated, asReceived);
+                sent.countDown();
+            }
+        };
+
+        RepeaterDestination slow = new RepeaterDestination("slow", stuck, 1, 1, ForwardingQueue.OverflowPolicy.DROP_OLDEST);
+        RepeaterDestination fast = new RepeaterDestination("fast", healthy, 1, 10, ForwardingQueue.OverflowPolicy.DROP_OLDEST);
+
+        for (int i = 0; i < 3; i++) {
+            RepeatedProbe probe = repeated();
+            slow.offer(probe);
+            fast.offer(probe);
+            if (i == 0) {
+                // the publisher has the first probe before the queue fills
+                assertTrue(started.await(5, TimeUnit.SECONDS));
+            }
+        }
+
+        // the healthy destination gets everything while the other is stuck
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        assertEquals(3, fast.forwarded());
+        assertEquals(0, slow.forwarded());
+        // one probe is held by the publisher, one queued and the oldest dropped
+        assertEquals(1, slow.dropped());
+
+        gate.countDown();
+        slow.close(5000);
+        fast.close(5000);
+        assertEquals(2, stuck._sent.get());
+        assertEquals(1, stuck._closed.get());
+        assertEquals(1, healthy._closed.get());
+    }
+
+    @Test
+    public void testInlineDestinationLogsFailures() throws Exception {
+        CountingSender failing = new CountingSender() {
+            @Override
+            public void send(RepeatedProbe repeated, boolean asReceived) throws TransportException {
+                throw new TransportException("broker down");
+            }
+        };
+        RepeaterDestination inline = new RepeaterDestination("inline", failing, 0, 1, ForwardingQueue.OverflowPolicy.BLOCK);
+
+        // a failed send doesn't escape to the handler thread
+        inline.offer(repeated());
+        assertEquals(0, inline.queueDepth());
+        inline.close(0);
+        assertEquals(1, failing._closed.get());
+    }
+
+    @Test
+    public void testReceivedPayloadIsOnlySentInItsOwnFormat() throws Exception {
+        ProbeWrapper probe = new ProbeWrapper("urn:uuid:" + UUID.randomUUID());
+        byte[] xml = ProbeCodecs.XML.encode(probe);
+        RepeatedProbe repeated = new RepeatedProbe(probe, xml, ProbeRoute.ORIGIN.forwardedBy("JUnit"));
+
+        CountingSender xmlSender = new CountingSender(ProbeCodecs.STAX);
+        RepeaterDestination xmlDestination = new RepeaterDestination("xml", xmlSender, 0, 1, ForwardingQueue.OverflowPolicy.BLOCK);
+        xmlDestination.offer(repeated);
+        assertEquals(1, xmlSender._asReceived.get());
+        assertEquals(1, xmlDestination.sentAsReceived());
+
+        // a binary destination's responders may not read XML
+        CountingSender binarySender = new CountingSender(ProbeCodecs.BINARY);
+        RepeaterDestination binaryDestination = new RepeaterDestination("binary", binarySender, 0, 1, ForwardingQueue.OverflowPolicy.BLOCK);
+        binaryDestination.offer(repeated);
+        assertEquals(0, binarySender._asReceived.get());
+        assertEquals(1, binaryDestination.sentEncoded());
+    }
+
+    private static class CountingSender implements RepeaterDestination.Sender {
+
+        final AtomicInteger _sent = new AtomicInteger();
+        final AtomicInteger _asReceived = new AtomicInteger();
+        final AtomicInteger _closed = new AtomicInteger();
+        private final ProbeCodec _codec;
+
+        CountingSender() {
+            this(ProbeCodecs.XML);
+        }
+
+        CountingSender(ProbeCodec codec) {
+            _codec = codec;
+        }
+
+        @Override
+        public ProbeCodec codec() {
+            return _codec;
+        }
+
+        @Override
+        public void send(RepeatedProbe repeated, boolean asReceived) throws TransportException {
+            _sent.incrementAndGet();
+            if (asReceived) {
+                _asReceived.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void close() throws TransportException {
+            _closed.incrementAndGet();
+        }
+    }
+}